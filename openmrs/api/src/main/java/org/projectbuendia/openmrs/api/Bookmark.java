@@ -61,8 +61,22 @@ public class Bookmark {
             Objects.equals(minUuid, ((Bookmark) obj).minUuid);
     }
 
+    /** Returns true if this bookmark comes after the other one in sync order. */
+    public boolean isAfter(@Nullable Bookmark other) {
+        if (other == null) return true;
+        int cmp = minTime.compareTo(other.minTime);
+        if (cmp != 0) return cmp > 0;
+        // As in the DAO, a null UUID sorts before every other UUID.
+        String uuid = minUuid == null ? "" : minUuid;
+        return uuid.compareTo(other.minUuid == null ? "" : other.minUuid) > 0;
+    }
+
     public String serialize() {
-        String result = ISO8601_FORMAT.format(minTime);
+        String result;
+        // SimpleDateFormat isn't thread-safe, and bookmarks are used by concurrent requests.
+        synchronized (ISO8601_FORMAT) {
+            result = ISO8601_FORMAT.format(minTime);
+        }
         if (minUuid != null) result += "/" + minUuid;
         return result;
     }
@@ -97,6 +111,8 @@ public class Bookmark {
     }
 
     private static Date parse8601(String iso8601) throws ParseException {
-        return ISO8601_FORMAT.parse(iso8601);
+        synchronized (ISO8601_FORMAT) {
+            return ISO8601_FORMAT.parse(iso8601);
+        }
     }
 }
@@ -11,6 +11,8 @@
 
 package org.projectbuendia.openmrs.api;
 
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
 import org.openmrs.Obs;
 import org.openmrs.Order;
 import org.openmrs.Patient;
@@ -18,11 +20,20 @@ import org.openmrs.api.APIException;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.annotation.Authorized;
 import org.openmrs.util.PrivilegeConstants;
+import org.projectbuendia.openmrs.api.db.ExportEncounter;
+import org.projectbuendia.openmrs.api.db.ExportPatient;
+import org.projectbuendia.openmrs.api.db.OrderChain;
 import org.projectbuendia.openmrs.api.db.ProjectBuendiaDAO;
+import org.projectbuendia.openmrs.api.db.SyncConsumer;
 import org.projectbuendia.openmrs.api.db.SyncPage;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This service exposes module's core functionality. It is a Spring managed bean which is
@@ -42,6 +53,14 @@ public interface ProjectBuendiaService extends OpenmrsService {
 
     void clearCache();
 
+    /**
+     * Returns the JDBC connection of the current thread's session to the pool, so that a
+     * request can wait for a long time without holding a database connection.  The
+     * session gets a new connection if it is used again.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    void releaseSessionConnection();
+
     /**
      * Returns all observations modified on or after the given {@code date}.
      * @param bookmark a token representing the first record to be excluded from the result set.
@@ -54,6 +73,29 @@ public interface ProjectBuendiaService extends OpenmrsService {
         @Nullable Bookmark bookmark, boolean includeVoided, int maxResults)
         throws APIException;
 
+    /**
+     * Returns the same observations as {@link #getObservationsModifiedAtOrAfter}, as flat
+     * rows containing only the fields that are sent to sync clients.  This avoids loading
+     * each observation's encounter, concept and order entities.
+     */
+    @Authorized(PrivilegeConstants.VIEW_OBS)
+    @Transactional(readOnly = true)
+    SyncPage<ObsSyncRow> getObservationRowsModifiedAtOrAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults)
+        throws APIException;
+
+    /**
+     * Streams the rows that {@link #getObservationRowsModifiedAtOrAfter} would return
+     * to a consumer, one at a time, without accumulating them in memory.
+     * @return the bookmark of the last row streamed, or null if there were none.
+     */
+    @Authorized(PrivilegeConstants.VIEW_OBS)
+    @Transactional(readOnly = true)
+    @Nullable Bookmark streamObservationRowsModifiedAtOrAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults,
+        SyncConsumer<ObsSyncRow> consumer)
+        throws APIException;
+
     /**
      * Returns all patients modified on or after the given {@code date}.
      * @param bookmark a token representing the first record to be excluded from the result set.
@@ -80,4 +122,167 @@ public interface ProjectBuendiaService extends OpenmrsService {
         @Nullable Bookmark bookmark, boolean includeVoided, int maxResults,
         @Nullable Order.Action[] allowedOrderTypes)
         throws APIException;
+
+    /**
+     * Returns the bookmark of the most recently updated observation (including voided
+     * ones), or null if there are none.  Whenever any observation is added or changed,
+     * this mark moves forward, so it can be used to tell whether cached sync results
+     * are still current.
+     */
+    @Authorized(PrivilegeConstants.VIEW_OBS)
+    @Transactional(readOnly = true)
+    @Nullable Bookmark getObservationSyncHighWaterMark() throws APIException;
+
+    /** Like {@link #getObservationSyncHighWaterMark}, but for patients. */
+    @Authorized(PrivilegeConstants.VIEW_PATIENTS)
+    @Transactional(readOnly = true)
+    @Nullable Bookmark getPatientSyncHighWaterMark() throws APIException;
+
+    /** Like {@link #getObservationSyncHighWaterMark}, but for orders. */
+    @Authorized(PrivilegeConstants.VIEW_ORDERS)
+    @Transactional(readOnly = true)
+    @Nullable Bookmark getOrderSyncHighWaterMark() throws APIException;
+
+    /**
+     * Finds the root and last revision of the chain of revisions containing each of the
+     * given orders, in a fixed number of queries.
+     * @return a map from each order's ID to its chain.
+     */
+    @Authorized(PrivilegeConstants.VIEW_ORDERS)
+    @Transactional(readOnly = true)
+    Map<Integer, OrderChain> getOrderChains(Collection<Order> orders) throws APIException;
+
+    /**
+     * Streams the patients that {@link #getPatientsModifiedAtOrAfter} would return
+     * to a consumer, one at a time, without accumulating them in memory.
+     * @return the bookmark of the last patient streamed, or null if there were none.
+     */
+    @Authorized(PrivilegeConstants.VIEW_PATIENTS)
+    @Transactional(readOnly = true)
+    @Nullable Bookmark streamPatientsModifiedAtOrAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults,
+        SyncConsumer<Patient> consumer)
+        throws APIException;
+
+    /**
+     * Streams the orders that {@link #getOrdersModifiedAtOrAfter} would return
+     * to a consumer, one at a time, without accumulating them in memory.
+     * @return the bookmark of the last order streamed, or null if there were none.
+     */
+    @Authorized(PrivilegeConstants.VIEW_ORDERS)
+    @Transactional(readOnly = true)
+    @Nullable Bookmark streamOrdersModifiedAtOrAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults,
+        @Nullable Order.Action[] allowedOrderTypes, SyncConsumer<Order> consumer)
+        throws APIException;
+
+    /**
+     * Returns the exported fields of all non-voided patients, or only of those with any
+     * encounter whose observations were added, changed, or voided after touchedAfter if
+     * it is not null, read in one query without loading any patient entities.
+     */
+    @Authorized({PrivilegeConstants.VIEW_PATIENTS, PrivilegeConstants.VIEW_OBS})
+    @Transactional(readOnly = true)
+    List<ExportPatient> getExportPatients(@Nullable Bookmark touchedAfter)
+        throws APIException;
+
+    /**
+     * Returns the non-voided encounters of the given patients, ordered by patient ID and
+     * encounter time, with their non-voided observations of the given concepts.  If
+     * touchedAfter is not null, only the encounters whose observations were added,
+     * changed, or voided after it (according to the observation sync map) are returned.
+     * They are read in one query without loading any entities, so that a data export
+     * can proceed in batches of patients with bounded memory.
+     */
+    @Authorized({PrivilegeConstants.VIEW_ENCOUNTERS, PrivilegeConstants.VIEW_OBS})
+    @Transactional(readOnly = true)
+    List<ExportEncounter> getExportEncounters(Collection<Integer> patientIds,
+        @Nullable Bookmark touchedAfter, Collection<String> conceptUuids)
+        throws APIException;
+
+    /**
+     * Returns the latest non-voided observation of the given concept for each non-voided
+     * patient that has one, in one indexed query on the latest-observation table that
+     * is maintained by database triggers (see liquibase.xml).
+     */
+    @Authorized({PrivilegeConstants.VIEW_PATIENTS, PrivilegeConstants.VIEW_OBS})
+    @Transactional(readOnly = true)
+    List<Obs> getLatestObsForAllPatients(Concept concept) throws APIException;
+
+    /**
+     * Returns the non-voided encounters of the given patients, ordered by encounter
+     * time, with their observations loaded in the same query, so that a page about many
+     * patients doesn't have to read each encounter's observations separately.
+     */
+    @Authorized({PrivilegeConstants.VIEW_ENCOUNTERS, PrivilegeConstants.VIEW_OBS})
+    @Transactional(readOnly = true)
+    List<Encounter> getEncountersWithObs(Collection<Patient> patients) throws APIException;
+
+    /**
+     * Returns the non-voided observations of the given patients that belong to no
+     * encounter, ordered by observation time; these are the observations that
+     * getEncountersWithObs() doesn't return.
+     */
+    @Authorized(PrivilegeConstants.VIEW_OBS)
+    @Transactional(readOnly = true)
+    List<Obs> getObsWithoutEncounter(Collection<Patient> patients) throws APIException;
+
+    /**
+     * Returns all the orders of the given patients (including voided ones, as for
+     * OrderService.getAllOrdersByPatient), in one query.
+     */
+    @Authorized(PrivilegeConstants.VIEW_ORDERS)
+    @Transactional(readOnly = true)
+    List<Order> getAllOrdersByPatients(Collection<Patient> patients) throws APIException;
+
+    /**
+     * Returns a revision string for each of the given patients, which changes whenever
+     * the patient's record, observations, or orders are added or updated, as tracked by
+     * the sync maps.  Changes made within the same second as the latest one may leave
+     * the revision unchanged, and changes to shared data such as location, provider,
+     * or concept names don't affect it, so anything cached by revision should also expire.
+     * @return a map from patient ID to revision.
+     */
+    @Authorized({PrivilegeConstants.VIEW_PATIENTS, PrivilegeConstants.VIEW_OBS,
+        PrivilegeConstants.VIEW_ORDERS})
+    @Transactional(readOnly = true)
+    Map<Integer, String> getPatientRevisions(Collection<Integer> patientIds)
+        throws APIException;
+
+    /**
+     * Saves a new encounter and its observations in a single transaction, so that a
+     * failure partway through doesn't leave a partial encounter behind.
+     */
+    @Authorized({PrivilegeConstants.ADD_ENCOUNTERS, PrivilegeConstants.ADD_OBS})
+    Encounter saveEncounterWithObs(Encounter encounter, List<Obs> observations)
+        throws APIException;
+
+    /**
+     * Saves several new encounters and their observations in a single transaction, as
+     * for saveEncounterWithObs(); observations.get(i) holds the observations of
+     * encounters.get(i).  If any of them can't be saved, none of them are saved.
+     */
+    @Authorized({PrivilegeConstants.ADD_ENCOUNTERS, PrivilegeConstants.ADD_OBS})
+    List<Encounter> saveEncountersWithObs(List<Encounter> encounters,
+        List<List<Obs>> observations) throws APIException;
+
+    /**
+     * Returns the status recorded for a submitted XForm instance, or null if no
+     * submission with this ID has been recorded.
+     */
+    @Authorized(PrivilegeConstants.ADD_ENCOUNTERS)
+    @Transactional(readOnly = true)
+    @Nullable XformSubmissionStatus getXformSubmissionStatus(String submissionId)
+        throws APIException;
+
+    /**
+     * Records the status of a submitted XForm instance, adding it to the journal if it
+     * isn't there yet.  Each change to PENDING counts as another attempt.
+     * @param encounterId the saved encounter, if known, for a DONE submission.
+     * @param error a description of the error for a FAILED submission.
+     */
+    @Authorized(PrivilegeConstants.ADD_ENCOUNTERS)
+    void setXformSubmissionStatus(String submissionId, int patientId,
+        XformSubmissionStatus status, @Nullable Integer encounterId, @Nullable String error)
+        throws APIException;
 }
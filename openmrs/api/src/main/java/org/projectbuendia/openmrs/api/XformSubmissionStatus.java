@@ -0,0 +1,24 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.openmrs.api;
+
+/** The state of a submitted XForm instance in the buendia_xform_submission journal. */
+public enum XformSubmissionStatus {
+    /** Received and being processed (or interrupted while being processed). */
+    PENDING,
+    /** Saved; a retry of the same submission is acknowledged without saving it again. */
+    DONE,
+    /** Rejected; a retry of the same submission is processed again. */
+    FAILED
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package org.projectbuendia.openmrs.api.db;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * An encounter and its observations, with just the fields that appear in the data
+ * export, read without loading entities.
+ */
+public class ExportEncounter {
+    public final int patientId;
+    public final String uuid;
+    public final Date encounterDatetime;
+    /** The encounter's non-voided observations, in the order they were created. */
+    public final List<Value> values = new ArrayList<>();
+
+    public ExportEncounter(int patientId, String uuid, Date encounterDatetime) {
+        this.patientId = patientId;
+        this.uuid = uuid;
+        this.encounterDatetime = encounterDatetime;
+    }
+
+    /** The value of one observation. */
+    public static class Value {
+        public final String conceptUuid;
+        /** The HL7 abbreviation of the concept's datatype, e.g. "NM" or "CWE". */
+        public final String hl7Type;
+        @Nullable public final String valueCodedUuid;
+        @Nullable public final Double valueNumeric;
+        @Nullable public final String valueText;
+        /** The value of a date or datetime observation (both are stored in value_datetime). */
+        @Nullable public final Date valueDatetime;
+
+        public Value(String conceptUuid, String hl7Type, @Nullable String valueCodedUuid,
+                     @Nullable Double valueNumeric, @Nullable String valueText,
+                     @Nullable Date valueDatetime) {
+            this.conceptUuid = conceptUuid;
+            this.hl7Type = hl7Type;
+            this.valueCodedUuid = valueCodedUuid;
+            this.valueNumeric = valueNumeric;
+            this.valueText = valueText;
+            this.valueDatetime = valueDatetime;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package org.projectbuendia.openmrs.api.db;
+
+import javax.annotation.Nullable;
+import java.util.Date;
+
+/** The fields of a patient that appear in the data export, read without loading entities. */
+public class ExportPatient {
+    public final int patientId;
+    public final String uuid;
+    /** The patient's first non-voided identifier of the "MSF" type. */
+    @Nullable public final String msfIdentifier;
+    @Nullable public final Date birthdate;
+
+    public ExportPatient(int patientId, String uuid, @Nullable String msfIdentifier,
+                         @Nullable Date birthdate) {
+        this.patientId = patientId;
+        this.uuid = uuid;
+        this.msfIdentifier = msfIdentifier;
+        this.birthdate = birthdate;
+    }
+}
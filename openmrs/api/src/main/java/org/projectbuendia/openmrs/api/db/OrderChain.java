@@ -0,0 +1,31 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.openmrs.api.db;
+
+import org.openmrs.Order;
+
+/**
+ * The ends of the chain of revisions that an order belongs to.  Clients identify a
+ * chain of orders by the UUID of its root (the order with no previous order), but
+ * see the data from its last revision (the order that no other order revises).
+ */
+public class OrderChain {
+    public final String rootUuid;
+    public final Order lastRevision;
+
+    public OrderChain(String rootUuid, Order lastRevision) {
+        this.rootUuid = rootUuid;
+        this.lastRevision = lastRevision;
+    }
+}
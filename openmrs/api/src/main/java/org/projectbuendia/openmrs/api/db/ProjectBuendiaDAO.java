@@ -11,18 +11,28 @@
 
 package org.projectbuendia.openmrs.api.db;
 
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
 import org.openmrs.Obs;
 import org.openmrs.Order;
 import org.openmrs.Patient;
 import org.projectbuendia.openmrs.api.ProjectBuendiaService;
 import org.projectbuendia.openmrs.api.Bookmark;
+import org.projectbuendia.openmrs.api.XformSubmissionStatus;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
 
 import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /** Database methods for {@link ProjectBuendiaService}. */
 public interface ProjectBuendiaDAO {
     void clearCache();
 
+    /** Releases the JDBC connection of the current session, if it holds one. */
+    void releaseSessionConnection();
+
     SyncPage<Obs> getObservationsModifiedAfter(
         @Nullable Bookmark bookmark, boolean includeVoided, int maxResults);
 
@@ -32,4 +42,103 @@ public interface ProjectBuendiaDAO {
     SyncPage<Order> getOrdersModifiedAtOrAfter(
         @Nullable Bookmark bookmark, boolean includeVoided, int maxResults,
         @Nullable Order.Action[] allowedOrderTypes);
-}
\ No newline at end of file
+
+    /**
+     * Fetches the same page of observations as {@link #getObservationsModifiedAfter}, but
+     * as flat rows read in a single query, without loading any entities into the session.
+     */
+    SyncPage<ObsSyncRow> getObservationRowsModifiedAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults);
+
+    /**
+     * Streams the same rows as {@link #getObservationRowsModifiedAfter} to the consumer,
+     * returning the bookmark of the last row streamed (or null if there were none).
+     */
+    @Nullable Bookmark streamObservationRowsModifiedAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults,
+        SyncConsumer<ObsSyncRow> consumer);
+
+    /**
+     * Returns the bookmark of the most recently updated observation, patient, or order
+     * (including voided ones), or null if there are none.  Any change to the records of
+     * that type moves this mark forward.
+     */
+    @Nullable Bookmark getObservationSyncHighWaterMark();
+
+    @Nullable Bookmark getPatientSyncHighWaterMark();
+
+    @Nullable Bookmark getOrderSyncHighWaterMark();
+
+    /**
+     * Finds the ends of the revision chains containing the given orders, using a fixed
+     * number of queries regardless of the number of orders or the length of the chains.
+     * @return a map from each order's ID to its chain.
+     */
+    Map<Integer, OrderChain> getOrderChains(Collection<Order> orders);
+
+    /**
+     * Streams the same records as {@link #getPatientsModifiedAfter} to the consumer,
+     * returning the bookmark of the last record streamed (or null if there were none).
+     */
+    @Nullable Bookmark streamPatientsModifiedAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults,
+        SyncConsumer<Patient> consumer);
+
+    /**
+     * Streams the same records as {@link #getOrdersModifiedAtOrAfter} to the consumer,
+     * returning the bookmark of the last record streamed (or null if there were none).
+     */
+    @Nullable Bookmark streamOrdersModifiedAtOrAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults,
+        @Nullable Order.Action[] allowedOrderTypes, SyncConsumer<Order> consumer);
+
+    /**
+     * Reads the exported fields of all non-voided patients, or only of those with any
+     * encounter whose observations were added, changed, or voided after touchedAfter
+     * if it is not null, in one query.
+     */
+    List<ExportPatient> getExportPatients(@Nullable Bookmark touchedAfter);
+
+    /**
+     * Reads the non-voided encounters of the given patients (only those whose observations
+     * were added, changed, or voided after touchedAfter, if it is not null), with their
+     * non-voided observations of the given concepts, in one query.  The encounters are
+     * ordered by patient ID and then by encounter time.
+     */
+    List<ExportEncounter> getExportEncounters(Collection<Integer> patientIds,
+        @Nullable Bookmark touchedAfter, Collection<String> conceptUuids);
+
+    /**
+     * Reads the latest non-voided observation of the given concept for each non-voided
+     * patient from the buendia_latest_obs table.
+     */
+    List<Obs> getLatestObsForAllPatients(Concept concept);
+
+    /**
+     * Reads the non-voided encounters of the given patients, ordered by encounter time,
+     * fetching their observations in the same query.
+     */
+    List<Encounter> getEncountersWithObs(Collection<Patient> patients);
+
+    /**
+     * Reads the non-voided observations of the given patients that have no encounter,
+     * ordered by observation time.
+     */
+    List<Obs> getObsWithoutEncounter(Collection<Patient> patients);
+
+    /** Reads all the orders of the given patients, including voided ones. */
+    List<Order> getAllOrdersByPatients(Collection<Patient> patients);
+
+    /**
+     * Reads the latest update time and the number of entries of each patient's rows in
+     * the patient, observation, and order sync maps, combined into a revision string.
+     */
+    Map<Integer, String> getPatientRevisions(Collection<Integer> patientIds);
+
+    /** Reads the status of a submission in the XForm submission journal, or null. */
+    @Nullable XformSubmissionStatus getXformSubmissionStatus(String submissionId);
+
+    /** Adds or updates a submission in the XForm submission journal. */
+    void setXformSubmissionStatus(String submissionId, int patientId,
+        XformSubmissionStatus status, @Nullable Integer encounterId, @Nullable String error);
+}
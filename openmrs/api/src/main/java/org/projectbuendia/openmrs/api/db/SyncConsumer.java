@@ -0,0 +1,22 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.openmrs.api.db;
+
+/**
+ * Receives the records of a sync page one at a time, in bookmark order, as
+ * they are read from the database.  Unlike a {@link SyncPage}, the records
+ * are not accumulated in memory; each record may be detached from the
+ * Hibernate session as soon as {@link #accept} returns.
+ */
+public interface SyncConsumer<T> {
+    void accept(T item);
+}
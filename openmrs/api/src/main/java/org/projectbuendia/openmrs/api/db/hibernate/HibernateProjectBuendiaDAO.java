@@ -14,19 +14,32 @@ package org.projectbuendia.openmrs.api.db.hibernate;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
+import org.hibernate.FetchMode;
+import org.hibernate.SQLQuery;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.SessionFactory;
 import org.hibernate.classic.Session;
 import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Projections;
 import org.hibernate.type.StandardBasicTypes;
 import org.hibernate.type.Type;
 import org.openmrs.BaseOpenmrsData;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
 import org.openmrs.Obs;
 import org.openmrs.Order;
 import org.openmrs.Patient;
 import org.projectbuendia.openmrs.api.Bookmark;
+import org.projectbuendia.openmrs.api.XformSubmissionStatus;
+import org.projectbuendia.openmrs.api.db.ExportEncounter;
+import org.projectbuendia.openmrs.api.db.ExportPatient;
+import org.projectbuendia.openmrs.api.db.OrderChain;
 import org.projectbuendia.openmrs.api.db.ProjectBuendiaDAO;
+import org.projectbuendia.openmrs.api.db.SyncConsumer;
 import org.projectbuendia.openmrs.api.db.SyncPage;
 import org.projectbuendia.openmrs.sync.ObsSyncParameters;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
 import org.projectbuendia.openmrs.sync.OrderSyncParameters;
 import org.projectbuendia.openmrs.sync.PatientSyncParameters;
 import org.projectbuendia.openmrs.sync.SyncParameters;
@@ -34,17 +47,153 @@ import org.projectbuendia.openmrs.sync.SyncParameters;
 import javax.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.hibernate.criterion.Order.asc;
+import static org.hibernate.criterion.Order.desc;
 import static org.hibernate.criterion.Restrictions.eq;
 import static org.hibernate.criterion.Restrictions.in;
+import static org.hibernate.criterion.Restrictions.isNull;
 import static org.hibernate.criterion.Restrictions.sqlRestriction;
 
 /** Default implementation of {@link ProjectBuendiaDAO}. */
 public class HibernateProjectBuendiaDAO implements ProjectBuendiaDAO {
     protected final Log log = LogFactory.getLog(this.getClass());
 
+    /** Number of rows the JDBC driver is asked to fetch at a time when streaming. */
+    private static final int STREAMING_FETCH_SIZE = 50;
+
+    /**
+     * Reads everything that ObsUtils.putObsAsJson() needs for a sync page of observations in
+     * one query.  The provider is the encounter's first provider; the order is the one that
+     * the observation refers to directly, which getRootOrderUuids() then resolves.
+     */
+    private static final String OBS_ROW_QUERY = "SELECT"
+        + " m.date_updated AS sync_time, m.uuid AS sync_uuid,"
+        + " o.uuid AS uuid, o.voided AS voided,"
+        + " e.uuid AS encounter_uuid, pe.uuid AS patient_uuid,"
+        + " (SELECT pr.uuid FROM encounter_provider ep"
+        + "   JOIN provider pr ON pr.provider_id = ep.provider_id"
+        + "   WHERE ep.encounter_id = o.encounter_id"
+        + "   ORDER BY ep.encounter_provider_id LIMIT 1) AS provider_uuid,"
+        + " c.uuid AS concept_uuid, cd.hl7_abbreviation AS hl7_type,"
+        + " o.obs_datetime AS obs_datetime, o.order_id AS order_id,"
+        + " vc.uuid AS value_coded_uuid, o.value_numeric AS value_numeric,"
+        + " o.value_text AS value_text, o.value_datetime AS value_datetime"
+        + " FROM buendia_obs_sync_map m"
+        + " JOIN obs o ON o.obs_id = m.obs_id"
+        + " JOIN concept c ON c.concept_id = o.concept_id"
+        + " JOIN concept_datatype cd ON cd.concept_datatype_id = c.datatype_id"
+        + " LEFT JOIN encounter e ON e.encounter_id = o.encounter_id"
+        + " LEFT JOIN person pe ON pe.person_id = o.person_id"
+        + " LEFT JOIN concept vc ON vc.concept_id = o.value_coded";
+
+    private static final String[] OBS_ROW_COLUMNS = {
+        "sync_time", "sync_uuid", "uuid", "voided", "encounter_uuid", "patient_uuid",
+        "provider_uuid", "concept_uuid", "hl7_type", "obs_datetime", "order_id",
+        "value_coded_uuid", "value_numeric", "value_text", "value_datetime"
+    };
+
+    private static final Type[] OBS_ROW_TYPES = {
+        StandardBasicTypes.TIMESTAMP, StandardBasicTypes.STRING, StandardBasicTypes.STRING,
+        StandardBasicTypes.BOOLEAN, StandardBasicTypes.STRING, StandardBasicTypes.STRING,
+        StandardBasicTypes.STRING, StandardBasicTypes.STRING, StandardBasicTypes.STRING,
+        StandardBasicTypes.TIMESTAMP, StandardBasicTypes.INTEGER, StandardBasicTypes.STRING,
+        StandardBasicTypes.DOUBLE, StandardBasicTypes.STRING, StandardBasicTypes.TIMESTAMP
+    };
+
+    /** Reads the exported fields of every non-voided patient; see getExportPatients(). */
+    private static final String EXPORT_PATIENT_QUERY = "SELECT"
+        + " p.patient_id AS patient_id, pe.uuid AS uuid, pe.birthdate AS birthdate,"
+        // Matches Patient.getPatientIdentifier("MSF"), which prefers preferred identifiers.
+        + " (SELECT pi.identifier FROM patient_identifier pi"
+        + "   JOIN patient_identifier_type pit"
+        + "     ON pit.patient_identifier_type_id = pi.identifier_type"
+        + "   WHERE pi.patient_id = p.patient_id AND pi.voided = 0 AND pit.name = 'MSF'"
+        + "   ORDER BY pi.preferred DESC, pi.patient_identifier_id LIMIT 1) AS msf_identifier"
+        + " FROM patient p"
+        + " JOIN person pe ON pe.person_id = p.patient_id"
+        + " WHERE p.voided = 0";
+
+    /**
+     * Restricts EXPORT_PATIENT_QUERY to the patients with any encounter whose observations
+     * appear in the observation sync map after a bookmark.
+     */
+    private static final String EXPORT_PATIENT_TOUCHED_CONDITION = " AND p.patient_id IN"
+        + " (SELECT e.patient_id FROM buendia_obs_sync_map m"
+        + "   JOIN obs o ON o.obs_id = m.obs_id"
+        + "   JOIN encounter e ON e.encounter_id = o.encounter_id"
+        + "   WHERE (m.date_updated, m.uuid) > (:minTime, :minUuid))";
+
+    /**
+     * Reads the non-voided encounters of a batch of patients, each joined with its
+     * non-voided observations of the exported concepts; see getExportEncounters().
+     */
+    private static final String EXPORT_ENCOUNTER_QUERY = "SELECT"
+        + " e.patient_id AS patient_id, e.encounter_id AS encounter_id, e.uuid AS uuid,"
+        + " e.encounter_datetime AS encounter_datetime,"
+        + " c.uuid AS concept_uuid, cd.hl7_abbreviation AS hl7_type,"
+        + " vc.uuid AS value_coded_uuid, o.value_numeric AS value_numeric,"
+        + " o.value_text AS value_text, o.value_datetime AS value_datetime"
+        + " FROM encounter e"
+        + " LEFT JOIN (obs o"
+        + "   JOIN concept c ON c.concept_id = o.concept_id AND c.uuid IN (:conceptUuids)"
+        + "   JOIN concept_datatype cd ON cd.concept_datatype_id = c.datatype_id"
+        + "   LEFT JOIN concept vc ON vc.concept_id = o.value_coded)"
+        + " ON o.encounter_id = e.encounter_id AND o.voided = 0"
+        + " WHERE e.voided = 0 AND e.patient_id IN (:patientIds)";
+
+    /**
+     * Restricts EXPORT_ENCOUNTER_QUERY to the encounters whose observations appear in the
+     * observation sync map after a bookmark.  The map is only searched for the patients
+     * of the batch, so each batch reads no more of it than concerns its own patients.
+     */
+    private static final String EXPORT_ENCOUNTER_TOUCHED_CONDITION = " AND e.encounter_id IN"
+        + " (SELECT mo.encounter_id FROM buendia_obs_sync_map m"
+        + "   JOIN obs mo ON mo.obs_id = m.obs_id"
+        + "   WHERE mo.person_id IN (:patientIds)"
+        + "   AND (m.date_updated, m.uuid) > (:minTime, :minUuid))";
+
+    private static final String EXPORT_ENCOUNTER_ORDER =
+        " ORDER BY e.patient_id, e.encounter_datetime, e.encounter_id, o.obs_id";
+
+    /**
+     * Reads the latest observation of a concept for every non-voided patient, from the
+     * table maintained by the buendia_latest_obs_* triggers; see getLatestObsForAllPatients().
+     */
+    private static final String LATEST_OBS_QUERY = "SELECT {o.*}"
+        + " FROM buendia_latest_obs l"
+        + " JOIN obs o ON o.obs_id = l.obs_id"
+        + " JOIN patient p ON p.patient_id = l.person_id AND p.voided = 0"
+        + " WHERE l.concept_id = :conceptId";
+
+    /**
+     * Summarizes each patient's rows in the three sync maps by their latest update time
+     * and their number; see getPatientRevisions().
+     */
+    private static final String PATIENT_REVISION_QUERY = "SELECT p.patient_id AS patient_id,"
+        + " CONCAT("
+        + "  (SELECT CONCAT(IFNULL(MAX(m.date_updated), ''), '/', COUNT(*))"
+        + "   FROM buendia_patient_sync_map m WHERE m.patient_id = p.patient_id), ',',"
+        + "  (SELECT CONCAT(IFNULL(MAX(m.date_updated), ''), '/', COUNT(*))"
+        + "   FROM buendia_obs_sync_map m JOIN obs o ON o.obs_id = m.obs_id"
+        + "   WHERE o.person_id = p.patient_id), ',',"
+        + "  (SELECT CONCAT(IFNULL(MAX(m.date_updated), ''), '/', COUNT(*))"
+        + "   FROM buendia_order_sync_map m JOIN orders o ON o.order_id = m.order_id"
+        + "   WHERE o.patient_id = p.patient_id)"
+        + " ) AS revision"
+        + " FROM patient p WHERE p.patient_id IN (:patientIds)";
+
+    /** The size of the error column in buendia_xform_submission. */
+    private static final int MAX_SUBMISSION_ERROR_LENGTH = 1024;
+
     private SessionFactory sessionFactory;
 
     /** @return the sessionFactory */
@@ -61,6 +210,14 @@ public class HibernateProjectBuendiaDAO implements ProjectBuendiaDAO {
         sessionFactory.getCache().evictEntityRegions();
     }
 
+    @Override
+    public void releaseSessionConnection() {
+        Session session = sessionFactory.getCurrentSession();
+        // For connections that Hibernate obtained itself, this closes the connection
+        // (returning it to the pool), and the session opens another when next used.
+        if (session.isConnected()) session.disconnect();
+    }
+
     @Override
     public SyncPage<Obs> getObservationsModifiedAfter(
         @Nullable Bookmark bookmark, boolean includeVoided, int maxResults) {
@@ -94,6 +251,431 @@ public class HibernateProjectBuendiaDAO implements ProjectBuendiaDAO {
             bookmark, itemFilter, includeVoided, maxResults);
     }
 
+    @Override
+    public SyncPage<ObsSyncRow> getObservationRowsModifiedAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults) {
+        final List<ObsSyncRow> rows = new ArrayList<>();
+        Bookmark last = streamObservationRowsModifiedAfter(
+            bookmark, includeVoided, maxResults, new SyncConsumer<ObsSyncRow>() {
+                @Override public void accept(ObsSyncRow row) {
+                    rows.add(row);
+                }
+            });
+        return new SyncPage<>(rows, last);
+    }
+
+    @Override
+    public @Nullable Bookmark streamObservationRowsModifiedAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults,
+        SyncConsumer<ObsSyncRow> consumer) {
+        Session session = sessionFactory.getCurrentSession();
+        StringBuilder sql = new StringBuilder(OBS_ROW_QUERY);
+        List<String> conditions = new ArrayList<>();
+        if (bookmark != null) {
+            conditions.add("(m.date_updated, m.uuid) > (?, ?)");
+        }
+        if (!includeVoided) {
+            conditions.add("o.voided = 0");
+        }
+        for (int i = 0; i < conditions.size(); i++) {
+            sql.append(i == 0 ? " WHERE " : " AND ").append(conditions.get(i));
+        }
+        sql.append(" ORDER BY m.date_updated, m.uuid");
+
+        SQLQuery query = session.createSQLQuery(sql.toString());
+        query.addSynchronizedEntityClass(Obs.class);
+        for (int i = 0; i < OBS_ROW_COLUMNS.length; i++) {
+            query.addScalar(OBS_ROW_COLUMNS[i], OBS_ROW_TYPES[i]);
+        }
+        if (bookmark != null) {
+            query.setTimestamp(0, bookmark.minTime);
+            // As in createSyncCriteria(), a null minUuid sorts before every other UUID.
+            query.setString(1, bookmark.minUuid == null ? "" : bookmark.minUuid);
+        }
+        if (maxResults > 0) {
+            query.setMaxResults(maxResults);
+        }
+        // As in streamSyncPage(), see the note there about Connector/J buffering.
+        query.setFetchSize(STREAMING_FETCH_SIZE);
+
+        // Root orders are resolved a chunk at a time, so that neither the rows nor the
+        // order links held in memory grow with the page size.
+        List<Object[]> chunk = new ArrayList<>(STREAMING_FETCH_SIZE);
+        Bookmark last = null;
+        ScrollableResults cursor = query.scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            while (cursor.next()) {
+                Object[] t = cursor.get();
+                chunk.add(t);
+                last = new Bookmark((Date) t[0], (String) t[1]);
+                if (chunk.size() >= STREAMING_FETCH_SIZE) {
+                    emitObsRows(session, chunk, consumer);
+                    chunk.clear();
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        emitObsRows(session, chunk, consumer);
+        return last;
+    }
+
+    /** Resolves the root orders of a chunk of OBS_ROW_QUERY tuples and emits their rows. */
+    private void emitObsRows(
+        Session session, List<Object[]> tuples, SyncConsumer<ObsSyncRow> consumer) {
+        Set<Integer> orderIds = new HashSet<>();
+        for (Object[] tuple : tuples) {
+            if (tuple[10] != null) orderIds.add((Integer) tuple[10]);
+        }
+        Map<Integer, String> rootOrderUuids = getRootOrderUuids(session, orderIds);
+        for (Object[] t : tuples) {
+            consumer.accept(new ObsSyncRow(
+                (String) t[2], Boolean.TRUE.equals(t[3]), (String) t[4], (String) t[5],
+                (String) t[6], (String) t[7], (String) t[8], (Date) t[9],
+                t[10] == null ? null : rootOrderUuids.get(t[10]),
+                (String) t[11], (Double) t[12], (String) t[13], (Date) t[14]));
+        }
+    }
+
+    @Override
+    public @Nullable Bookmark getObservationSyncHighWaterMark() {
+        return getHighWaterMark(ObsSyncParameters.class);
+    }
+
+    @Override
+    public @Nullable Bookmark getPatientSyncHighWaterMark() {
+        return getHighWaterMark(PatientSyncParameters.class);
+    }
+
+    @Override
+    public @Nullable Bookmark getOrderSyncHighWaterMark() {
+        return getHighWaterMark(OrderSyncParameters.class);
+    }
+
+    /** Reads the last entry in a sync map, which the pagination index makes cheap. */
+    private @Nullable Bookmark getHighWaterMark(Class<? extends SyncParameters> clazz) {
+        Object[] last = (Object[]) sessionFactory.getCurrentSession().createCriteria(clazz)
+            .setProjection(Projections.projectionList()
+                .add(Projections.property("dateUpdated"))
+                .add(Projections.property("uuid")))
+            .addOrder(desc("dateUpdated"))
+            .addOrder(desc("uuid"))
+            .setMaxResults(1)
+            .uniqueResult();
+        return last == null ? null : new Bookmark((Date) last[0], (String) last[1]);
+    }
+
+    @Override
+    public Map<Integer, OrderChain> getOrderChains(Collection<Order> orders) {
+        Map<Integer, OrderChain> chains = new HashMap<>();
+        if (orders.isEmpty()) return chains;
+        Session session = sessionFactory.getCurrentSession();
+        Set<Integer> orderIds = new HashSet<>();
+        for (Order order : orders) {
+            orderIds.add(order.getOrderId());
+        }
+        OrderLinks links = loadOrderLinks(session, orderIds);
+
+        Map<Integer, Integer> lastRevisionIds = new HashMap<>();
+        for (Integer id : orderIds) {
+            lastRevisionIds.put(id, links.getLastRevisionId(id));
+        }
+        //noinspection unchecked
+        List<Order> lastRevisions = session.createCriteria(Order.class)
+            .add(in("orderId", new HashSet<>(lastRevisionIds.values())))
+            .list();
+        Map<Integer, Order> ordersById = new HashMap<>();
+        for (Order order : lastRevisions) {
+            ordersById.put(order.getOrderId(), order);
+        }
+        for (Integer id : orderIds) {
+            chains.put(id, new OrderChain(
+                links.uuids.get(links.getRootId(id)), ordersById.get(lastRevisionIds.get(id))));
+        }
+        return chains;
+    }
+
+    /** Finds the UUID of the root of the order chain containing each of the given orders. */
+    private Map<Integer, String> getRootOrderUuids(Session session, Set<Integer> orderIds) {
+        Map<Integer, String> rootUuids = new HashMap<>();
+        if (orderIds.isEmpty()) return rootUuids;
+        OrderLinks links = loadOrderLinks(session, orderIds);
+        for (Integer id : orderIds) {
+            rootUuids.put(id, links.uuids.get(links.getRootId(id)));
+        }
+        return rootUuids;
+    }
+
+    /**
+     * Loads the previous-order links of every order belonging to the patients of the given
+     * orders in a single query.  Revisions always stay with the same patient, so this covers
+     * the entire chain of each order, which can then be walked in memory.
+     */
+    private OrderLinks loadOrderLinks(Session session, Set<Integer> orderIds) {
+        //noinspection unchecked
+        List<Object[]> tuples = session.createSQLQuery(
+            "SELECT order_id, previous_order_id, uuid FROM orders WHERE patient_id IN"
+                + " (SELECT patient_id FROM orders WHERE order_id IN (:ids))")
+            // Ensures that orders saved earlier in this session are flushed first.
+            .addSynchronizedEntityClass(Order.class)
+            .addScalar("order_id", StandardBasicTypes.INTEGER)
+            .addScalar("previous_order_id", StandardBasicTypes.INTEGER)
+            .addScalar("uuid", StandardBasicTypes.STRING)
+            .setParameterList("ids", orderIds)
+            .list();
+        OrderLinks links = new OrderLinks();
+        for (Object[] tuple : tuples) {
+            Integer id = (Integer) tuple[0];
+            Integer previousId = (Integer) tuple[1];
+            links.uuids.put(id, (String) tuple[2]);
+            if (previousId != null) {
+                links.previousIds.put(id, previousId);
+                // If an order has been revised more than once, follow the newest revision.
+                Integer nextId = links.nextIds.get(previousId);
+                if (nextId == null || nextId < id) {
+                    links.nextIds.put(previousId, id);
+                }
+            }
+        }
+        return links;
+    }
+
+    /** The links between the orders in one or more revision chains. */
+    private static class OrderLinks {
+        final Map<Integer, Integer> previousIds = new HashMap<>();
+        final Map<Integer, Integer> nextIds = new HashMap<>();
+        final Map<Integer, String> uuids = new HashMap<>();
+
+        int getRootId(int id) {
+            return follow(previousIds, id);
+        }
+
+        int getLastRevisionId(int id) {
+            return follow(nextIds, id);
+        }
+
+        private int follow(Map<Integer, Integer> links, int id) {
+            // Bound the walk by the number of links, in case the data contains a cycle.
+            for (int i = 0; i <= links.size() && links.containsKey(id); i++) {
+                id = links.get(id);
+            }
+            return id;
+        }
+    }
+
+    @Override
+    public @Nullable Bookmark streamPatientsModifiedAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults,
+        SyncConsumer<Patient> consumer) {
+        //noinspection unchecked
+        return streamSyncPage(
+                (Class<SyncParameters<Patient>>) (Class<?>) PatientSyncParameters.class,
+            bookmark, null, includeVoided, maxResults, consumer);
+    }
+
+    @Override
+    public @Nullable Bookmark streamOrdersModifiedAtOrAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults,
+        @Nullable Order.Action[] allowedOrderTypes, SyncConsumer<Order> consumer) {
+
+        final Criterion itemFilter = allowedOrderTypes != null
+                ? in("action", allowedOrderTypes)
+                : null;
+
+        //noinspection unchecked
+        return streamSyncPage(
+                (Class<SyncParameters<Order>>)(Class<?>) OrderSyncParameters.class,
+            bookmark, itemFilter, includeVoided, maxResults, consumer);
+    }
+
+    @Override
+    public List<ExportPatient> getExportPatients(@Nullable Bookmark touchedAfter) {
+        Session session = sessionFactory.getCurrentSession();
+        SQLQuery query = session.createSQLQuery(touchedAfter == null ? EXPORT_PATIENT_QUERY
+            : EXPORT_PATIENT_QUERY + EXPORT_PATIENT_TOUCHED_CONDITION);
+        query.addSynchronizedEntityClass(Patient.class)
+            .addSynchronizedEntityClass(Obs.class)
+            .addScalar("patient_id", StandardBasicTypes.INTEGER)
+            .addScalar("uuid", StandardBasicTypes.STRING)
+            .addScalar("msf_identifier", StandardBasicTypes.STRING)
+            .addScalar("birthdate", StandardBasicTypes.DATE);
+        if (touchedAfter != null) {
+            setBookmarkParameters(query, touchedAfter);
+        }
+        //noinspection unchecked
+        List<Object[]> tuples = query.list();
+        List<ExportPatient> patients = new ArrayList<>(tuples.size());
+        for (Object[] t : tuples) {
+            patients.add(new ExportPatient(
+                (Integer) t[0], (String) t[1], (String) t[2], (Date) t[3]));
+        }
+        return patients;
+    }
+
+    @Override
+    public List<ExportEncounter> getExportEncounters(Collection<Integer> patientIds,
+        @Nullable Bookmark touchedAfter, Collection<String> conceptUuids) {
+        List<ExportEncounter> encounters = new ArrayList<>();
+        if (patientIds.isEmpty()) return encounters;
+        Session session = sessionFactory.getCurrentSession();
+        SQLQuery query = session.createSQLQuery(EXPORT_ENCOUNTER_QUERY
+            + (touchedAfter != null ? EXPORT_ENCOUNTER_TOUCHED_CONDITION : "")
+            + EXPORT_ENCOUNTER_ORDER);
+        if (touchedAfter != null) {
+            setBookmarkParameters(query, touchedAfter);
+        }
+        //noinspection unchecked
+        List<Object[]> tuples = query
+            .addSynchronizedEntityClass(Encounter.class)
+            .addSynchronizedEntityClass(Obs.class)
+            .addScalar("patient_id", StandardBasicTypes.INTEGER)
+            .addScalar("encounter_id", StandardBasicTypes.INTEGER)
+            .addScalar("uuid", StandardBasicTypes.STRING)
+            .addScalar("encounter_datetime", StandardBasicTypes.TIMESTAMP)
+            .addScalar("concept_uuid", StandardBasicTypes.STRING)
+            .addScalar("hl7_type", StandardBasicTypes.STRING)
+            .addScalar("value_coded_uuid", StandardBasicTypes.STRING)
+            .addScalar("value_numeric", StandardBasicTypes.DOUBLE)
+            .addScalar("value_text", StandardBasicTypes.STRING)
+            .addScalar("value_datetime", StandardBasicTypes.TIMESTAMP)
+            .setParameterList("patientIds", patientIds)
+            // An empty IN list is a syntax error; no concept has an empty UUID.
+            .setParameterList("conceptUuids", conceptUuids.isEmpty()
+                ? Collections.singleton("") : conceptUuids)
+            .list();
+
+        // The rows come grouped by encounter, with one row per observation, or a
+        // single row with null observation fields for an encounter with none.
+        ExportEncounter encounter = null;
+        Integer encounterId = null;
+        for (Object[] t : tuples) {
+            if (!t[1].equals(encounterId)) {
+                encounterId = (Integer) t[1];
+                encounter = new ExportEncounter((Integer) t[0], (String) t[2], (Date) t[3]);
+                encounters.add(encounter);
+            }
+            if (t[4] != null) {
+                encounter.values.add(new ExportEncounter.Value(
+                    (String) t[4], (String) t[5], (String) t[6],
+                    (Double) t[7], (String) t[8], (Date) t[9]));
+            }
+        }
+        return encounters;
+    }
+
+    /** Sets the :minTime and :minUuid parameters of a query to a bookmark's position. */
+    private static void setBookmarkParameters(SQLQuery query, Bookmark bookmark) {
+        query.setTimestamp("minTime", bookmark.minTime);
+        // As in createSyncCriteria(), a null minUuid sorts before every other UUID.
+        query.setString("minUuid", bookmark.minUuid == null ? "" : bookmark.minUuid);
+    }
+
+    @Override
+    public List<Obs> getLatestObsForAllPatients(Concept concept) {
+        Session session = sessionFactory.getCurrentSession();
+        SQLQuery query = session.createSQLQuery(LATEST_OBS_QUERY);
+        // Because the query returns Obs entities, Hibernate flushes any pending changes
+        // to obs first, so the triggers have brought the table up to date.
+        query.addEntity("o", Obs.class)
+            .addSynchronizedEntityClass(Patient.class)
+            .setInteger("conceptId", concept.getConceptId());
+        //noinspection unchecked
+        return query.list();
+    }
+
+    @Override
+    public List<Encounter> getEncountersWithObs(Collection<Patient> patients) {
+        if (patients.isEmpty()) return new ArrayList<>();
+        //noinspection unchecked
+        return sessionFactory.getCurrentSession().createCriteria(Encounter.class)
+            .add(in("patient", patients))
+            .add(eq("voided", false))
+            .setFetchMode("obs", FetchMode.JOIN)
+            // The join yields a row per observation; keep one copy of each encounter.
+            .setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY)
+            .addOrder(asc("encounterDatetime"))
+            .addOrder(asc("encounterId"))
+            .list();
+    }
+
+    @Override
+    public List<Obs> getObsWithoutEncounter(Collection<Patient> patients) {
+        if (patients.isEmpty()) return new ArrayList<>();
+        //noinspection unchecked
+        return sessionFactory.getCurrentSession().createCriteria(Obs.class)
+            .add(in("person", patients))
+            .add(isNull("encounter"))
+            .add(eq("voided", false))
+            .addOrder(asc("obsDatetime"))
+            .addOrder(asc("obsId"))
+            .list();
+    }
+
+    @Override
+    public Map<Integer, String> getPatientRevisions(Collection<Integer> patientIds) {
+        Map<Integer, String> revisions = new HashMap<>();
+        if (patientIds.isEmpty()) return revisions;
+        SQLQuery query = sessionFactory.getCurrentSession().createSQLQuery(PATIENT_REVISION_QUERY);
+        query.addSynchronizedEntityClass(Patient.class)
+            .addSynchronizedEntityClass(Obs.class)
+            .addSynchronizedEntityClass(Order.class)
+            .addScalar("patient_id", StandardBasicTypes.INTEGER)
+            .addScalar("revision", StandardBasicTypes.STRING)
+            .setParameterList("patientIds", patientIds);
+        //noinspection unchecked
+        for (Object[] t : (List<Object[]>) query.list()) {
+            revisions.put((Integer) t[0], (String) t[1]);
+        }
+        return revisions;
+    }
+
+    @Override
+    public @Nullable XformSubmissionStatus getXformSubmissionStatus(String submissionId) {
+        Object status = sessionFactory.getCurrentSession().createSQLQuery(
+            "SELECT status FROM buendia_xform_submission WHERE submission_id = :submissionId")
+            .setParameter("submissionId", submissionId)
+            .uniqueResult();
+        return status != null ? XformSubmissionStatus.valueOf(status.toString()) : null;
+    }
+
+    @Override
+    public void setXformSubmissionStatus(String submissionId, int patientId,
+        XformSubmissionStatus status, @Nullable Integer encounterId, @Nullable String error) {
+        Session session = sessionFactory.getCurrentSession();
+        int attempt = status == XformSubmissionStatus.PENDING ? 1 : 0;
+        if (error != null && error.length() > MAX_SUBMISSION_ERROR_LENGTH) {
+            error = error.substring(0, MAX_SUBMISSION_ERROR_LENGTH);
+        }
+        // One statement, so that two requests recording the same new submission at
+        // once can't both find no row and then both try to insert one.
+        session.createSQLQuery("INSERT INTO buendia_xform_submission"
+            + " (submission_id, patient_id, status, encounter_id, error, attempts,"
+            + " date_created) VALUES (:submissionId, :patientId, :status, :encounterId,"
+            + " :error, :attempt, :now)"
+            + " ON DUPLICATE KEY UPDATE status = VALUES(status),"
+            + " encounter_id = VALUES(encounter_id), error = VALUES(error),"
+            + " attempts = attempts + VALUES(attempts), date_changed = VALUES(date_created)")
+            .setParameter("submissionId", submissionId)
+            .setParameter("patientId", patientId)
+            .setParameter("status", status.name())
+            .setParameter("encounterId", encounterId, StandardBasicTypes.INTEGER)
+            .setParameter("error", error, StandardBasicTypes.STRING)
+            .setParameter("attempt", attempt)
+            .setParameter("now", new Date(), StandardBasicTypes.TIMESTAMP)
+            .executeUpdate();
+    }
+
+    @Override
+    public List<Order> getAllOrdersByPatients(Collection<Patient> patients) {
+        if (patients.isEmpty()) return new ArrayList<>();
+        //noinspection unchecked
+        return sessionFactory.getCurrentSession().createCriteria(Order.class)
+            .add(in("patient", patients))
+            .addOrder(asc("dateCreated"))
+            .addOrder(asc("orderId"))
+            .list();
+    }
+
 
     private <T extends BaseOpenmrsData> SyncPage<T> fetchSyncPage(
         Class<SyncParameters<T>> clazz, @Nullable Bookmark bookmark, Criterion restriction,
@@ -105,11 +687,53 @@ public class HibernateProjectBuendiaDAO implements ProjectBuendiaDAO {
 
     }
 
+    /**
+     * Reads a sync page through a forward-only cursor, handing each record to the consumer
+     * and then evicting it from the session, so that the number of records held in memory
+     * does not grow with the page size.
+     */
+    private <T extends BaseOpenmrsData> Bookmark streamSyncPage(
+        Class<SyncParameters<T>> clazz, @Nullable Bookmark bookmark, Criterion restriction,
+        boolean includeVoided, int maxResults, SyncConsumer<T> consumer) {
+        Session session = sessionFactory.getCurrentSession();
+        Criteria criteria = createSyncCriteria(
+                session, clazz, bookmark, restriction, includeVoided, maxResults);
+        // Note that MySQL Connector/J still buffers the (small) sync map rows on the client
+        // unless the connection uses useCursorFetch=true; what we avoid here is hydrating
+        // and retaining a whole page of entities at once.
+        criteria.setFetchSize(STREAMING_FETCH_SIZE);
+
+        Bookmark last = null;
+        ScrollableResults cursor = criteria.scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            while (cursor.next()) {
+                //noinspection unchecked
+                SyncParameters<T> params = (SyncParameters<T>) cursor.get(0);
+                T item = params.getItem();
+                consumer.accept(item);
+                last = new Bookmark(params.getDateUpdated(), params.getUuid());
+                session.evict(params);
+                session.evict(item);
+            }
+        } finally {
+            cursor.close();
+        }
+        return last;
+    }
+
     private <T extends SyncParameters> List<T> fetchResults(
             Class<T> clazz, @Nullable Bookmark bookmark,
             @Nullable Criterion restriction, boolean includeVoided, int maxResults) {
         Session session = sessionFactory.getCurrentSession();
+        //noinspection unchecked
+        return createSyncCriteria(
+                session, clazz, bookmark, restriction, includeVoided, maxResults).list();
+    }
 
+    /** Builds the query for one page of records after the bookmark, in bookmark order. */
+    private Criteria createSyncCriteria(
+            Session session, Class<?> clazz, @Nullable Bookmark bookmark,
+            @Nullable Criterion restriction, boolean includeVoided, int maxResults) {
         Criteria criteria = session.createCriteria(clazz);
 
         if (bookmark != null) {
@@ -142,9 +766,7 @@ public class HibernateProjectBuendiaDAO implements ProjectBuendiaDAO {
         if (maxResults > 0) {
             criteria.setMaxResults(maxResults);
         }
-
-        //noinspection unchecked
-        return criteria.list();
+        return criteria;
     }
 
     private <T extends BaseOpenmrsData> SyncPage<T> resultsToSyncPage(
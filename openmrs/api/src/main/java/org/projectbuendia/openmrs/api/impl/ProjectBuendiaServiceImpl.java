@@ -13,17 +13,31 @@ package org.projectbuendia.openmrs.api.impl;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
 import org.openmrs.Obs;
 import org.openmrs.Order;
 import org.openmrs.Patient;
 import org.openmrs.api.APIException;
+import org.openmrs.api.ObsService;
+import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.projectbuendia.openmrs.api.Bookmark;
 import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.projectbuendia.openmrs.api.XformSubmissionStatus;
+import org.projectbuendia.openmrs.api.db.ExportEncounter;
+import org.projectbuendia.openmrs.api.db.ExportPatient;
+import org.projectbuendia.openmrs.api.db.OrderChain;
 import org.projectbuendia.openmrs.api.db.ProjectBuendiaDAO;
+import org.projectbuendia.openmrs.api.db.SyncConsumer;
 import org.projectbuendia.openmrs.api.db.SyncPage;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
 
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /** It is a default implementation of {@link ProjectBuendiaService}. */
 public class ProjectBuendiaServiceImpl extends BaseOpenmrsService implements ProjectBuendiaService {
@@ -41,12 +55,31 @@ public class ProjectBuendiaServiceImpl extends BaseOpenmrsService implements Pro
         if (dao != null) dao.clearCache();
     }
 
+    @Override
+    public void releaseSessionConnection() {
+        dao.releaseSessionConnection();
+    }
+
     @Override
     public SyncPage<Obs> getObservationsModifiedAtOrAfter(
         @Nullable Bookmark bookmark, boolean includeVoided, int maxResults) throws APIException {
         return dao.getObservationsModifiedAfter(bookmark, includeVoided, maxResults);
     }
 
+    @Override
+    public SyncPage<ObsSyncRow> getObservationRowsModifiedAtOrAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults) throws APIException {
+        return dao.getObservationRowsModifiedAfter(bookmark, includeVoided, maxResults);
+    }
+
+    @Override
+    public @Nullable Bookmark streamObservationRowsModifiedAtOrAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults,
+        SyncConsumer<ObsSyncRow> consumer) throws APIException {
+        return dao.streamObservationRowsModifiedAfter(
+            bookmark, includeVoided, maxResults, consumer);
+    }
+
     @Override
     public SyncPage<Patient> getPatientsModifiedAtOrAfter(
         @Nullable Bookmark bookmark, boolean includeVoided, int maxResults) throws APIException {
@@ -60,4 +93,116 @@ public class ProjectBuendiaServiceImpl extends BaseOpenmrsService implements Pro
         return dao.getOrdersModifiedAtOrAfter(
             bookmark, includeVoided, maxResults, allowedOrderTypes);
     }
+
+    @Override
+    public @Nullable Bookmark getObservationSyncHighWaterMark() throws APIException {
+        return dao.getObservationSyncHighWaterMark();
+    }
+
+    @Override
+    public @Nullable Bookmark getPatientSyncHighWaterMark() throws APIException {
+        return dao.getPatientSyncHighWaterMark();
+    }
+
+    @Override
+    public @Nullable Bookmark getOrderSyncHighWaterMark() throws APIException {
+        return dao.getOrderSyncHighWaterMark();
+    }
+
+    @Override
+    public Map<Integer, OrderChain> getOrderChains(Collection<Order> orders) throws APIException {
+        return dao.getOrderChains(orders);
+    }
+
+    @Override
+    public @Nullable Bookmark streamPatientsModifiedAtOrAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults,
+        SyncConsumer<Patient> consumer) throws APIException {
+        return dao.streamPatientsModifiedAfter(bookmark, includeVoided, maxResults, consumer);
+    }
+
+    @Override
+    public @Nullable Bookmark streamOrdersModifiedAtOrAfter(
+        @Nullable Bookmark bookmark, boolean includeVoided, int maxResults,
+        @Nullable Order.Action[] allowedOrderTypes, SyncConsumer<Order> consumer)
+        throws APIException {
+        return dao.streamOrdersModifiedAtOrAfter(
+            bookmark, includeVoided, maxResults, allowedOrderTypes, consumer);
+    }
+
+    @Override
+    public List<ExportPatient> getExportPatients(@Nullable Bookmark touchedAfter)
+        throws APIException {
+        return dao.getExportPatients(touchedAfter);
+    }
+
+    @Override
+    public List<ExportEncounter> getExportEncounters(Collection<Integer> patientIds,
+        @Nullable Bookmark touchedAfter, Collection<String> conceptUuids)
+        throws APIException {
+        return dao.getExportEncounters(patientIds, touchedAfter, conceptUuids);
+    }
+
+    @Override
+    public List<Obs> getLatestObsForAllPatients(Concept concept) throws APIException {
+        return dao.getLatestObsForAllPatients(concept);
+    }
+
+    @Override
+    public List<Encounter> getEncountersWithObs(Collection<Patient> patients)
+        throws APIException {
+        return dao.getEncountersWithObs(patients);
+    }
+
+    @Override
+    public List<Obs> getObsWithoutEncounter(Collection<Patient> patients) throws APIException {
+        return dao.getObsWithoutEncounter(patients);
+    }
+
+    @Override
+    public List<Order> getAllOrdersByPatients(Collection<Patient> patients)
+        throws APIException {
+        return dao.getAllOrdersByPatients(patients);
+    }
+
+    @Override
+    public Encounter saveEncounterWithObs(Encounter encounter, List<Obs> observations)
+        throws APIException {
+        encounter = Context.getEncounterService().saveEncounter(encounter);
+        ObsService obsService = Context.getObsService();
+        for (Obs obs : observations) {
+            encounter.addObs(obs);
+            obsService.saveObs(obs, null);
+        }
+        return encounter;
+    }
+
+    @Override
+    public List<Encounter> saveEncountersWithObs(List<Encounter> encounters,
+        List<List<Obs>> observations) throws APIException {
+        List<Encounter> saved = new ArrayList<>();
+        for (int i = 0; i < encounters.size(); i++) {
+            saved.add(saveEncounterWithObs(encounters.get(i), observations.get(i)));
+        }
+        return saved;
+    }
+
+    @Override
+    public Map<Integer, String> getPatientRevisions(Collection<Integer> patientIds)
+        throws APIException {
+        return dao.getPatientRevisions(patientIds);
+    }
+
+    @Override
+    public @Nullable XformSubmissionStatus getXformSubmissionStatus(String submissionId)
+        throws APIException {
+        return dao.getXformSubmissionStatus(submissionId);
+    }
+
+    @Override
+    public void setXformSubmissionStatus(String submissionId, int patientId,
+        XformSubmissionStatus status, @Nullable Integer encounterId, @Nullable String error)
+        throws APIException {
+        dao.setXformSubmissionStatus(submissionId, patientId, status, encounterId, error);
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.openmrs.sync;
+
+import javax.annotation.Nullable;
+import java.util.Date;
+
+/**
+ * A flattened, read-only view of an observation containing just the fields that sync
+ * clients receive.  Rows are read with a single joined query on `buendia_obs_sync_map`,
+ * so that syncing observations doesn't load any {@link org.openmrs.Obs}, Encounter,
+ * Concept or Order entities (and their lazy associations) into the Hibernate session.
+ */
+public class ObsSyncRow {
+    public final String uuid;
+    public final boolean voided;
+    @Nullable public final String encounterUuid;
+    @Nullable public final String patientUuid;
+    /** The UUID of the first provider on the observation's encounter. */
+    @Nullable public final String providerUuid;
+    public final String conceptUuid;
+    /** The HL7 abbreviation of the concept's datatype, e.g. "NM" or "CWE". */
+    public final String hl7Type;
+    @Nullable public final Date obsDatetime;
+    /** The UUID of the root of the chain of orders that this observation refers to. */
+    @Nullable public final String orderUuid;
+    @Nullable public final String valueCodedUuid;
+    @Nullable public final Double valueNumeric;
+    @Nullable public final String valueText;
+    /** The value of a date or datetime observation (both are stored in value_datetime). */
+    @Nullable public final Date valueDatetime;
+
+    public ObsSyncRow(String uuid, boolean voided, @Nullable String encounterUuid,
+                      @Nullable String patientUuid, @Nullable String providerUuid,
+                      String conceptUuid, String hl7Type, @Nullable Date obsDatetime,
+                      @Nullable String orderUuid, @Nullable String valueCodedUuid,
+                      @Nullable Double valueNumeric, @Nullable String valueText,
+                      @Nullable Date valueDatetime) {
+        this.uuid = uuid;
+        this.voided = voided;
+        this.encounterUuid = encounterUuid;
+        this.patientUuid = patientUuid;
+        this.providerUuid = providerUuid;
+        this.conceptUuid = conceptUuid;
+        this.hl7Type = hl7Type;
+        this.obsDatetime = obsDatetime;
+        this.orderUuid = orderUuid;
+        this.valueCodedUuid = valueCodedUuid;
+        this.valueNumeric = valueNumeric;
+        this.valueText = valueText;
+        this.valueDatetime = valueDatetime;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.openmrs.api.db.hibernate;
+
+import org.h2.api.Trigger;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.api.ObsService;
+import org.openmrs.api.context.Context;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link HibernateProjectBuendiaDAO#getLatestObsForAllPatients} as obs are added,
+ * voided, and added again.  In production the buendia_latest_obs table is maintained by
+ * MySQL triggers (see liquibase.xml), which the in-memory test database can't run, so
+ * these tests create the table and install {@link LatestObsTrigger} in their place.
+ */
+public class HibernateProjectBuendiaDAOLatestObsTest extends HibernateProjectBuendiaDAOTest {
+
+    private ProjectBuendiaService buendiaService;
+    private ObsService obsService;
+    private Patient patient;
+    private Concept weight;
+
+    @Before
+    public void setUpVariables() throws Exception {
+        executeDataSet(SAMPLE_PATIENT_DATA_SET);
+        Statement statement = getConnection().createStatement();
+        statement.execute("CREATE TABLE IF NOT EXISTS buendia_latest_obs ("
+                + " person_id INT NOT NULL, concept_id INT NOT NULL,"
+                + " obs_id INT NOT NULL, obs_datetime DATETIME,"
+                + " PRIMARY KEY (person_id, concept_id))");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS buendia_latest_obs_test"
+                + " AFTER INSERT, UPDATE, DELETE ON obs FOR EACH ROW"
+                + " CALL \"" + LatestObsTrigger.class.getName() + "\"");
+        buendiaService = Context.getService(ProjectBuendiaService.class);
+        obsService = Context.getObsService();
+        patient = Context.getPatientService().getPatient(7);
+        weight = Context.getConceptService().getConcept(5089);
+    }
+
+    @Test
+    public void testFollowsInsertsVoidsAndReinserts() throws Exception {
+        assertEquals(Collections.emptyList(), buendiaService.getLatestObsForAllPatients(weight));
+
+        Obs first = saveWeight("2015-01-01 00:00:00.0", 50);
+        assertEquals(Arrays.asList(first), buendiaService.getLatestObsForAllPatients(weight));
+
+        Obs second = saveWeight("2015-01-02 00:00:00.0", 55);
+        saveWeight("2014-12-31 00:00:00.0", 45);  // older, so never the latest
+        assertEquals(Arrays.asList(second), buendiaService.getLatestObsForAllPatients(weight));
+
+        obsService.voidObs(second, "test");
+        assertEquals(Arrays.asList(first), buendiaService.getLatestObsForAllPatients(weight));
+
+        Obs reinserted = saveWeight("2015-01-02 00:00:00.0", 56);
+        assertEquals(Arrays.asList(reinserted),
+                buendiaService.getLatestObsForAllPatients(weight));
+    }
+
+    @Test
+    public void testBreaksTiesByObsId() throws Exception {
+        saveWeight("2015-01-01 00:00:00.0", 50);
+        Obs later = saveWeight("2015-01-01 00:00:00.0", 51);
+        assertEquals(Arrays.asList(later), buendiaService.getLatestObsForAllPatients(weight));
+    }
+
+    @Test
+    public void testOmitsPatientsWithOnlyVoidedObs() throws Exception {
+        Obs only = saveWeight("2015-01-01 00:00:00.0", 50);
+        obsService.voidObs(only, "test");
+        assertEquals(Collections.emptyList(), buendiaService.getLatestObsForAllPatients(weight));
+    }
+
+    private Obs saveWeight(String dateString, double value) throws Exception {
+        Obs obs = new Obs(patient, weight, DB_DATE_FORMAT.parse(dateString), null);
+        obs.setValueNumeric(value);
+        return obsService.saveObs(obs, null);
+    }
+
+    /**
+     * Stands in for the MySQL triggers on the obs table, rebuilding buendia_latest_obs
+     * with the same query that the changeset uses to fill it initially.  The rows it
+     * produces are the ones the triggers maintain: the latest non-voided obs of each
+     * concept for each person, by obs_datetime and then obs_id.
+     */
+    public static class LatestObsTrigger implements Trigger {
+        @Override
+        public void init(Connection conn, String schemaName, String triggerName,
+                String tableName, boolean before, int type) { }
+
+        @Override
+        public void fire(Connection conn, Object[] oldRow, Object[] newRow)
+                throws SQLException {
+            Statement statement = conn.createStatement();
+            statement.execute("DELETE FROM buendia_latest_obs");
+            statement.execute(
+                    "INSERT INTO buendia_latest_obs (person_id, concept_id, obs_id, obs_datetime)"
+                    + " SELECT o.person_id, o.concept_id, MAX(o.obs_id), o.obs_datetime"
+                    + " FROM obs o JOIN ("
+                    + "  SELECT person_id, concept_id, MAX(obs_datetime) AS obs_datetime"
+                    + "  FROM obs WHERE voided = 0 GROUP BY person_id, concept_id"
+                    + " ) m ON m.person_id = o.person_id AND m.concept_id = o.concept_id"
+                    + "  AND m.obs_datetime = o.obs_datetime"
+                    + " WHERE o.voided = 0"
+                    + " GROUP BY o.person_id, o.concept_id, o.obs_datetime");
+            statement.close();
+        }
+
+        public void close() { }
+
+        public void remove() { }
+    }
+}
@@ -16,15 +16,28 @@ package org.projectbuendia.openmrs.api.db.hibernate;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.Encounter;
 import org.openmrs.Obs;
+import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
 import org.projectbuendia.openmrs.api.Bookmark;
 import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.projectbuendia.openmrs.api.db.ExportEncounter;
+import org.projectbuendia.openmrs.api.db.ExportPatient;
 import org.projectbuendia.openmrs.api.db.SyncPage;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 /**
  * Test the observation-handling logic in {@link HibernateProjectBuendiaDAO}. Tests in this class
@@ -179,6 +192,110 @@ public class HibernateProjectBuendiaDAOObsTest extends HibernateProjectBuendiaDA
 
     }
 
+    @Test
+    public void testRowsMatchEntities() throws Exception {
+        executeDataSet(DATASET_DUPLICATE_TIMESTAMPS);
+        SyncPage<Obs> entities = buendiaService.getObservationsModifiedAtOrAfter(null, true, 4);
+        SyncPage<ObsSyncRow> rows =
+                buendiaService.getObservationRowsModifiedAtOrAfter(null, true, 4);
+        assertEquals(entities.bookmark, rows.bookmark);
+        assertEquals(entities.results.size(), rows.results.size());
+        for (int i = 0; i < rows.results.size(); i++) {
+            Obs obs = entities.results.get(i);
+            ObsSyncRow row = rows.results.get(i);
+            assertEquals(obs.getUuid(), row.uuid);
+            assertEquals(obs.getVoided(), row.voided);
+            assertEquals(obs.getPerson().getUuid(), row.patientUuid);
+            assertEquals(obs.getConcept().getUuid(), row.conceptUuid);
+            assertEquals(obs.getConcept().getDatatype().getHl7Abbreviation(), row.hl7Type);
+        }
+        SyncPage<ObsSyncRow> rest =
+                buendiaService.getObservationRowsModifiedAtOrAfter(rows.bookmark, true, 0);
+        assertEquals(EXPECTED_ORDER_DUPLICATES.length, rows.results.size() + rest.results.size());
+    }
+
+    @Test
+    public void testExportEncountersMatchEntities() throws Exception {
+        executeDataSet(DATASET_NO_DUPLICATE_TIMESTAMPS);
+        SyncPage<Obs> entities = buendiaService.getObservationsModifiedAtOrAfter(null, false, 0);
+        Set<Integer> patientIds = new HashSet<>();
+        Set<String> conceptUuids = new HashSet<>();
+        Map<String, Set<String>> expected = new HashMap<>();
+        for (Obs obs : entities.results) {
+            if (obs.getEncounter() == null) continue;
+            patientIds.add(obs.getPerson().getPersonId());
+            conceptUuids.add(obs.getConcept().getUuid());
+            String encounterUuid = obs.getEncounter().getUuid();
+            if (!expected.containsKey(encounterUuid)) {
+                expected.put(encounterUuid, new HashSet<String>());
+            }
+            expected.get(encounterUuid).add(obs.getConcept().getUuid());
+        }
+
+        Map<String, Set<String>> actual = new HashMap<>();
+        for (ExportEncounter encounter :
+            buendiaService.getExportEncounters(patientIds, null, conceptUuids)) {
+            Set<String> concepts = new HashSet<>();
+            for (ExportEncounter.Value value : encounter.values) {
+                concepts.add(value.conceptUuid);
+            }
+            if (!concepts.isEmpty()) actual.put(encounter.uuid, concepts);
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testExportEncountersTouchedAfterBookmark() throws Exception {
+        executeDataSet(DATASET_NO_DUPLICATE_TIMESTAMPS);
+        Bookmark beginning = new Bookmark(new Date(0), null);
+        Set<Integer> patientIds = new HashSet<>();
+        for (ExportPatient patient : buendiaService.getExportPatients(beginning)) {
+            patientIds.add(patient.patientId);
+        }
+        Set<String> touched = new HashSet<>();
+        for (ExportEncounter encounter : buendiaService.getExportEncounters(
+            patientIds, beginning, Collections.<String>emptySet())) {
+            touched.add(encounter.uuid);
+        }
+        Set<String> expected = new HashSet<>();
+        for (int id : Arrays.asList(3, 4)) {
+            expected.add(Context.getEncounterService().getEncounter(id).getUuid());
+        }
+        assertEquals(expected, touched);
+
+        Bookmark mark = buendiaService.getObservationSyncHighWaterMark();
+        assertEquals(0, buendiaService.getExportPatients(mark).size());
+        assertEquals(0, buendiaService.getExportEncounters(
+            patientIds, mark, Collections.<String>emptySet()).size());
+    }
+
+    @Test
+    public void testEncountersWithObsMatchEncounterService() throws Exception {
+        executeDataSet(DATASET_NO_DUPLICATE_TIMESTAMPS);
+        Patient patient = Context.getPatientService().getPatient(7);
+        List<Encounter> expected = Context.getEncounterService().getEncountersByPatient(patient);
+        List<Encounter> actual = buendiaService.getEncountersWithObs(Arrays.asList(patient));
+        assertEquals(new HashSet<>(expected), new HashSet<>(actual));
+        assertEquals(expected.size(), actual.size());
+        for (Encounter encounter : actual) {
+            assertEquals(patient, encounter.getPatient());
+        }
+    }
+
+    @Test
+    public void testObsWithoutEncounterExcludesEncounterObs() throws Exception {
+        executeDataSet(DATASET_NO_DUPLICATE_TIMESTAMPS);
+        Patient patient = Context.getPatientService().getPatient(7);
+        assertEquals(0, buendiaService.getObsWithoutEncounter(Arrays.asList(patient)).size());
+
+        Obs obs = new Obs(patient, Context.getConceptService().getConcept(5089),
+                DB_DATE_FORMAT.parse("2015-01-01 00:00:00.0"), null);
+        obs.setValueNumeric(60.0);
+        Context.getObsService().saveObs(obs, null);
+        assertEquals(Arrays.asList(obs),
+                buendiaService.getObsWithoutEncounter(Arrays.asList(patient)));
+    }
+
     // End Dataset 2
 
     // Dataset consistency tests
@@ -19,11 +19,14 @@ import org.openmrs.Order;
 import org.openmrs.api.context.Context;
 import org.projectbuendia.openmrs.api.ProjectBuendiaService;
 import org.projectbuendia.openmrs.api.Bookmark;
+import org.projectbuendia.openmrs.api.db.OrderChain;
 import org.projectbuendia.openmrs.api.db.SyncPage;
 
 import java.util.Arrays;
+import java.util.Map;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 /**
  * Test the order-handling logic in {@link HibernateProjectBuendiaDAO}. Tests in this class test
@@ -122,6 +125,24 @@ public class HibernateProjectBuendiaDAOOrderTest extends HibernateProjectBuendia
                 extractListOfUuids(results.results));
     }
 
+    @Test
+    public void testOrderChainsResolveRootAndLastRevision() throws Exception {
+        SyncPage<Order> page = buendiaService.getOrdersModifiedAtOrAfter(null, true, 0, null);
+        Map<Integer, OrderChain> chains = buendiaService.getOrderChains(page.results);
+        for (Order order : page.results) {
+            OrderChain chain = chains.get(order.getOrderId());
+            Order root = order;
+            while (root.getPreviousOrder() != null) {
+                root = root.getPreviousOrder();
+            }
+            assertEquals(root.getUuid(), chain.rootUuid);
+        }
+        assertEquals("ttttt", chains.get(1).lastRevision.getUuid());
+        assertEquals("ttttt", chains.get(111).lastRevision.getUuid());
+        assertEquals("hhhhh", chains.get(4).lastRevision.getUuid());
+        assertEquals("ppppp", chains.get(222).lastRevision.getUuid());
+    }
+
     @Test
     public void testDatasetIsConsistent() throws Exception {
         testDataSetIsConsistent(
@@ -0,0 +1,89 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia;
+
+import org.openmrs.api.context.Context;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pools of worker threads for requests that read a lot of data.  A Hibernate session
+ * can't be shared between threads, so each task runs in a session of its own, with
+ * proxy privileges standing in for the requesting user (who should be checked for
+ * the same privileges before any tasks are submitted).
+ */
+public class SessionWorkers {
+    /** The number of threads that a pool should have, given the available processors. */
+    public static final int DEFAULT_POOL_SIZE =
+        Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Creates a pool of daemon threads, named with the given prefix, which exit after
+     * a minute without work so that they cost nothing between requests.
+     */
+    public static ExecutorService newPool(final String name, int size) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name + " " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /** Returns true if the current user has all of the given privileges. */
+    public static boolean hasPrivileges(String... privileges) {
+        for (String privilege : privileges) {
+            if (!Context.hasPrivilege(privilege)) return false;
+        }
+        return true;
+    }
+
+    /** A task that runs in a session of its own, with the given proxy privileges. */
+    public abstract static class Task<T> implements Callable<T> {
+        private final String[] privileges;
+
+        protected Task(String... privileges) {
+            this.privileges = privileges;
+        }
+
+        /** Does the work of the task; the session is open while this runs. */
+        protected abstract T callInSession() throws Exception;
+
+        @Override public final T call() throws Exception {
+            Context.openSession();
+            try {
+                for (String privilege : privileges) {
+                    Context.addProxyPrivilege(privilege);
+                }
+                return callInSession();
+            } finally {
+                for (String privilege : privileges) {
+                    Context.removeProxyPrivilege(privilege);
+                }
+                Context.closeSession();
+            }
+        }
+    }
+}
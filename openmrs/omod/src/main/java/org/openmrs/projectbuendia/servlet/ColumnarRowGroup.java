@@ -0,0 +1,188 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.servlet;
+
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates a group of rows column by column, and writes them out as a JSON object
+ * with one typed column chunk per column:
+ *
+ *     {"rows": 3, "columns": [
+ *         {"encoding": "rle", "values": ["a1b2...", "c3d4..."], "lengths": [2, 1]},
+ *         {"encoding": "plain", "values": [1448450728000, 1448450729000, null]},
+ *         {"encoding": "sparse", "positions": [2], "values": [37.5]},
+ *         {"encoding": "sparse", "dictionary": ["1065AAAA..."], "positions": [0], "values": [0]},
+ *         ...
+ *     ]}
+ *
+ * Each chunk is written in whichever of three encodings is smallest: "plain" lists a
+ * value (possibly null) for every row; "sparse" lists only the non-null values and their
+ * row positions; "rle" lists runs of equal values (possibly null) and their lengths.
+ * Coded values are written as indexes into a "dictionary" of concept UUIDs kept with
+ * the chunk.
+ */
+class ColumnarRowGroup {
+    enum Type {
+        /** Strings. */
+        STRING,
+        /** Doubles. */
+        DOUBLE,
+        /** Booleans. */
+        BOOLEAN,
+        /** Longs, in milliseconds since the epoch. */
+        DATETIME,
+        /** Concept UUIDs, encoded as indexes into a dictionary. */
+        CODED;
+
+        String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final Type[] types;
+    private final List<List<Object>> columns = new ArrayList<>();
+    private int numRows = 0;
+
+    ColumnarRowGroup(Type[] types) {
+        this.types = types;
+        for (int c = 0; c < types.length; c++) {
+            columns.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Adds a row, which must have a value of the Java type for its column's type
+     * (String, Double, Boolean, Long, or String respectively), or null, for each column.
+     */
+    void addRow(Object[] values) {
+        for (int c = 0; c < types.length; c++) {
+            columns.get(c).add(values[c]);
+        }
+        numRows++;
+    }
+
+    int getNumRows() {
+        return numRows;
+    }
+
+    void write(JsonGenerator json) throws IOException {
+        json.writeStartObject();
+        json.writeNumberField("rows", numRows);
+        json.writeArrayFieldStart("columns");
+        for (int c = 0; c < types.length; c++) {
+            writeChunk(json, types[c], columns.get(c));
+        }
+        json.writeEndArray();
+        json.writeEndObject();
+    }
+
+    private void writeChunk(JsonGenerator json, Type type, List<Object> values)
+        throws IOException {
+        json.writeStartObject();
+        if (type == Type.CODED) {
+            Map<Object, Integer> dictionary = new LinkedHashMap<>();
+            List<Object> indexes = new ArrayList<>(values.size());
+            for (Object value : values) {
+                Integer index = null;
+                if (value != null) {
+                    index = dictionary.get(value);
+                    if (index == null) {
+                        index = dictionary.size();
+                        dictionary.put(value, index);
+                    }
+                }
+                indexes.add(index);
+            }
+            json.writeArrayFieldStart("dictionary");
+            for (Object uuid : dictionary.keySet()) {
+                json.writeString((String) uuid);
+            }
+            json.writeEndArray();
+            values = indexes;
+        }
+
+        int numNonNull = 0;
+        int numRuns = 0;
+        for (int r = 0; r < values.size(); r++) {
+            if (values.get(r) != null) numNonNull++;
+            if (r == 0 || !equal(values.get(r), values.get(r - 1))) numRuns++;
+        }
+        // Each encoding costs roughly one JSON element per item it lists.
+        if (2 * numNonNull < values.size() && numNonNull <= numRuns) {
+            json.writeStringField("encoding", "sparse");
+            json.writeArrayFieldStart("positions");
+            for (int r = 0; r < values.size(); r++) {
+                if (values.get(r) != null) json.writeNumber(r);
+            }
+            json.writeEndArray();
+            json.writeArrayFieldStart("values");
+            for (Object value : values) {
+                if (value != null) writeValue(json, value);
+            }
+            json.writeEndArray();
+        } else if (2 * numRuns < values.size()) {
+            json.writeStringField("encoding", "rle");
+            json.writeArrayFieldStart("values");
+            List<Integer> lengths = new ArrayList<>(numRuns);
+            for (int r = 0; r < values.size(); r++) {
+                if (r == 0 || !equal(values.get(r), values.get(r - 1))) {
+                    writeValue(json, values.get(r));
+                    lengths.add(0);
+                }
+                lengths.set(lengths.size() - 1, lengths.get(lengths.size() - 1) + 1);
+            }
+            json.writeEndArray();
+            json.writeArrayFieldStart("lengths");
+            for (int length : lengths) {
+                json.writeNumber(length);
+            }
+            json.writeEndArray();
+        } else {
+            json.writeStringField("encoding", "plain");
+            json.writeArrayFieldStart("values");
+            for (Object value : values) {
+                writeValue(json, value);
+            }
+            json.writeEndArray();
+        }
+        json.writeEndObject();
+    }
+
+    private static void writeValue(JsonGenerator json, Object value) throws IOException {
+        if (value == null) {
+            json.writeNull();
+        } else if (value instanceof String) {
+            json.writeString((String) value);
+        } else if (value instanceof Double) {
+            json.writeNumber((Double) value);
+        } else if (value instanceof Long) {
+            json.writeNumber((Long) value);
+        } else if (value instanceof Integer) {
+            json.writeNumber((Integer) value);
+        } else if (value instanceof Boolean) {
+            json.writeBoolean((Boolean) value);
+        } else {
+            throw new IllegalArgumentException("Unexpected value type: " + value.getClass());
+        }
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -15,64 +15,93 @@ import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.openmrs.Concept;
-import org.openmrs.Encounter;
 import org.openmrs.Form;
 import org.openmrs.FormField;
-import org.openmrs.Obs;
-import org.openmrs.Patient;
-import org.openmrs.PatientIdentifier;
-import org.openmrs.api.EncounterService;
-import org.openmrs.api.PatientService;
+import org.openmrs.api.ConceptService;
 import org.openmrs.api.context.Context;
 import org.openmrs.hl7.HL7Constants;
+import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.xforms.util.XformsUtil;
 import org.openmrs.projectbuendia.ObsValueVisitor;
+import org.openmrs.projectbuendia.SessionWorkers;
 import org.openmrs.projectbuendia.Utils;
 import org.openmrs.projectbuendia.webservices.rest.ChartResource;
+import org.openmrs.projectbuendia.webservices.rest.CompactSyncFormat;
 import org.openmrs.projectbuendia.webservices.rest.DbUtils;
 import org.openmrs.projectbuendia.webservices.rest.ObsUtils;
 import org.openmrs.util.FormUtil;
+import org.openmrs.util.PrivilegeConstants;
+import org.projectbuendia.openmrs.api.Bookmark;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.projectbuendia.openmrs.api.db.ExportEncounter;
+import org.projectbuendia.openmrs.api.db.ExportPatient;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.text.DateFormat;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import javax.annotation.Nullable;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import static org.openmrs.projectbuendia.webservices.rest.ChartResource.compressUuid;
 
-/** A servlet that generates a CSV dump of all the patient data. */
+/**
+ * A servlet that generates a CSV dump of all the patient data, using a small pool of
+ * worker threads to read and format batches of patients in parallel.  The reply has a
+ * "Buendia-Bookmark" header; passing its value back in the "since" parameter gets
+ * an incremental dump containing only the encounters whose observations have been
+ * added, changed, or voided since then, in the same format, for appending to an
+ * earlier dump.
+ * <p>
+ * With "format=columnar", the dump is instead a JSON object for analysis tools, with a
+ * typed column for each observation and the rows in groups of columns:
+ *
+ *     {
+ *         "columns": [{"name": "patient_uuid", "type": "string"}, ...,
+ *             {"name": "<concept UUID>", "label": "Weight (kg)", "type": "double"}, ...],
+ *         "row_groups": [{"rows": 37, "columns": [...]}, ...],
+ *         "concept_names": {"<coded value UUID>": "Yes", ...}
+ *     }
+ *
+ * where each row group holds the encounters of a batch of patients, encoded as
+ * described in {@link ColumnarRowGroup}.  It is gzipped if the client accepts that.
+ */
 public class DataExportServlet extends HttpServlet {
     protected static Log log = LogFactory.getLog(DataExportServlet.class);
 
-    private static final Comparator<Patient> PATIENT_COMPARATOR = new Comparator<Patient>() {
-        @Override public int compare(Patient p1, Patient p2) {
-            PatientIdentifier id1 = p1.getPatientIdentifier("MSF");
-            PatientIdentifier id2 = p2.getPatientIdentifier("MSF");
-            return Utils.ALPHANUMERIC_COMPARATOR.compare(
-                id1 == null ? null : id1.getIdentifier(),
-                id2 == null ? null : id2.getIdentifier()
-            );
-        }
-    };
-    private static final Comparator<Encounter> ENCOUNTER_COMPARATOR = new Comparator<Encounter>() {
-        @Override public int compare(Encounter e1, Encounter e2) {
-            return e1.getEncounterDatetime().compareTo(e2.getEncounterDatetime());
+    private static final Comparator<ExportPatient> PATIENT_COMPARATOR = new Comparator<ExportPatient>() {
+        @Override public int compare(ExportPatient p1, ExportPatient p2) {
+            return Utils.ALPHANUMERIC_COMPARATOR.compare(p1.msfIdentifier, p2.msfIdentifier);
         }
     };
     private static final Comparator<Concept> CONCEPT_COMPARATOR = new Comparator<Concept>() {
@@ -90,25 +119,94 @@ public class DataExportServlet extends HttpServlet {
         "Time in yyyy-MM-dd HH:mm:ss UTC",
     };
     private static final int COLUMNS_PER_OBS = 2;
+    private static final String[] COLUMNAR_ENCOUNTER_COLUMNS = new String[] {
+        "patient_uuid",
+        "msf_patient_id",
+        "birthdate",
+        "encounter_uuid",
+        "encounter_time",
+    };
+    private static final ColumnarRowGroup.Type[] COLUMNAR_ENCOUNTER_TYPES = {
+        ColumnarRowGroup.Type.STRING,
+        ColumnarRowGroup.Type.STRING,
+        ColumnarRowGroup.Type.DATETIME,
+        ColumnarRowGroup.Type.STRING,
+        ColumnarRowGroup.Type.DATETIME,
+    };
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final CSVFormat CSV_FORMAT = CSVFormat.EXCEL.withDelimiter(',');
+    /** The number of patients whose encounters are read in each query. */
+    private static final int PATIENTS_PER_BATCH = 100;
+    /** The number of batches that an export may have queued or in progress at once. */
+    private static final int MAX_PENDING_BATCHES = SessionWorkers.DEFAULT_POOL_SIZE * 2;
+    private static final String[] WORKER_PRIVILEGES = {
+        PrivilegeConstants.VIEW_ENCOUNTERS,
+        PrivilegeConstants.VIEW_OBS,
+        PrivilegeConstants.VIEW_CONCEPTS
+    };
+    /** The threads exporting batches of patients, shared by all exports. */
+    private static final ExecutorService workers = SessionWorkers.newPool(
+        "Buendia export worker", SessionWorkers.DEFAULT_POOL_SIZE);
 
     @Override
-    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-        CSVPrinter printer = new CSVPrinter(
-            response.getWriter(), CSVFormat.EXCEL.withDelimiter(','));
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws IOException, ServletException {
         final Locale locale = DbUtils.getLocaleForTag(request.getParameter("locale"));
 
         if (!XformsUtil.isAuthenticated(request, response, null)) return;
+        // The workers read with proxy privileges, so check that the user has them.
+        if (!SessionWorkers.hasPrivileges(WORKER_PRIVILEGES)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN,
+                "Privileges required: " + Arrays.toString(WORKER_PRIVILEGES));
+            return;
+        }
+
+        String format = request.getParameter("format");
+        boolean columnar = "columnar".equals(format);
+        if (format != null && !columnar && !"csv".equals(format)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                "Unknown format \"" + format + "\"");
+            return;
+        }
+
+        Bookmark since = null;
+        String sinceParam = request.getParameter("since");
+        if (sinceParam != null) {
+            try {
+                since = Bookmark.deserialize(sinceParam);
+            } catch (ParseException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Invalid bookmark \"" + sinceParam + "\": " + e.getMessage());
+                return;
+            }
+        }
 
         Date now = new Date();
-        DateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss");
-        String filename = String.format("buendia-%s.csv", format.format(now));
+        DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss");
+        String filename = String.format(
+            "buendia-%s.%s", dateFormat.format(now), columnar ? "json" : "csv");
         String contentDispositionHeader = String.format("attachment; filename=%s;", filename);
         response.addHeader("Content-Disposition", contentDispositionHeader);
 
-        PatientService patientService = Context.getPatientService();
-        EncounterService encounterService = Context.getEncounterService();
+        ProjectBuendiaService buendiaService = Context.getService(ProjectBuendiaService.class);
 
-        List<Patient> patients = new ArrayList<>(patientService.getAllPatients());
+        // In an incremental export, only the encounters whose observations have changed
+        // since the given bookmark are included; each batch of patients finds its own in
+        // the observation sync map.  Either way, the reply carries a bookmark for the next
+        // incremental export, clamped as for sync so that observations being saved
+        // concurrently aren't missed (though some may be exported twice).  It is read
+        // before anything is exported, so later changes are exported again next time.
+        Bookmark nextBookmark;
+        if (since != null) {
+            Bookmark mark = buendiaService.getObservationSyncHighWaterMark();
+            nextBookmark = Bookmark.clampToBufferedRequestTime(
+                mark != null && mark.isAfter(since) ? mark : since, now);
+        } else {
+            nextBookmark = Bookmark.clampToBufferedRequestTime(null, now);
+        }
+        response.addHeader("Buendia-Bookmark", nextBookmark.serialize());
+
+        List<ExportPatient> patients = buendiaService.getExportPatients(since);
         Collections.sort(patients, PATIENT_COMPARATOR);
 
         // To keep ordering consistent, we emit the observations in UUID order, while
@@ -124,79 +222,121 @@ public class DataExportServlet extends HttpServlet {
         }
         FixedSortedConceptIndexer indexer = new FixedSortedConceptIndexer(questionConcepts);
 
-        // Write English headers
-        writeHeaders(printer, indexer, locale);
+        ValueFormatter formatter = new ValueFormatter(locale);
+        ColumnarRowGroup.Type[] types = columnar ? getColumnarTypes(indexer) : null;
+        Writer writer;
+        if (columnar) {
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            writer = new OutputStreamWriter(CompactSyncFormat.openBody(
+                request, response, response.getOutputStream()), "UTF-8");
+            writer.write("{\"columns\":");
+            writer.write(JSON_MAPPER.writeValueAsString(
+                getColumnarHeaders(indexer, types, locale)));
+            writer.write(",\"row_groups\":[");
+        } else {
+            writer = response.getWriter();
+            // Write English headers
+            CSVPrinter printer = new CSVPrinter(writer, CSV_FORMAT);
+            writeHeaders(printer, indexer, locale);
+        }
+        writer.flush();
 
-        // Write one encounter per line
-        for (Patient patient : patients) {
-            ArrayList<Encounter> encounters = new ArrayList<>(encounterService
-                .getEncountersByPatient(patient));
-            Collections.sort(encounters, ENCOUNTER_COMPARATOR);
-            int numEncCols = ENCOUNTER_COLUMNS.length;
-            int numObsCols = indexer.size() * COLUMNS_PER_OBS;
-            int numCols = numEncCols + numObsCols;
-            for (Encounter encounter : encounters) {
-                try {
-                    final Object[] cells = new Object[numCols];
-                    Arrays.fill(cells, "");
-                    cells[0] = patient.getUuid();
-                    cells[1] = patient.getPatientIdentifier("MSF");
-                    if (patient.getBirthdate() != null) {
-                        cells[2] = Utils.formatUtcDate(patient.getBirthdate());
-                    }
-                    cells[3] = encounter.getUuid();
-                    cells[4] = encounter.getEncounterDatetime().getTime();
-                    cells[5] = Utils.formatUtc8601(encounter.getEncounterDatetime());
-                    cells[6] = Utils.formatYmdhms(encounter.getEncounterDatetime());
-                    for (Obs obs : encounter.getAllObs()) {
-                        Integer index = indexer.getIndex(obs.getConcept());
-                        if (index == null) continue;
-                        // For each observation there are two columns.  If the value is a concept,
-                        // they contain the English name and the compressed concept ID; otherwise,
-                        // both columns contain the formatted value.
-                        final int col = numEncCols + index * COLUMNS_PER_OBS;
-
-                        String hl7Type = obs.getConcept().getDatatype().getHl7Abbreviation();
-                        switch (hl7Type) {
-                            case HL7Constants.HL7_BOOLEAN:
-                                Boolean bool = obs.getValueAsBoolean();
-                                cells[col] = cells[col + 1] = bool == null ? "" : Boolean.toString(bool);
-                                break;
-                            case HL7Constants.HL7_CODED:
-                            case HL7Constants.HL7_CODED_WITH_EXCEPTIONS:
-                                Concept coded = obs.getValueCoded();
-                                cells[col] =
-                                    coded == null ? "" : DbUtils.getConceptName(coded, locale);
-                                cells[col + 1] =
-                                    coded == null ? "" : compressUuid(coded.getUuid());
-                                break;
-                            case HL7Constants.HL7_NUMERIC:
-                                Double numeric = obs.getValueNumeric();
-                                cells[col] = cells[col + 1] =
-                                    numeric == null ? "" : Double.toString(numeric);
-                                break;
-                            case HL7Constants.HL7_TEXT:
-                                String text = obs.getValueText();
-                                cells[col] = cells[col + 1] = text == null ? "" : text;
-                                break;
-                            case HL7Constants.HL7_DATE:
-                                Date date = obs.getValueDate();
-                                cells[col] = cells[col + 1] = date == null ? "" : Utils.formatUtcDate(date);
-                                break;
-                            case HL7Constants.HL7_DATETIME:
-                                Date datetime = obs.getValueDatetime();
-                                cells[col] = cells[col + 1] = datetime == null ? "" : Utils.formatUtc8601(datetime);
-                                break;
-                        }
-                    }
-                    printer.printRecord(cells);
-                } catch (Exception e) {
-                    log.error("Error exporting encounter", e);
+        // Write one encounter per line.  The encounters and observations are read in
+        // batches of patients, one query per batch, as flat rows rather than entities.
+        // The batches are formatted in parallel by the worker pool and written out in
+        // patient order; only a few batches are pending at a time, so memory use doesn't
+        // grow with the size of the dataset.
+        Deque<Future<String>> pending = new ArrayDeque<>();
+        int start = 0;
+        boolean first = true;
+        try {
+            while (start < patients.size() || !pending.isEmpty()) {
+                while (start < patients.size() && pending.size() < MAX_PENDING_BATCHES) {
+                    List<ExportPatient> batch = patients.subList(
+                        start, Math.min(start + PATIENTS_PER_BATCH, patients.size()));
+                    pending.add(workers.submit(columnar
+                        ? new ColumnarBatchExporter(batch, since, indexer, formatter, types)
+                        : new CsvBatchExporter(batch, since, indexer, formatter)));
+                    start += PATIENTS_PER_BATCH;
                 }
+                String block = pending.remove().get();
+                if (columnar && !block.isEmpty() && !first) writer.write(",");
+                writer.write(block);
+                writer.flush();
+                first &= block.isEmpty();
+            }
+            if (columnar) {
+                // The names of the coded values are known once all the rows are written.
+                writer.write("],\"concept_names\":");
+                writer.write(JSON_MAPPER.writeValueAsString(
+                    new TreeMap<>(formatter.conceptNames)));
+                writer.write("}");
+                writer.close();  // finishes any compression
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Export interrupted", e);
+        } catch (ExecutionException e) {
+            log.error("Error exporting patients", e.getCause());
+            throw new ServletException("Error exporting patients", e.getCause());
+        } finally {
+            for (Future<String> future : pending) {
+                future.cancel(false);
             }
         }
     }
 
+    /** Gets the types of the columns of the columnar format, by concept datatype. */
+    private static ColumnarRowGroup.Type[] getColumnarTypes(FixedSortedConceptIndexer indexer) {
+        int numEncCols = COLUMNAR_ENCOUNTER_TYPES.length;
+        ColumnarRowGroup.Type[] types = Arrays.copyOf(
+            COLUMNAR_ENCOUNTER_TYPES, numEncCols + indexer.size());
+        for (int i = 0; i < indexer.size(); i++) {
+            types[numEncCols + i] = getColumnarType(
+                indexer.getConcept(i).getDatatype().getHl7Abbreviation());
+        }
+        return types;
+    }
+
+    private static ColumnarRowGroup.Type getColumnarType(String hl7Type) {
+        switch (hl7Type) {
+            case HL7Constants.HL7_BOOLEAN:
+                return ColumnarRowGroup.Type.BOOLEAN;
+            case HL7Constants.HL7_CODED:
+            case HL7Constants.HL7_CODED_WITH_EXCEPTIONS:
+                return ColumnarRowGroup.Type.CODED;
+            case HL7Constants.HL7_NUMERIC:
+                return ColumnarRowGroup.Type.DOUBLE;
+            case HL7Constants.HL7_DATE:
+            case HL7Constants.HL7_DATETIME:
+                return ColumnarRowGroup.Type.DATETIME;
+            default:
+                return ColumnarRowGroup.Type.STRING;
+        }
+    }
+
+    /**
+     * Describes the columns of the columnar format.  Each observation has one column,
+     * named by the UUID of its concept and labelled with the concept's name.
+     */
+    private static List<SimpleObject> getColumnarHeaders(
+        FixedSortedConceptIndexer indexer, ColumnarRowGroup.Type[] types, Locale locale) {
+        List<SimpleObject> headers = new ArrayList<>();
+        for (int c = 0; c < types.length; c++) {
+            SimpleObject header = new SimpleObject();
+            if (c < COLUMNAR_ENCOUNTER_COLUMNS.length) {
+                header.add("name", COLUMNAR_ENCOUNTER_COLUMNS[c]);
+            } else {
+                Concept concept = indexer.getConcept(c - COLUMNAR_ENCOUNTER_COLUMNS.length);
+                header.add("name", concept.getUuid());
+                header.add("label", DbUtils.getConceptName(concept, locale));
+            }
+            headers.add(header.add("type", types[c].getName()));
+        }
+        return headers;
+    }
+
     private void writeHeaders(CSVPrinter printer, FixedSortedConceptIndexer indexer, Locale locale) throws
         IOException {
         for (String fixedHeader : ENCOUNTER_COLUMNS) {
@@ -216,14 +356,18 @@ public class DataExportServlet extends HttpServlet {
     /** Indexes a fixed set of concepts in sorted UUID order. */
     private static class FixedSortedConceptIndexer {
         final Concept[] concepts;
+        final List<String> uuids = new ArrayList<>();
 
         public FixedSortedConceptIndexer(Collection<Concept> concepts) {
             this.concepts = concepts.toArray(new Concept[concepts.size()]);
             Arrays.sort(this.concepts, CONCEPT_COMPARATOR);
+            for (Concept concept : this.concepts) {
+                uuids.add(concept.getUuid());
+            }
         }
 
-        public Integer getIndex(Concept concept) {
-            int index = Arrays.binarySearch(concepts, concept, CONCEPT_COMPARATOR);
+        public Integer getIndex(String uuid) {
+            int index = Collections.binarySearch(uuids, uuid);
             if (index < 0) return null;
             return index;
         }
@@ -232,8 +376,261 @@ public class DataExportServlet extends HttpServlet {
             return concepts[i];
         }
 
+        public List<String> getUuids() {
+            return uuids;
+        }
+
         public int size() {
             return concepts.length;
         }
     }
+
+    /**
+     * Reads the encounters of a batch of patients and formats them as a block of the
+     * reply.  Each batch runs in its own session, and the service reads it in its own
+     * read-only transaction.
+     */
+    private abstract static class BatchExporter extends SessionWorkers.Task<String> {
+        final List<ExportPatient> patients;
+        final @Nullable Bookmark touchedAfter;
+        final FixedSortedConceptIndexer indexer;
+        final ValueFormatter formatter;
+
+        BatchExporter(List<ExportPatient> patients, @Nullable Bookmark touchedAfter,
+                      FixedSortedConceptIndexer indexer, ValueFormatter formatter) {
+            super(WORKER_PRIVILEGES);
+            this.patients = patients;
+            this.touchedAfter = touchedAfter;
+            this.indexer = indexer;
+            this.formatter = formatter;
+        }
+
+        /** Adds one encounter, as a row, to the block. */
+        abstract void addRow(ExportPatient patient, ExportEncounter encounter) throws IOException;
+
+        /** Returns the formatted block, or "" if it has no rows. */
+        abstract String finish() throws IOException;
+
+        @Override protected String callInSession() throws IOException {
+            List<Integer> patientIds = new ArrayList<>();
+            for (ExportPatient patient : patients) {
+                patientIds.add(patient.patientId);
+            }
+            Map<Integer, List<ExportEncounter>> encountersByPatientId = new HashMap<>();
+            for (ExportEncounter encounter : Context.getService(ProjectBuendiaService.class)
+                .getExportEncounters(patientIds, touchedAfter, indexer.getUuids())) {
+                List<ExportEncounter> encounters = encountersByPatientId.get(encounter.patientId);
+                if (encounters == null) {
+                    encounters = new ArrayList<>();
+                    encountersByPatientId.put(encounter.patientId, encounters);
+                }
+                encounters.add(encounter);
+            }
+
+            for (ExportPatient patient : patients) {
+                List<ExportEncounter> encounters = encountersByPatientId.get(patient.patientId);
+                if (encounters == null) continue;
+                for (ExportEncounter encounter : encounters) {
+                    try {
+                        addRow(patient, encounter);
+                    } catch (Exception e) {
+                        log.error("Error exporting encounter", e);
+                    }
+                }
+            }
+            return finish();
+        }
+    }
+
+    /** Formats a batch of encounters as CSV rows. */
+    private static class CsvBatchExporter extends BatchExporter {
+        final StringBuilder block = new StringBuilder();
+        final CSVPrinter printer;
+
+        CsvBatchExporter(List<ExportPatient> patients, @Nullable Bookmark touchedAfter,
+                         FixedSortedConceptIndexer indexer, ValueFormatter formatter)
+            throws IOException {
+            super(patients, touchedAfter, indexer, formatter);
+            printer = new CSVPrinter(block, CSV_FORMAT);
+        }
+
+        @Override void addRow(ExportPatient patient, ExportEncounter encounter) throws IOException {
+            printer.printRecord(formatter.getCells(patient, encounter, indexer));
+        }
+
+        @Override String finish() {
+            return block.toString();
+        }
+    }
+
+    /** Formats a batch of encounters as a {@link ColumnarRowGroup}. */
+    private static class ColumnarBatchExporter extends BatchExporter {
+        final ColumnarRowGroup.Type[] types;
+        final ColumnarRowGroup rowGroup;
+
+        ColumnarBatchExporter(List<ExportPatient> patients, @Nullable Bookmark touchedAfter,
+                              FixedSortedConceptIndexer indexer, ValueFormatter formatter,
+                              ColumnarRowGroup.Type[] types) {
+            super(patients, touchedAfter, indexer, formatter);
+            this.types = types;
+            rowGroup = new ColumnarRowGroup(types);
+        }
+
+        @Override void addRow(ExportPatient patient, ExportEncounter encounter) {
+            rowGroup.addRow(formatter.getTypedValues(patient, encounter, indexer, types));
+        }
+
+        @Override String finish() throws IOException {
+            if (rowGroup.getNumRows() == 0) return "";
+            StringWriter block = new StringWriter();
+            JsonGenerator json = JSON_MAPPER.getJsonFactory().createJsonGenerator(block);
+            rowGroup.write(json);
+            json.close();
+            return block.toString();
+        }
+    }
+
+    /**
+     * Formats the cells of a row of the export, remembering the names of coded values.
+     * It is shared by the workers of an export.
+     */
+    private static class ValueFormatter {
+        final Locale locale;
+        final String trueUuid;
+        final String falseUuid;
+        final Map<String, String> conceptNames = new ConcurrentHashMap<>();
+
+        ValueFormatter(Locale locale) {
+            this.locale = locale;
+            ConceptService conceptService = Context.getConceptService();
+            trueUuid = conceptService.getTrueConcept().getUuid();
+            falseUuid = conceptService.getFalseConcept().getUuid();
+        }
+
+        Object[] getCells(ExportPatient patient, ExportEncounter encounter,
+                          FixedSortedConceptIndexer indexer) {
+            int numEncCols = ENCOUNTER_COLUMNS.length;
+            int numObsCols = indexer.size() * COLUMNS_PER_OBS;
+            final Object[] cells = new Object[numEncCols + numObsCols];
+            Arrays.fill(cells, "");
+            cells[0] = patient.uuid;
+            cells[1] = patient.msfIdentifier;
+            if (patient.birthdate != null) {
+                cells[2] = Utils.formatUtcDate(patient.birthdate);
+            }
+            cells[3] = encounter.uuid;
+            cells[4] = encounter.encounterDatetime.getTime();
+            cells[5] = Utils.formatUtc8601(encounter.encounterDatetime);
+            cells[6] = Utils.formatYmdhms(encounter.encounterDatetime);
+            for (ExportEncounter.Value value : encounter.values) {
+                Integer index = indexer.getIndex(value.conceptUuid);
+                if (index == null) continue;
+                // For each observation there are two columns.  If the value is a concept,
+                // they contain the English name and the compressed concept ID; otherwise,
+                // both columns contain the formatted value.
+                final int col = numEncCols + index * COLUMNS_PER_OBS;
+
+                switch (value.hl7Type) {
+                    case HL7Constants.HL7_BOOLEAN:
+                        Boolean bool = getBooleanValue(value);
+                        cells[col] = cells[col + 1] = bool == null ? "" : Boolean.toString(bool);
+                        break;
+                    case HL7Constants.HL7_CODED:
+                    case HL7Constants.HL7_CODED_WITH_EXCEPTIONS:
+                        String coded = value.valueCodedUuid;
+                        cells[col] = coded == null ? "" : getConceptName(coded);
+                        cells[col + 1] = coded == null ? "" : compressUuid(coded);
+                        break;
+                    case HL7Constants.HL7_NUMERIC:
+                        Double numeric = value.valueNumeric;
+                        cells[col] = cells[col + 1] =
+                            numeric == null ? "" : Double.toString(numeric);
+                        break;
+                    case HL7Constants.HL7_TEXT:
+                        String text = value.valueText;
+                        cells[col] = cells[col + 1] = text == null ? "" : text;
+                        break;
+                    case HL7Constants.HL7_DATE:
+                        Date date = value.valueDatetime;
+                        cells[col] = cells[col + 1] = date == null ? "" : Utils.formatUtcDate(date);
+                        break;
+                    case HL7Constants.HL7_DATETIME:
+                        Date datetime = value.valueDatetime;
+                        cells[col] = cells[col + 1] = datetime == null ? "" : Utils.formatUtc8601(datetime);
+                        break;
+                }
+            }
+            return cells;
+        }
+
+        /**
+         * Gets the values of a row of the columnar format, typed as required by
+         * {@link ColumnarRowGroup#addRow}.  Values whose type doesn't match the type of
+         * their column (because a concept's datatype has changed) are left out.
+         */
+        Object[] getTypedValues(ExportPatient patient, ExportEncounter encounter,
+                                FixedSortedConceptIndexer indexer,
+                                ColumnarRowGroup.Type[] types) {
+            int numEncCols = COLUMNAR_ENCOUNTER_COLUMNS.length;
+            Object[] values = new Object[types.length];
+            values[0] = patient.uuid;
+            values[1] = patient.msfIdentifier;
+            values[2] = patient.birthdate == null ? null : patient.birthdate.getTime();
+            values[3] = encounter.uuid;
+            values[4] = encounter.encounterDatetime.getTime();
+            for (ExportEncounter.Value value : encounter.values) {
+                Integer index = indexer.getIndex(value.conceptUuid);
+                if (index == null) continue;
+                int col = numEncCols + index;
+                if (getColumnarType(value.hl7Type) != types[col]) continue;
+
+                switch (value.hl7Type) {
+                    case HL7Constants.HL7_BOOLEAN:
+                        values[col] = getBooleanValue(value);
+                        break;
+                    case HL7Constants.HL7_CODED:
+                    case HL7Constants.HL7_CODED_WITH_EXCEPTIONS:
+                        values[col] = value.valueCodedUuid;
+                        if (value.valueCodedUuid != null) {
+                            getConceptName(value.valueCodedUuid);  // for the "concept_names"
+                        }
+                        break;
+                    case HL7Constants.HL7_NUMERIC:
+                        values[col] = value.valueNumeric;
+                        break;
+                    case HL7Constants.HL7_DATE:
+                    case HL7Constants.HL7_DATETIME:
+                        values[col] = value.valueDatetime == null
+                            ? null : value.valueDatetime.getTime();
+                        break;
+                    default:
+                        values[col] = value.valueText;
+                        break;
+                }
+            }
+            return values;
+        }
+
+        /** Interprets a boolean value the same way as Obs.getValueAsBoolean(). */
+        @Nullable Boolean getBooleanValue(ExportEncounter.Value value) {
+            if (value.valueCodedUuid != null) {
+                if (value.valueCodedUuid.equals(trueUuid)) return true;
+                if (value.valueCodedUuid.equals(falseUuid)) return false;
+            } else if (value.valueNumeric != null) {
+                if (value.valueNumeric == 1) return true;
+                if (value.valueNumeric == 0) return false;
+            }
+            return null;
+        }
+
+        String getConceptName(String uuid) {
+            String name = conceptNames.get(uuid);
+            if (name == null) {
+                Concept concept = Context.getConceptService().getConceptByUuid(uuid);
+                name = concept == null ? "" : DbUtils.getConceptName(concept, locale);
+                conceptNames.put(uuid, name);
+            }
+            return name;
+        }
+    }
 }
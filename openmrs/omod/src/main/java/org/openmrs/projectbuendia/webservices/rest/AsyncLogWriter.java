@@ -0,0 +1,256 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * Appends timestamped lines to log files on a single background thread, so that
+ * the threads serving requests never wait for the disk.  Lines are queued in a
+ * bounded buffer; when the writer falls behind and the buffer is full, new lines
+ * are dropped and counted rather than blocking the caller.  The writer keeps the
+ * most recently used files open, and when a file grows past its size limit, it is
+ * renamed with a ".1" suffix (shifting older backups up to ".2", ".3", and so on)
+ * and a new file is started.
+ */
+public class AsyncLogWriter {
+    public static final AsyncLogWriter INSTANCE = new AsyncLogWriter(
+        8192, 10 * 1024 * 1024, 3, 64, "[HTTP] ");
+
+    private static final int MAX_STDERR_LINE_LENGTH = 480;
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long IDLE_FLUSH_MILLIS = 1000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Entry STOP = new Entry(null, 0, null);
+
+    private final BlockingQueue<Entry> queue;
+    private final long maxFileBytes;
+    private final int maxBackups;
+    private final int maxOpenFiles;
+    private final @Nullable String stderrPrefix;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final Thread thread;
+
+    // The following are accessed only by the writer thread.
+    private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private final LinkedHashMap<String, OpenFile> openFiles =
+        new LinkedHashMap<>(16, 0.75f, true /* access order */);
+    private long reportedDropCount = 0;
+
+    /**
+     * @param capacity     the number of lines that can be waiting to be written
+     * @param maxFileBytes the size at which a log file is rotated
+     * @param maxBackups   the number of rotated files to keep for each log
+     * @param maxOpenFiles the number of files to keep open at once
+     * @param stderrPrefix if not null, each line is also echoed (truncated) to
+     *                     stderr with this prefix
+     */
+    public AsyncLogWriter(int capacity, long maxFileBytes, int maxBackups,
+                          int maxOpenFiles, @Nullable String stderrPrefix) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxFileBytes = maxFileBytes;
+        this.maxBackups = maxBackups;
+        this.maxOpenFiles = maxOpenFiles;
+        this.stderrPrefix = stderrPrefix;
+        thread = new Thread("Buendia log writer") {
+            @Override public void run() {
+                drain();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Queues a line to be appended to the given file.  Never blocks. */
+    public void append(String filename, Date time, String message) {
+        if (!queue.offer(new Entry(filename, time.getTime(), message))) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    /** Returns the number of lines dropped because the buffer was full. */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Writes out all queued lines, closes all files, and stops the writer thread.
+     * Does nothing if the writer has already been closed.
+     */
+    public void close() throws InterruptedException {
+        if (!thread.isAlive()) return;
+        queue.put(STOP);
+        thread.join();
+    }
+
+    private void drain() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (true) {
+            Entry first;
+            try {
+                first = queue.poll(IDLE_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                first = STOP;
+            }
+            if (first == null) {
+                flushAll();
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            for (Entry entry : batch) {
+                if (entry == STOP) {
+                    closeAll();
+                    return;
+                }
+                try {
+                    write(entry);
+                } catch (RuntimeException e) {
+                    // Losing one line is better than stopping the writer for good.
+                    System.err.println("Failed to write log line to " + entry.filename);
+                    e.printStackTrace();
+                }
+            }
+            batch.clear();
+            reportDrops();
+            if (queue.isEmpty()) flushAll();
+        }
+    }
+
+    private void write(Entry entry) {
+        String timestamp = "\u001b[32m" + format.format(new Date(entry.time)) + "\u001b[0m ";
+        byte[] bytes = ("\n" + timestamp + entry.message + "\n").getBytes(UTF_8);
+        try {
+            OpenFile file = getOpenFile(entry.filename);
+            if (file.size > 0 && file.size + bytes.length > maxFileBytes) {
+                closeFile(entry.filename);
+                rotate(entry.filename);
+                file = getOpenFile(entry.filename);
+            }
+            file.output.write(bytes);
+            file.size += bytes.length;
+        } catch (IOException e) {
+            closeFile(entry.filename);
+        }
+
+        // Also print a truncated version of the message to stderr for regular logging.
+        if (stderrPrefix != null) {
+            String message = entry.message;
+            if (message.length() > MAX_STDERR_LINE_LENGTH) {
+                message = message.substring(0, MAX_STDERR_LINE_LENGTH) + "...";
+            }
+            System.err.println(timestamp + stderrPrefix + message);
+        }
+    }
+
+    private OpenFile getOpenFile(String filename) throws IOException {
+        OpenFile file = openFiles.get(filename);
+        if (file == null) {
+            if (openFiles.size() >= maxOpenFiles) {
+                closeFile(openFiles.keySet().iterator().next());  // least recently used
+            }
+            file = new OpenFile(new File(filename));
+            openFiles.put(filename, file);
+        }
+        return file;
+    }
+
+    /** Shifts filename to filename.1, filename.1 to filename.2, and so on. */
+    private void rotate(String filename) {
+        new File(filename + "." + maxBackups).delete();
+        for (int i = maxBackups - 1; i >= 1; i--) {
+            new File(filename + "." + i).renameTo(new File(filename + "." + (i + 1)));
+        }
+        if (maxBackups > 0) {
+            new File(filename).renameTo(new File(filename + ".1"));
+        } else {
+            new File(filename).delete();
+        }
+    }
+
+    private void reportDrops() {
+        long dropped = droppedCount.get();
+        if (dropped > reportedDropCount) {
+            System.err.println("Log buffer full; dropped " + (dropped - reportedDropCount)
+                + " lines (" + dropped + " in total)");
+            reportedDropCount = dropped;
+        }
+    }
+
+    private void flushAll() {
+        List<String> failed = new ArrayList<>();
+        for (Map.Entry<String, OpenFile> entry : openFiles.entrySet()) {
+            try {
+                entry.getValue().output.flush();
+            } catch (IOException e) {
+                failed.add(entry.getKey());
+            }
+        }
+        for (String filename : failed) {
+            closeFile(filename);
+        }
+    }
+
+    private void closeFile(String filename) {
+        OpenFile file = openFiles.remove(filename);
+        if (file != null) {
+            try {
+                file.output.close();
+            } catch (IOException e) { }
+        }
+    }
+
+    private void closeAll() {
+        for (String filename : new ArrayList<>(openFiles.keySet())) {
+            closeFile(filename);
+        }
+    }
+
+    private static class Entry {
+        final String filename;
+        final long time;
+        final String message;
+
+        Entry(String filename, long time, String message) {
+            this.filename = filename;
+            this.time = time;
+            this.message = message;
+        }
+    }
+
+    private static class OpenFile {
+        final OutputStream output;
+        long size;
+
+        OpenFile(File file) throws IOException {
+            output = new BufferedOutputStream(new FileOutputStream(file, true /* append */));
+            size = file.length();
+        }
+    }
+}
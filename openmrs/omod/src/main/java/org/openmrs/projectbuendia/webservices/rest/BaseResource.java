@@ -1,5 +1,8 @@
 package org.openmrs.projectbuendia.webservices.rest;
 
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.openmrs.OpenmrsObject;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.EncounterService;
@@ -21,18 +24,27 @@ import org.openmrs.module.webservices.rest.web.resource.api.Listable;
 import org.openmrs.module.webservices.rest.web.resource.api.Retrievable;
 import org.openmrs.module.webservices.rest.web.resource.api.Searchable;
 import org.openmrs.module.webservices.rest.web.resource.api.Updatable;
+import org.openmrs.module.webservices.rest.web.response.GenericRestException;
 import org.openmrs.module.webservices.rest.web.response.InvalidSearchException;
 import org.openmrs.module.webservices.rest.web.response.ResponseException;
 import org.openmrs.projectbuendia.Utils;
 import org.projectbuendia.openmrs.api.Bookmark;
 import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.projectbuendia.openmrs.api.db.SyncConsumer;
+import org.projectbuendia.openmrs.api.db.SyncPage;
 import org.projectbuendia.openmrs.webservices.rest.RestController;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
 
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -44,6 +56,16 @@ import javax.servlet.http.HttpServletResponse;
 public abstract class BaseResource<T extends OpenmrsObject>
     implements Listable, Searchable, Creatable, Retrievable, Updatable, Deletable {
     private static final RequestLogger logger = RequestLogger.LOGGER;
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    // Adaptive sync aims to produce each page in about a second, and to keep it under
+    // half a megabyte, remembering enough lineages for a few hundred tablets.
+    private static final SyncPageSizer pageSizer = new SyncPageSizer(
+        10 /* min page size */, 1000 /* ms */, 512 * 1024 /* bytes */, 1000 /* lineages */);
+    // Keeps the most recent sync pages of all resources, so that tablets polling with the
+    // same bookmark share one query.  Pages older than a minute are always refreshed.
+    private static final SyncPageCache syncPageCache = new SyncPageCache(200, 60 * 1000);
+    // Told about every write, so that clients waiting for changes hear about them at once.
+    private static final SyncChangeNotifier changeNotifier = SyncChangeNotifier.INSTANCE;
 
     private final List<Representation> availableRepresentations;
     protected final String pluralCollectionName;
@@ -89,10 +111,7 @@ public abstract class BaseResource<T extends OpenmrsObject>
     public SimpleObject getAll(RequestContext context) throws ResponseException {
         try {
             logger.request(context, this, "getAll");
-            List<SimpleObject> results = new ArrayList<>();
-            for (T item : listItems(context)) {
-                results.add(toJson(item, context));
-            }
+            List<SimpleObject> results = toJsonList(listItems(context), context);
             return logger.reply(context, this, "getAll",
                 new SimpleObject().add("results", results));
         } catch (Exception e) {
@@ -103,27 +122,71 @@ public abstract class BaseResource<T extends OpenmrsObject>
 
     /**
      * If there is a bookmark query parameter, fetches items after the bookmark;
-     * otherwise searches for items matching the criteria in context.
+     * otherwise searches for items matching the criteria in context.  If the
+     * "stream" query parameter is also present, the items after the bookmark
+     * are written directly to the response as they are read from the database,
+     * and null is returned.  The size of a page of items after the bookmark is
+     * controlled by the "limit" and "adaptive" parameters; see getSyncPageSize().
+     * Pages that aren't streamed are cached; see getCachedSyncJson().  Clients that
+     * accept {@link CompactSyncFormat#MEDIA_TYPE} get pages of items after the bookmark
+     * in that encoding, written directly to the response (never streamed), and null is
+     * returned.  Sync replies are gzipped for clients that accept gzip; buffered ones are
+     * then also written directly to the response, and null is returned.
      */
     public SimpleObject search(RequestContext context) throws ResponseException {
         Bookmark bookmark = getBookmark(context);
+        boolean compact = bookmark != null && CompactSyncFormat.isRequested(context.getRequest());
+        if (bookmark != null && context.getParameter("stream") != null && !compact) {
+            logger.request(context, this, "stream");
+            try {
+                SimpleObject trailer = streamSyncReply(bookmark, context);
+                logger.reply(context, this, "stream", trailer);
+                return null;
+            } catch (IOException e) {
+                logger.error(context, this, "stream", e);
+                throw new GenericRestException("Error writing sync results", e);
+            } catch (Exception e) {
+                logger.error(context, this, "stream", e);
+                throw e;
+            }
+        }
         String op = bookmark != null ? "sync" : "search";
         logger.request(context, this, op);
         try {
+            long startMillis = System.currentTimeMillis();
             SimpleObject reply = new SimpleObject();
-            List<T> items = new ArrayList<>();
+            List<SimpleObject> results = new ArrayList<>();
+            int pageSize = 0;
+            Bookmark newBookmark = null;
+            boolean loaded = false;
             if (bookmark != null) {
-                reply = syncItems(bookmark, items);
+                pageSize = getSyncPageSize(bookmark, context);
+                SyncPageCache.Result cached = getCachedSyncJson(bookmark, pageSize, context);
+                SyncPage<SimpleObject> page = cached.page;
+                loaded = cached.wasLoaded();
+                results.addAll(page.results);
+                newBookmark = Bookmark.clampToBufferedRequestTime(page.bookmark, new Date());
+                // If we fetched a full page, there's probably more data available.
+                reply.add("bookmark", newBookmark.serialize())
+                    .add("more", results.size() == pageSize);
             } else {
-                items.addAll(searchItems(context));
-            }
-            List<SimpleObject> results = new ArrayList<>();
-            for (T item : items) {
-                results.add(toJson(item, context));
+                results.addAll(toJsonList(searchItems(context), context));
             }
             reply.add("results", results);
+            // The size of a JSON reply is unknown until Spring has serialized it.
+            boolean written = bookmark != null
+                && (compact || CompactSyncFormat.acceptsGzip(context.getRequest()));
+            long bytes = written ? writeSyncReply(reply, compact, context) : 0;
+            // The logged reply is abbreviated, so its results can't be counted.
+            logger.recordSize(context, results.size(), bytes);
+            // A page served from the cache took almost no time, which would only make the
+            // sizer grow the next page (and thus miss the cache) for no good reason.
+            if (bookmark != null && loaded && isAdaptiveSync(context)) {
+                pageSizer.record(getLineageKey(newBookmark), pageSize, results.size(),
+                    System.currentTimeMillis() - startMillis, bytes);
+            }
             logger.reply(context, this, op, abbreviateReply(reply));
-            return reply;
+            return written ? null : reply;
         } catch (Exception e) {
             logger.error(context, this, op, e);
             throw e;
@@ -137,6 +200,7 @@ public abstract class BaseResource<T extends OpenmrsObject>
             logger.request(context, this, "create", data);
             Utils.requirePropertyAbsent(data, "uuid");
             T item = createItem(data, context);
+            changeNotifier.poke();
             return logger.reply(context, this, "create", toJson(item, context));
         } catch (Exception e) {
             logger.error(context, this, "create", e);
@@ -162,6 +226,7 @@ public abstract class BaseResource<T extends OpenmrsObject>
             logger.request(context, this, "update", data);
             T item = retrieveRequiredItem(uuid);
             T newItem = updateItem(item, data, context);
+            changeNotifier.poke();
             return logger.reply(context, this, "update", toJson(newItem, context));
         } catch (Exception e) {
             logger.error(context, this, "update", e);
@@ -175,6 +240,7 @@ public abstract class BaseResource<T extends OpenmrsObject>
             logger.request(context, this, "delete", reason);
             T item = retrieveRequiredItem(uuid);
             deleteItem(item, reason, context);
+            changeNotifier.poke();
             logger.reply(context, this, "delete", null);
         } catch (Exception e) {
             logger.error(context, this, "delete", e);
@@ -194,12 +260,72 @@ public abstract class BaseResource<T extends OpenmrsObject>
             "Searching for %s is not implemented", pluralCollectionName));
     }
 
-    /** Fetches a chunk of items newer than a bookmarked position, returning an updated bookmark. */
-    protected SimpleObject syncItems(Bookmark bookmark, List<T> items) {
+    /** Fetches up to maxResults items newer than a bookmarked position. */
+    protected SyncPage<T> syncItems(Bookmark bookmark, int maxResults) {
         throw new UnsupportedOperationException(String.format(
             "Searching for %s is not implemented", pluralCollectionName));
     }
 
+    /**
+     * Fetches up to maxResults items newer than a bookmarked position as JSON.  By default
+     * this converts the items from syncItems(); subclasses can override it to build the
+     * JSON directly from query results without loading whole entities.  Pages are cached
+     * and shared between requests, so the JSON must not depend on anything about the
+     * request other than the bookmark, maxResults, and the requested representation.
+     */
+    protected SyncPage<SimpleObject> syncJson(
+        Bookmark bookmark, int maxResults, RequestContext context) {
+        SyncPage<T> page = syncItems(bookmark, maxResults);
+        return new SyncPage<>(toJsonList(page.results, context), page.bookmark);
+    }
+
+    /**
+     * Returns the bookmark of the most recently updated item in the collection, which must
+     * advance whenever an item is added or changed.  Sync pages are cached until it does.
+     */
+    protected Bookmark getSyncHighWaterMark() {
+        throw new UnsupportedOperationException(String.format(
+            "Syncing %s is not implemented", pluralCollectionName));
+    }
+
+    /** Returns the number of items in a page of sync results when the client doesn't specify. */
+    protected int getDefaultSyncPageSize() {
+        throw new UnsupportedOperationException(String.format(
+            "Syncing %s is not implemented", pluralCollectionName));
+    }
+
+    /**
+     * Returns the maximum number of items in a page of sync results.  Note that the
+     * REST module rejects any "limit" above its webservices.rest.maxResultsAbsolute
+     * global property (1000 by default) before the request reaches us.
+     */
+    protected int getMaxSyncPageSize() {
+        return getDefaultSyncPageSize();
+    }
+
+    /**
+     * Passes up to maxResults items newer than a bookmarked position to the consumer, one
+     * at a time, returning the bookmark of the last item (or null if there were none).
+     */
+    protected Bookmark streamItems(Bookmark bookmark, int maxResults, SyncConsumer<T> consumer) {
+        throw new UnsupportedOperationException(String.format(
+            "Streaming %s is not implemented", pluralCollectionName));
+    }
+
+    /**
+     * Passes up to maxResults items newer than a bookmarked position to the consumer as
+     * JSON, returning the bookmark of the last item (or null if there were none).  By
+     * default this converts the items from streamItems().
+     */
+    protected Bookmark streamJson(Bookmark bookmark, int maxResults,
+        final SyncConsumer<SimpleObject> consumer, final RequestContext context) {
+        return streamItems(bookmark, maxResults, new SyncConsumer<T>() {
+            @Override public void accept(T item) {
+                consumer.accept(toJson(item, context));
+            }
+        });
+    }
+
     /** Creates an item from the given data and returns it. */
     protected T createItem(SimpleObject data, RequestContext context) {
         throw new UnsupportedOperationException(String.format(
@@ -235,6 +361,19 @@ public abstract class BaseResource<T extends OpenmrsObject>
         return json;
     }
 
+    /**
+     * Converts a collection of items to JSON.  By default this converts each item with
+     * toJson(); subclasses can override it to look up related data for all the items
+     * at once.
+     */
+    protected List<SimpleObject> toJsonList(Collection<T> items, RequestContext context) {
+        List<SimpleObject> results = new ArrayList<>(items.size());
+        for (T item : items) {
+            results.add(toJson(item, context));
+        }
+        return results;
+    }
+
     /** Populates the given JSON object with data from the given item. */
     protected abstract void populateJson(SimpleObject json, T item, RequestContext context);
 
@@ -268,6 +407,176 @@ public abstract class BaseResource<T extends OpenmrsObject>
             .add("more", reply.get("more"));
     }
 
+    /**
+     * Writes a sync reply with the same structure as the one returned by search(),
+     * except that each item is serialized to the response as soon as it is read, and
+     * the bookmark and "more" flag come after the results.  Returns the reply without
+     * its results, for logging.
+     */
+    private SimpleObject streamSyncReply(Bookmark bookmark, RequestContext context)
+        throws IOException {
+        long startMillis = System.currentTimeMillis();
+        int maxResults = getSyncPageSize(bookmark, context);
+        HttpServletResponse response = context.getResponse();
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        CountingOutputStream output = new CountingOutputStream(response.getOutputStream());
+        JsonGenerator json = JSON_MAPPER.getJsonFactory().createJsonGenerator(
+            CompactSyncFormat.openBody(context.getRequest(), response, output),
+            JsonEncoding.UTF8);
+
+        json.writeStartObject();
+        json.writeArrayFieldStart("results");
+        JsonItemWriter writer = new JsonItemWriter(json);
+        Bookmark newBookmark = Bookmark.clampToBufferedRequestTime(
+            streamJson(bookmark, maxResults, writer, context), new Date());
+        json.writeEndArray();
+        // If we fetched a full page, there's probably more data available.
+        boolean more = writer.count == maxResults;
+        json.writeStringField("bookmark", newBookmark.serialize());
+        json.writeBooleanField("more", more);
+        json.writeEndObject();
+        json.close();  // finishes any compression
+        logger.recordSize(context, writer.count, output.count);
+
+        if (isAdaptiveSync(context)) {
+            pageSizer.record(getLineageKey(newBookmark), maxResults, writer.count,
+                System.currentTimeMillis() - startMillis, output.count);
+        }
+        return new SimpleObject()
+            .add("results", String.format("...%d items streamed...", writer.count))
+            .add("bookmark", newBookmark.serialize())
+            .add("more", more);
+    }
+
+    /**
+     * Writes a buffered sync reply to the response, gzipped if the client accepts that,
+     * and in the compact encoding with its results as a table if requested.  Returns the
+     * number of bytes written.
+     */
+    private long writeSyncReply(SimpleObject reply, boolean compact, RequestContext context) {
+        try {
+            CountingOutputStream output = new CountingOutputStream(
+                context.getResponse().getOutputStream());
+            if (!compact) {
+                CompactSyncFormat.writeReply(context.getRequest(), context.getResponse(),
+                    output, "application/json", reply);
+                return output.count;
+            }
+            @SuppressWarnings("unchecked")
+            List<SimpleObject> results = (List<SimpleObject>) reply.get("results");
+            CompactSyncFormat format = new CompactSyncFormat();
+            SimpleObject table = format.encode(results);
+            CompactSyncFormat.writeReply(context.getRequest(), context.getResponse(), output,
+                new SimpleObject()
+                    .add("results", table)
+                    .add("strings", format.getStrings())
+                    .add("bookmark", reply.get("bookmark"))
+                    .add("more", reply.get("more")));
+            return output.count;
+        } catch (IOException e) {
+            throw new GenericRestException("Error writing sync results", e);
+        }
+    }
+
+    /** Serializes each item it receives as an element of a JSON array. */
+    private static class JsonItemWriter implements SyncConsumer<SimpleObject> {
+        final JsonGenerator json;
+        int count = 0;
+
+        JsonItemWriter(JsonGenerator json) {
+            this.json = json;
+        }
+
+        @Override public void accept(SimpleObject item) {
+            try {
+                json.writeObject(item);
+            } catch (IOException e) {
+                throw new GenericRestException("Error writing sync results", e);
+            }
+            count++;
+        }
+    }
+
+    /** Counts the bytes written to an OutputStream. */
+    static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Determines how many items to return in a page of sync results: the page size
+     * chosen by the adaptive sizer if the "adaptive" parameter is present, otherwise
+     * the page size given by the "limit" parameter, otherwise the default page size.
+     */
+    private int getSyncPageSize(Bookmark bookmark, RequestContext context) {
+        int maxSize = getMaxSyncPageSize();
+        if (isAdaptiveSync(context)) {
+            return pageSizer.choose(getLineageKey(bookmark), getDefaultSyncPageSize(), maxSize);
+        }
+        String limit = context.getParameter("limit");
+        if (limit == null) return Math.min(getDefaultSyncPageSize(), maxSize);
+        Integer size = Utils.toIntOrNull(limit);
+        if (size == null || size <= 0) {
+            throw new InvalidSearchException("Invalid limit \"" + limit + "\"");
+        }
+        return Math.min(size, maxSize);
+    }
+
+    /**
+     * Fetches up to pageSize items after the bookmark, or from the beginning if the bookmark
+     * is null, as JSON.  Pages after a bookmark come from the cache when possible.
+     */
+    SyncPage<SimpleObject> fetchSyncJson(
+        @Nullable Bookmark bookmark, int pageSize, RequestContext context) {
+        return bookmark == null ? syncJson(null, pageSize, context)
+            : getCachedSyncJson(bookmark, pageSize, context).page;
+    }
+
+    /**
+     * Gets the page of items after a bookmark from the cache, if nothing has changed since
+     * it was last produced; otherwise produces it with syncJson().  Identical requests that
+     * arrive while the page is being produced wait for it and share the result.  Bookmarks
+     * clamped to the request time are coarsened (see SyncPageCache.coarsen()) so that
+     * tablets polling at about the same time share a page.  The page is produced in the
+     * context of whichever request asked for it first, so the requested representation,
+     * the only other part of the context that toJson() may depend on, is part of the key.
+     */
+    private SyncPageCache.Result getCachedSyncJson(
+        Bookmark bookmark, final int pageSize, final RequestContext context) {
+        final Bookmark shared = SyncPageCache.coarsen(bookmark);
+        String key = getClass().getSimpleName() + "/"
+            + context.getRepresentation().getRepresentation();
+        return syncPageCache.lookup(key, shared, pageSize,
+            getSyncHighWaterMark(), new Callable<SyncPage<SimpleObject>>() {
+                @Override public SyncPage<SimpleObject> call() {
+                    return syncJson(shared, pageSize, context);
+                }
+            });
+    }
+
+    private static boolean isAdaptiveSync(RequestContext context) {
+        return context.getParameter("adaptive") != null;
+    }
+
+    /** Identifies the lineage of pages that continues from the given bookmark. */
+    private String getLineageKey(Bookmark bookmark) {
+        return getClass().getSimpleName() + "/" + bookmark.serialize();
+    }
+
     private static Bookmark getBookmark(RequestContext context) {
         String since = context.getParameter("since");
         if (since == null) return null;
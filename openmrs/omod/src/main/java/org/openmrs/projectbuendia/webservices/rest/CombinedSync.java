@@ -0,0 +1,176 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.openmrs.OpenmrsObject;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.RequestContext;
+import org.openmrs.module.webservices.rest.web.response.GenericRestException;
+import org.openmrs.module.webservices.rest.web.response.InvalidSearchException;
+import org.openmrs.projectbuendia.Utils;
+import org.projectbuendia.openmrs.api.Bookmark;
+import org.projectbuendia.openmrs.api.db.SyncPage;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Syncs patients, orders, and observations together in one round trip.  The request
+ * carries a {@link CompositeBookmark} in its "since" parameter (absent for a first sync),
+ * and the reply has the form:
+ *
+ *     {
+ *         "patients": [patients after the patient bookmark],
+ *         "orders": [orders after the order bookmark],
+ *         "observations": [observations after the observation bookmark],
+ *         "locations": [all locations],
+ *         "providers": [all providers],
+ *         "bookmark": [composite bookmark for the next request],
+ *         "more": [true if any collection may have more items]
+ *     }
+ *
+ * where each item is in the same form as in the reply from the individual resource.
+ * The total number of items is limited by the "limit" parameter.  The collections are
+ * filled in the order above, so that observations never arrive before their patients,
+ * and a collection that gets no share of the limit keeps its bookmark for next time.
+ * Locations and providers have no bookmarks; they are included in full on a first sync,
+ * or whenever the "lists" parameter is present.  Clients that accept
+ * {@link CompactSyncFormat#MEDIA_TYPE} get each collection as a table in that encoding,
+ * with one string table for the whole reply.  Replies are gzipped for clients that
+ * accept gzip.  Compact or gzipped replies are written directly to the response, and
+ * sync() returns null.
+ */
+public class CombinedSync {
+    private static final RequestLogger logger = RequestLogger.LOGGER;
+    static final int DEFAULT_ITEMS_PER_BATCH = 500;
+
+    private final Map<String, BaseResource<?>> streams = new LinkedHashMap<>();
+
+    public CombinedSync() {
+        streams.put("patients", new PatientResource());
+        streams.put("orders", new OrderResource());
+        streams.put("observations", new ObservationResource());
+    }
+
+    public SimpleObject sync(RequestContext context) {
+        logger.request(context, this, "sync");
+        try {
+            String sinceParam = context.getParameter("since");
+            CompositeBookmark since = parseBookmark(sinceParam);
+            int budget = getLimit(context);
+
+            Date requestTime = new Date();
+            CompositeBookmark next = new CompositeBookmark();
+            SimpleObject reply = new SimpleObject();
+            int total = 0;
+            boolean more = false;
+            for (Map.Entry<String, BaseResource<?>> stream : streams.entrySet()) {
+                String name = stream.getKey();
+                BaseResource<?> resource = stream.getValue();
+                Bookmark bookmark = since.get(name);
+                if (budget == 0) {
+                    next.put(name, bookmark);
+                    reply.add(name, new ArrayList<SimpleObject>());
+                    more = true;
+                    continue;
+                }
+                int pageSize = Math.min(budget, resource.getMaxSyncPageSize());
+                SyncPage<SimpleObject> page = resource.fetchSyncJson(bookmark, pageSize, context);
+                budget -= page.results.size();
+                total += page.results.size();
+                // If we fetched a full page, there's probably more data available.
+                more = more || page.results.size() == pageSize;
+                next.put(name, Bookmark.clampToBufferedRequestTime(page.bookmark, requestTime));
+                reply.add(name, page.results);
+            }
+            if (sinceParam == null || context.getParameter("lists") != null) {
+                reply.add("locations", listJson(new LocationResource(), context));
+                reply.add("providers", listJson(new ProviderResource(), context));
+            }
+            reply.add("bookmark", next.serialize()).add("more", more);
+            boolean compact = CompactSyncFormat.isRequested(context.getRequest());
+            boolean written = compact || CompactSyncFormat.acceptsGzip(context.getRequest());
+            long bytes = written ? writeReply(reply, compact, context) : 0;
+            logger.recordSize(context, total, bytes);
+            logger.reply(context, this, "sync", new SimpleObject()
+                .add("results", String.format("...%d items...", total))
+                .add("bookmark", next.serialize())
+                .add("more", more));
+            return written ? null : reply;
+        } catch (RuntimeException e) {
+            logger.error(context, this, "sync", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the reply to the response, gzipped if the client accepts that, and with
+     * every list of items encoded as a compact table if requested.  Returns the number
+     * of bytes written.
+     */
+    @SuppressWarnings("unchecked")
+    private static long writeReply(SimpleObject reply, boolean compact, RequestContext context) {
+        try {
+            HttpServletResponse response = context.getResponse();
+            BaseResource.CountingOutputStream output =
+                new BaseResource.CountingOutputStream(response.getOutputStream());
+            if (!compact) {
+                CompactSyncFormat.writeReply(
+                    context.getRequest(), response, output, "application/json", reply);
+                return output.count;
+            }
+            CompactSyncFormat format = new CompactSyncFormat();
+            SimpleObject compactReply = new SimpleObject();
+            for (Map.Entry<String, Object> entry : reply.entrySet()) {
+                Object value = entry.getValue();
+                compactReply.add(entry.getKey(), value instanceof List
+                    ? format.encode((List<SimpleObject>) value) : value);
+            }
+            compactReply.add("strings", format.getStrings());
+            CompactSyncFormat.writeReply(context.getRequest(), response, output, compactReply);
+            return output.count;
+        } catch (IOException e) {
+            throw new GenericRestException("Error writing sync results", e);
+        }
+    }
+
+    private static CompositeBookmark parseBookmark(String since) {
+        if (since == null) return new CompositeBookmark();
+        try {
+            return CompositeBookmark.deserialize(since);
+        } catch (ParseException e) {
+            throw new InvalidSearchException("Invalid bookmark \"" + since + "\": " + e.getMessage());
+        }
+    }
+
+    private static int getLimit(RequestContext context) {
+        String limit = context.getParameter("limit");
+        if (limit == null) return DEFAULT_ITEMS_PER_BATCH;
+        Integer size = Utils.toIntOrNull(limit);
+        if (size == null || size <= 0) {
+            throw new InvalidSearchException("Invalid limit \"" + limit + "\"");
+        }
+        return size;
+    }
+
+    private static <T extends OpenmrsObject> List<SimpleObject> listJson(
+        BaseResource<T> resource, RequestContext context) {
+        return resource.toJsonList(resource.listItems(context), context);
+    }
+}
@@ -0,0 +1,174 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openmrs.module.webservices.rest.SimpleObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A compact encoding for lists of sync results, which clients can ask for by including
+ * {@link #MEDIA_TYPE} in their Accept header.  A list of items, each of which would be a
+ * JSON object, is encoded as a table:
+ *
+ *     {
+ *         "columns": ["uuid", "encounter_uuid", "patient_uuid", ...],
+ *         "rows": [["0f6a...", 0, 1, ...], ["1b3c...", 0, 2, ...], ...]
+ *     }
+ *
+ * so that the keys are sent only once.  Each row has a value for every column, which is
+ * null where the item lacked that key.  The values of referencing columns (those whose
+ * names end in "_uuid", and "value_coded", which holds a concept UUID) and of the "type"
+ * column are replaced by indexes into a string table that is shared by all the tables in
+ * a reply, and that is sent alongside them as "strings"; in a page of observations, the
+ * same few concept, patient, and encounter UUIDs recur on many rows.  The replies of the
+ * sync endpoints keep their usual shape, with these tables in place of their lists of
+ * results.
+ */
+public class CompactSyncFormat {
+    public static final String MEDIA_TYPE = "application/vnd.buendia.compact+json";
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    private final Map<String, Integer> stringIndexes = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    /** Returns true if the client has asked for the compact encoding. */
+    public static boolean isRequested(HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        return accept != null && accept.contains(MEDIA_TYPE);
+    }
+
+    /** Returns true if the client's Accept-Encoding header allows gzip. */
+    public static boolean acceptsGzip(HttpServletRequest request) {
+        return acceptsGzip(request.getHeader("Accept-Encoding"));
+    }
+
+    /**
+     * Returns true if an Accept-Encoding header value allows gzip, either by name or
+     * through "*", with a nonzero quality; "gzip;q=0" explicitly refuses it.
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        Double gzipQuality = null;
+        Double anyQuality = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim().toLowerCase();
+            double quality = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) gzipQuality = quality;
+            if (name.equals("*")) anyQuality = quality;
+        }
+        if (gzipQuality != null) return gzipQuality > 0;
+        return anyQuality != null && anyQuality > 0;
+    }
+
+    /**
+     * Returns a stream for writing the response body, which is compressed with gzip if
+     * the client accepts that, setting the response headers to match.  The stream must
+     * be closed to complete the response.
+     */
+    public static OutputStream openBody(
+        HttpServletRequest request, HttpServletResponse response, OutputStream output)
+        throws IOException {
+        if (acceptsGzip(request)) {
+            response.setHeader("Content-Encoding", "gzip");
+            response.addHeader("Vary", "Accept-Encoding");
+            return new GZIPOutputStream(output);
+        }
+        return output;
+    }
+
+    /** Writes a reply containing compact tables to the response, gzipped if possible. */
+    public static void writeReply(
+        HttpServletRequest request, HttpServletResponse response, OutputStream output,
+        SimpleObject reply) throws IOException {
+        writeReply(request, response, output, MEDIA_TYPE, reply);
+    }
+
+    /** Writes a reply of the given content type to the response, gzipped if possible. */
+    public static void writeReply(
+        HttpServletRequest request, HttpServletResponse response, OutputStream output,
+        String contentType, SimpleObject reply) throws IOException {
+        response.setContentType(contentType);
+        response.setCharacterEncoding("UTF-8");
+        OutputStream body = openBody(request, response, output);
+        JSON_MAPPER.writeValue(body, reply);  // closes the body, finishing compression
+    }
+
+    /** Encodes a list of items as a table, adding strings to this encoder's table. */
+    public SimpleObject encode(List<SimpleObject> items) {
+        Map<String, Integer> columnIndexes = new LinkedHashMap<>();
+        for (SimpleObject item : items) {
+            for (String key : item.keySet()) {
+                if (!columnIndexes.containsKey(key)) {
+                    columnIndexes.put(key, columnIndexes.size());
+                }
+            }
+        }
+        List<String> columns = new ArrayList<>(columnIndexes.keySet());
+        boolean[] referencing = new boolean[columns.size()];
+        for (int c = 0; c < columns.size(); c++) {
+            String column = columns.get(c);
+            referencing[c] = column.endsWith("_uuid")
+                || column.equals("value_coded") || column.equals("type");
+        }
+
+        List<Object[]> rows = new ArrayList<>(items.size());
+        for (SimpleObject item : items) {
+            Object[] row = new Object[columns.size()];
+            for (Map.Entry<String, Object> entry : item.entrySet()) {
+                int c = columnIndexes.get(entry.getKey());
+                Object value = entry.getValue();
+                row[c] = referencing[c] && value instanceof String
+                    ? getStringIndex((String) value) : value;
+            }
+            rows.add(row);
+        }
+        return new SimpleObject().add("columns", columns).add("rows", rows);
+    }
+
+    /** Returns the string table, which must be sent with the encoded tables. */
+    public List<String> getStrings() {
+        return strings;
+    }
+
+    private int getStringIndex(String value) {
+        Integer index = stringIndexes.get(value);
+        if (index == null) {
+            index = strings.size();
+            strings.add(value);
+            stringIndexes.put(value, index);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,76 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.projectbuendia.openmrs.api.Bookmark;
+
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * A set of bookmarks, one for each of several collections being synced together.  It is
+ * serialized as a comma-separated list of name=bookmark pairs, for example
+ * "patients=2015-11-25T11:25:28.000Z/abc,orders=2015-11-25T11:25:29.000Z".
+ * A collection with no bookmark is synced from the beginning.
+ */
+public class CompositeBookmark {
+    private final Map<String, Bookmark> bookmarks = new LinkedHashMap<>();
+
+    public @Nullable Bookmark get(String name) {
+        return bookmarks.get(name);
+    }
+
+    public CompositeBookmark put(String name, @Nullable Bookmark bookmark) {
+        if (bookmark == null) {
+            bookmarks.remove(name);
+        } else {
+            bookmarks.put(name, bookmark);
+        }
+        return this;
+    }
+
+    @Override public boolean equals(Object obj) {
+        return obj instanceof CompositeBookmark
+            && bookmarks.equals(((CompositeBookmark) obj).bookmarks);
+    }
+
+    @Override public int hashCode() {
+        return bookmarks.keySet().hashCode();
+    }
+
+    public String serialize() {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, Bookmark> entry : bookmarks.entrySet()) {
+            if (result.length() > 0) result.append(',');
+            result.append(entry.getKey()).append('=').append(entry.getValue().serialize());
+        }
+        return result.toString();
+    }
+
+    public static CompositeBookmark deserialize(String text) throws ParseException {
+        CompositeBookmark result = new CompositeBookmark();
+        if (text.isEmpty()) return result;
+        int offset = 0;
+        for (String part : text.split(",")) {
+            int equals = part.indexOf('=');
+            if (equals <= 0) {
+                throw new ParseException("Expected name=bookmark: " + part, offset);
+            }
+            result.put(part.substring(0, equals), Bookmark.deserialize(part.substring(equals + 1)));
+            offset += part.length() + 1;
+        }
+        return result;
+    }
+}
@@ -46,6 +46,7 @@ import org.openmrs.api.ProviderService;
 import org.openmrs.api.context.Context;
 import org.openmrs.hl7.HL7Constants;
 import org.openmrs.projectbuendia.Utils;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
 import org.projectbuendia.openmrs.web.controller.ConceptUuids;
 
 import java.util.Collections;
@@ -288,7 +289,11 @@ public class DbUtils {
     }
 
     public static String getConceptTypeName(Concept concept) {
-        return HL7_TYPE_NAMES.get(concept.getDatatype().getHl7Abbreviation());
+        return getHl7TypeName(concept.getDatatype().getHl7Abbreviation());
+    }
+
+    public static String getHl7TypeName(String hl7Abbreviation) {
+        return HL7_TYPE_NAMES.get(hl7Abbreviation);
     }
 
     public static ConceptClass getConceptClass(String name) {
@@ -400,21 +405,8 @@ public class DbUtils {
      * {@code REVISE}, the previous order needs to have not expired, which we can't guarantee.
      */
     public static Order getLastRevision(Order order) {
-        // Construct a map of forward pointers using the backward pointers from getPreviousOrder().
-        Map<String, String> nextOrderUuids = new HashMap<>();
-        for (Order o : Context.getOrderService().getAllOrdersByPatient(order.getPatient())) {
-            Order prev = o.getPreviousOrder();
-            if (prev != null) {
-                nextOrderUuids.put(prev.getUuid(), o.getUuid());
-            }
-        }
-
-        // Walk forward until the end of the chain.
-        String uuid = order.getUuid();
-        while (nextOrderUuids.containsKey(uuid)) {
-            uuid = nextOrderUuids.get(uuid);
-        }
-        return Context.getOrderService().getOrderByUuid(uuid);
+        return Context.getService(ProjectBuendiaService.class).getOrderChains(
+            Collections.singleton(order)).get(order.getOrderId()).lastRevision;
     }
 
     /** Gets or creates a PersonAttributeType with a given UUID and name. */
@@ -11,24 +11,24 @@
 
 package org.openmrs.projectbuendia.webservices.rest;
 
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 
-/** Writes out timestamped HTTP request logs. */
+/**
+ * Writes out timestamped HTTP request logs.  The lines are written by an
+ * {@link AsyncLogWriter}, so logging never waits for the disk.
+ */
 public class Logger {
-    private static final int MAX_STDERR_LINE_LENGTH = 480;
-    private Map<String, Date> startTimes = new HashMap<String, Date>();
     private String filename;
-    private SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    public static boolean SILENT = false;
+    private AsyncLogWriter writer;
+    public static volatile boolean SILENT = false;
 
     public Logger(String filename) {
+        this(filename, AsyncLogWriter.INSTANCE);
+    }
+
+    public Logger(String filename, AsyncLogWriter writer) {
         this.filename = filename;
+        this.writer = writer;
     }
 
     /** Emits a message to the log, timestamped with the current time. */
@@ -39,41 +39,24 @@ public class Logger {
     /** Emits a message to the log, timestamped with the specified time. */
     public void log(Date time, String message) {
         if (SILENT) return;
-
-        try {
-            PrintWriter w = new PrintWriter(new FileWriter(filename, true /* append */));
-            w.println("\n\u001b[32m" + format.format(time) + "\u001b[0m " + message);
-            w.close();
-        } catch (IOException e) {
-        }
-
-        // Also print a truncated version of the message to stderr for regular logging.
-        try {
-            if (message.length() > MAX_STDERR_LINE_LENGTH) {
-                message = message.substring(0, MAX_STDERR_LINE_LENGTH) + "...";
-            }
-            System.err.println("\u001b[32m" + format.format(time) + "\u001b[0m [HTTP] " + message);
-        } catch (Throwable t) {
-        }
+        writer.append(filename, time, message);
     }
 
     /** Emits a message to the log, marking the start of a time interval. */
     public void start(String key, String message) {
-        Date now = new Date();
-        startTimes.put(key, now);
         message = "" + message;
-        log(now, "-> " + key + (message.isEmpty() ? "" : ": " + message));
+        log(new Date(), "-> " + key + (message.isEmpty() ? "" : ": " + message));
     }
 
-    /** Emits a message to the log, marking the end of a time interval. */
-    public void end(String key, String message) {
-        Date end = new Date();
-        Date start = startTimes.get(key);
-        if (start != null) {
-            message = "" + message;
-            String elapsed = "" + (end.getTime() - start.getTime()) + " ms";
-            log(end, "<- " + key + " (\u001b[36m" + elapsed + "\u001b[0m)"
-                + (message.isEmpty() ? "" : ": " + message));
-        }
+    /**
+     * Emits a message to the log, marking the end of a time interval that lasted
+     * the given number of milliseconds.  Callers keep track of the start time, as
+     * several intervals with the same key can be in progress at once.
+     */
+    public void end(String key, long elapsedMillis, String message) {
+        message = "" + message;
+        String elapsed = "" + elapsedMillis + " ms";
+        log(new Date(), "<- " + key + " (\u001b[36m" + elapsed + "\u001b[0m)"
+            + (message.isEmpty() ? "" : ": " + message));
     }
 }
@@ -21,12 +21,14 @@ import org.openmrs.Location;
 import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.Provider;
+import org.openmrs.api.ConceptService;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.ObsService;
 import org.openmrs.api.context.Context;
 import org.openmrs.hl7.HL7Constants;
 import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.projectbuendia.Utils;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -165,6 +167,71 @@ public class ObsUtils {
         return ObsUtils.putObsValueAsJson(json, obs);
     }
 
+    /**
+     * Puts the same fields as putObsAsJson() into the given JSON object, taking them from
+     * a flattened row instead of an Obs, so no entities need to be loaded.
+     */
+    public static SimpleObject putObsSyncRowAsJson(SimpleObject json, ObsSyncRow row) {
+        json.put("uuid", row.uuid);
+        if (row.encounterUuid != null) {
+            json.add("encounter_uuid", row.encounterUuid);
+        }
+        if (row.patientUuid != null) {
+            json.add("patient_uuid", row.patientUuid);
+        }
+        if (row.providerUuid != null) {
+            json.add("provider_uuid", row.providerUuid);
+        }
+        json.add("concept_uuid", row.conceptUuid);
+        json.add("type", DbUtils.getHl7TypeName(row.hl7Type));
+        if (row.obsDatetime != null) {
+            json.add("time", Utils.formatUtc8601(row.obsDatetime));
+        }
+        if (row.orderUuid != null) {
+            // The row already carries the root order's UUID; see putObsValueAsJson().
+            json.add("order_uuid", row.orderUuid);
+        }
+
+        switch (row.hl7Type) {
+            case HL7Constants.HL7_BOOLEAN:
+                return json.add("value_coded", getBooleanValueUuid(row));
+            case HL7Constants.HL7_CODED: // deliberate fall through
+            case HL7Constants.HL7_CODED_WITH_EXCEPTIONS:
+                return json.add("value_coded", row.valueCodedUuid);
+            case HL7Constants.HL7_NUMERIC:
+                return json.add("value_numeric", row.valueNumeric);
+            case HL7Constants.HL7_TEXT:
+                return json.add("value_text", row.valueText);
+            case HL7Constants.HL7_DATE:
+                return json.add("value_date", row.valueDatetime == null
+                    ? null : Utils.formatUtcDate(row.valueDatetime));
+            case HL7Constants.HL7_DATETIME:
+                return json.add("value_datetime", row.valueDatetime == null
+                    ? null : Utils.formatUtc8601(row.valueDatetime));
+            default:
+                Utils.log("Warning! Obs has unknown HL7 type " + row.hl7Type + " for concept " + row.conceptUuid);
+                return json;
+        }
+    }
+
+    /**
+     * Gets the UUID of the true or false concept for a boolean row, interpreting the
+     * stored value the same way as Obs.getValueAsBoolean().
+     */
+    private static String getBooleanValueUuid(ObsSyncRow row) {
+        ConceptService conceptService = Context.getConceptService();
+        String trueUuid = conceptService.getTrueConcept().getUuid();
+        String falseUuid = conceptService.getFalseConcept().getUuid();
+        if (row.valueCodedUuid != null) {
+            if (row.valueCodedUuid.equals(trueUuid)) return trueUuid;
+            if (row.valueCodedUuid.equals(falseUuid)) return falseUuid;
+        } else if (row.valueNumeric != null) {
+            if (row.valueNumeric == 1) return trueUuid;
+            if (row.valueNumeric == 0) return falseUuid;
+        }
+        return null;
+    }
+
     public static SimpleObject putObsValueAsJson(SimpleObject json, Obs obs) {
         json.add("type", DbUtils.getConceptTypeName(obs.getConcept()));
         if (obs.getObsDatetime() != null) {
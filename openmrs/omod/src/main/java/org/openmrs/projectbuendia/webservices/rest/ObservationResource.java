@@ -1,18 +1,18 @@
 package org.openmrs.projectbuendia.webservices.rest;
 
-import org.openmrs.EncounterProvider;
 import org.openmrs.Obs;
 import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 import org.openmrs.module.webservices.rest.web.annotation.Resource;
 import org.openmrs.module.webservices.rest.web.representation.Representation;
-import org.openmrs.projectbuendia.Utils;
 import org.projectbuendia.openmrs.api.Bookmark;
+import org.projectbuendia.openmrs.api.db.SyncConsumer;
 import org.projectbuendia.openmrs.api.db.SyncPage;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
 import org.projectbuendia.openmrs.webservices.rest.RestController;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
 import java.util.List;
 
 @Resource(
@@ -21,7 +21,8 @@ import java.util.List;
     supportedOpenmrsVersions = "1.10.*,1.11.*"
 )
 public class ObservationResource extends BaseResource<Obs> {
-    private static final int MAX_OBSERVATIONS_PER_PAGE = 500;
+    private static final int DEFAULT_OBSERVATIONS_PER_PAGE = 500;
+    private static final int MAX_OBSERVATIONS_PER_PAGE = 1000;
 
     public ObservationResource() {
         super("observations", Representation.DEFAULT);
@@ -29,20 +30,46 @@ public class ObservationResource extends BaseResource<Obs> {
 
     @Override protected Collection<Obs> listItems(RequestContext context) {
         return buendiaService.getObservationsModifiedAtOrAfter(
-            null, false /* include voided */, MAX_OBSERVATIONS_PER_PAGE).results;
+            null, false /* include voided */, DEFAULT_OBSERVATIONS_PER_PAGE).results;
     }
 
-    @Override protected SimpleObject syncItems(Bookmark bookmark, List<Obs> items) {
-        SyncPage<Obs> observations = buendiaService.getObservationsModifiedAtOrAfter(
-            bookmark, true /* include voided */, MAX_OBSERVATIONS_PER_PAGE);
-        items.addAll(observations.results);
-        Bookmark newBookmark = Bookmark.clampToBufferedRequestTime(
-            observations.bookmark, new Date());
-        // If we fetched a full page, there's probably more data available.
-        boolean more = observations.results.size() == MAX_OBSERVATIONS_PER_PAGE;
-        return new SimpleObject()
-            .add("bookmark", newBookmark.serialize())
-            .add("more", more);
+    @Override protected SyncPage<Obs> syncItems(Bookmark bookmark, int maxResults) {
+        return buendiaService.getObservationsModifiedAtOrAfter(
+            bookmark, true /* include voided */, maxResults);
+    }
+
+    @Override protected Bookmark getSyncHighWaterMark() {
+        return buendiaService.getObservationSyncHighWaterMark();
+    }
+
+    @Override protected int getDefaultSyncPageSize() {
+        return DEFAULT_OBSERVATIONS_PER_PAGE;
+    }
+
+    @Override protected int getMaxSyncPageSize() {
+        return MAX_OBSERVATIONS_PER_PAGE;
+    }
+
+    /** Builds sync results from flat rows, as there can be very many observations to sync. */
+    @Override protected SyncPage<SimpleObject> syncJson(
+        Bookmark bookmark, int maxResults, RequestContext context) {
+        SyncPage<ObsSyncRow> page = buendiaService.getObservationRowsModifiedAtOrAfter(
+            bookmark, true /* include voided */, maxResults);
+        List<SimpleObject> results = new ArrayList<>();
+        for (ObsSyncRow row : page.results) {
+            results.add(rowToJson(row));
+        }
+        return new SyncPage<>(results, page.bookmark);
+    }
+
+    @Override protected Bookmark streamJson(Bookmark bookmark, int maxResults,
+        final SyncConsumer<SimpleObject> consumer, RequestContext context) {
+        return buendiaService.streamObservationRowsModifiedAtOrAfter(
+            bookmark, true /* include voided */, maxResults, new SyncConsumer<ObsSyncRow>() {
+                @Override public void accept(ObsSyncRow row) {
+                    consumer.accept(rowToJson(row));
+                }
+            });
     }
 
     @Override protected Obs retrieveItem(String uuid) {
@@ -56,4 +83,10 @@ public class ObservationResource extends BaseResource<Obs> {
     @Override protected void populateJson(SimpleObject json, Obs obs, RequestContext context) {
         ObsUtils.putObsAsJson(json, obs);
     }
+
+    /** Does for a row what toJson() does for an Obs. */
+    private static SimpleObject rowToJson(ObsSyncRow row) {
+        if (row.voided) return new SimpleObject().add("uuid", row.uuid).add("voided", true);
+        return ObsUtils.putObsSyncRowAsJson(new SimpleObject(), row);
+    }
 }
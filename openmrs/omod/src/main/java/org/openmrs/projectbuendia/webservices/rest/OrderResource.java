@@ -13,12 +13,17 @@ import org.openmrs.module.webservices.rest.web.response.IllegalPropertyException
 
 import org.openmrs.projectbuendia.Utils;
 import org.projectbuendia.openmrs.api.Bookmark;
+import org.projectbuendia.openmrs.api.db.OrderChain;
+import org.projectbuendia.openmrs.api.db.SyncConsumer;
 import org.projectbuendia.openmrs.api.db.SyncPage;
 import org.projectbuendia.openmrs.webservices.rest.RestController;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import static org.openmrs.projectbuendia.Utils.eq;
 
@@ -28,7 +33,10 @@ import static org.openmrs.projectbuendia.Utils.eq;
     supportedOpenmrsVersions = "1.10.*,1.11.*"
 )
 public class OrderResource extends BaseResource<Order> {
-    private static final int MAX_ORDERS_PER_PAGE = 100;
+    private static final int DEFAULT_ORDERS_PER_PAGE = 100;
+    private static final int MAX_ORDERS_PER_PAGE = 500;
+    // The number of streamed orders whose revision chains are resolved together.
+    private static final int STREAMED_ORDERS_PER_CHUNK = 50;
     // Allow all order actions except discontinues, because the client doesn't represent those.
     private static final Order.Action[] ALLOWABLE_ACTIONS =
         ArrayUtils.removeElement(Order.Action.values(), Order.Action.DISCONTINUE);
@@ -39,20 +47,46 @@ public class OrderResource extends BaseResource<Order> {
 
     @Override protected Collection<Order> listItems(RequestContext context) {
         return buendiaService.getOrdersModifiedAtOrAfter(
-            null, false /* include voided */, MAX_ORDERS_PER_PAGE, ALLOWABLE_ACTIONS).results;
+            null, false /* include voided */, DEFAULT_ORDERS_PER_PAGE, ALLOWABLE_ACTIONS).results;
     }
 
-    @Override protected SimpleObject syncItems(Bookmark bookmark, List<Order> items) {
-        SyncPage<Order> orders = buendiaService.getOrdersModifiedAtOrAfter(
-            bookmark, true /* include voided */, MAX_ORDERS_PER_PAGE, ALLOWABLE_ACTIONS);
-        items.addAll(orders.results);
-        Bookmark newBookmark = Bookmark.clampToBufferedRequestTime(
-            orders.bookmark, new Date());
-        // If we fetched a full page, there's probably more data available.
-        boolean more = orders.results.size() == MAX_ORDERS_PER_PAGE;
-        return new SimpleObject()
-            .add("bookmark", newBookmark.serialize())
-            .add("more", more);
+    @Override protected SyncPage<Order> syncItems(Bookmark bookmark, int maxResults) {
+        return buendiaService.getOrdersModifiedAtOrAfter(
+            bookmark, true /* include voided */, maxResults, ALLOWABLE_ACTIONS);
+    }
+
+    @Override protected Bookmark getSyncHighWaterMark() {
+        return buendiaService.getOrderSyncHighWaterMark();
+    }
+
+    @Override protected int getDefaultSyncPageSize() {
+        return DEFAULT_ORDERS_PER_PAGE;
+    }
+
+    @Override protected int getMaxSyncPageSize() {
+        return MAX_ORDERS_PER_PAGE;
+    }
+
+    /**
+     * Streams orders in chunks, so that the revision chains of each chunk are resolved
+     * together while no more than a chunk of orders is held in memory at once.
+     */
+    @Override protected Bookmark streamJson(Bookmark bookmark, int maxResults,
+        final SyncConsumer<SimpleObject> consumer, final RequestContext context) {
+        final List<Order> chunk = new ArrayList<>(STREAMED_ORDERS_PER_CHUNK);
+        Bookmark last = buendiaService.streamOrdersModifiedAtOrAfter(
+            bookmark, true /* include voided */, maxResults, ALLOWABLE_ACTIONS,
+            new SyncConsumer<Order>() {
+                @Override public void accept(Order order) {
+                    chunk.add(order);
+                    if (chunk.size() >= STREAMED_ORDERS_PER_CHUNK) {
+                        acceptAll(toJsonList(chunk, context), consumer);
+                        chunk.clear();
+                    }
+                }
+            });
+        acceptAll(toJsonList(chunk, context), consumer);
+        return last;
     }
 
     @Override protected Order createItem(SimpleObject data, RequestContext context) {
@@ -126,12 +160,45 @@ public class OrderResource extends BaseResource<Order> {
     }
 
     @Override protected void populateJson(SimpleObject json, Order order, RequestContext context) {
-        // The UUID on the client is for the order at the head of the revision chain...
-        Order rootOrder = DbUtils.getRootOrder(order);
-        // ...but the data we return should come from the last revision in the chain.
-        order = DbUtils.getLastRevision(rootOrder);
+        OrderChain chain = buendiaService.getOrderChains(
+            Collections.singleton(order)).get(order.getOrderId());
+        putChainAsJson(json, chain);
+    }
+
+    /**
+     * Converts a whole list of orders at once, so that the revision chains of all the
+     * orders can be resolved together instead of one order at a time.
+     */
+    @Override protected List<SimpleObject> toJsonList(
+        Collection<Order> orders, RequestContext context) {
+        Map<Integer, OrderChain> chains = buendiaService.getOrderChains(orders);
+        List<SimpleObject> results = new ArrayList<>();
+        for (Order order : orders) {
+            SimpleObject json = new SimpleObject();
+            json.put("uuid", order.getUuid());
+            if (DbUtils.isVoidedOrRetired(order)) {
+                json.add("voided", true);
+            } else {
+                putChainAsJson(json, chains.get(order.getOrderId()));
+            }
+            results.add(json);
+        }
+        return results;
+    }
+
+    private static void acceptAll(
+        List<SimpleObject> items, SyncConsumer<SimpleObject> consumer) {
+        for (SimpleObject item : items) {
+            consumer.accept(item);
+        }
+    }
+
+    private static void putChainAsJson(SimpleObject json, OrderChain chain) {
+        // The UUID on the client is for the order at the root of the revision chain,
+        // but the data we return should come from the last revision in the chain.
+        Order order = chain.lastRevision;
 
-        json.add("uuid", rootOrder.getUuid());
+        json.add("uuid", chain.rootUuid);
         if (order.getPatient() != null) {
             json.add("patient_uuid", order.getPatient().getUuid());
         }
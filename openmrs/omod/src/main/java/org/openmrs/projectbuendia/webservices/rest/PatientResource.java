@@ -12,6 +12,7 @@ import org.openmrs.module.webservices.rest.web.representation.Representation;
 
 import org.openmrs.projectbuendia.Utils;
 import org.projectbuendia.openmrs.api.Bookmark;
+import org.projectbuendia.openmrs.api.db.SyncConsumer;
 import org.projectbuendia.openmrs.api.db.SyncPage;
 import org.projectbuendia.openmrs.webservices.rest.RestController;
 
@@ -33,7 +34,8 @@ import static org.openmrs.projectbuendia.Utils.parseLocalDate;
     supportedOpenmrsVersions = "1.10.*,1.11.*"
 )
 public class PatientResource extends BaseResource<Patient> {
-    private static final int MAX_PATIENTS_PER_PAGE = 100;
+    private static final int DEFAULT_PATIENTS_PER_PAGE = 100;
+    private static final int MAX_PATIENTS_PER_PAGE = 500;
 
     public PatientResource() {
         super("patients", Representation.DEFAULT);
@@ -56,17 +58,27 @@ public class PatientResource extends BaseResource<Patient> {
         return results;
     }
 
-    @Override protected SimpleObject syncItems(Bookmark bookmark, List<Patient> items) {
-        SyncPage<Patient> patients = buendiaService.getPatientsModifiedAtOrAfter(
-            bookmark, true /* include voided */, MAX_PATIENTS_PER_PAGE);
-        items.addAll(patients.results);
-        Bookmark newBookmark = Bookmark.clampToBufferedRequestTime(
-            patients.bookmark, new Date());
-        // If we fetched a full page, there's probably more data available.
-        boolean more = patients.results.size() == MAX_PATIENTS_PER_PAGE;
-        return new SimpleObject()
-            .add("bookmark", newBookmark.serialize())
-            .add("more", more);
+    @Override protected SyncPage<Patient> syncItems(Bookmark bookmark, int maxResults) {
+        return buendiaService.getPatientsModifiedAtOrAfter(
+            bookmark, true /* include voided */, maxResults);
+    }
+
+    @Override protected Bookmark getSyncHighWaterMark() {
+        return buendiaService.getPatientSyncHighWaterMark();
+    }
+
+    @Override protected int getDefaultSyncPageSize() {
+        return DEFAULT_PATIENTS_PER_PAGE;
+    }
+
+    @Override protected int getMaxSyncPageSize() {
+        return MAX_PATIENTS_PER_PAGE;
+    }
+
+    @Override protected Bookmark streamItems(
+        Bookmark bookmark, int maxResults, SyncConsumer<Patient> consumer) {
+        return buendiaService.streamPatientsModifiedAtOrAfter(
+            bookmark, true /* include voided */, maxResults, consumer);
     }
 
     @Override protected synchronized Patient createItem(SimpleObject data, RequestContext context) {
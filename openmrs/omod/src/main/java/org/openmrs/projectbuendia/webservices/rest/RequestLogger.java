@@ -12,23 +12,37 @@
 package org.openmrs.projectbuendia.webservices.rest;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
+import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServletRequest;
 
-/** Logs REST API requests in detail, with timings, to a directory of log files. */
+/**
+ * Logs REST API requests in detail, with timings, to a directory of log files,
+ * and records the timings and sizes of replies in {@link RequestMetrics}.
+ */
 public class RequestLogger {
     public static final RequestLogger LOGGER = new RequestLogger("/var/log/large/requests");
 
+    // Timings are kept as request attributes, so that concurrent requests from
+    // the same client don't interfere with each other.
+    private static final String START_ATTRIBUTE_PREFIX = RequestLogger.class.getName() + ".start.";
+    private static final String ROWS_ATTRIBUTE = RequestLogger.class.getName() + ".rows";
+    private static final String BYTES_ATTRIBUTE = RequestLogger.class.getName() + ".bytes";
+
     /** The directory under which we write log files. */
     String dir;
 
     /** Map of log filenames to Logger objects. */
-    Map<String, Logger> loggers = new HashMap<>();
+    ConcurrentMap<String, Logger> loggers = new ConcurrentHashMap<>();
+
+    /** The metrics to which request timings are added. */
+    RequestMetrics metrics = RequestMetrics.INSTANCE;
 
     public RequestLogger(String dir) {
         new File(dir).mkdirs();
@@ -50,6 +64,7 @@ public class RequestLogger {
     private void request(RequestContext context, String key, String message) {
         try {
             HttpServletRequest request = context.getRequest();
+            request.setAttribute(START_ATTRIBUTE_PREFIX + key, System.nanoTime());
             String filename = request.getRemoteAddr();
             String url = request.getRequestURI();
             if (request.getQueryString() != null) {
@@ -68,52 +83,85 @@ public class RequestLogger {
 
     /** Gets or creates the Logger for a given filename. */
     protected Logger getLogger(String filename) {
-        if (!loggers.containsKey(filename)) {
-            loggers.put(filename, new Logger(dir + "/" + filename));
+        Logger logger = loggers.get(filename);
+        if (logger == null) {
+            Logger newLogger = new Logger(dir + "/" + filename);
+            logger = loggers.putIfAbsent(filename, newLogger);
+            if (logger == null) logger = newLogger;
+        }
+        return logger;
+    }
+
+    /**
+     * Notes the number of items and bytes in a reply (0 bytes if the size is unknown,
+     * as it is until Spring has serialized the reply), for the metrics recorded when
+     * the reply is logged.  Replies that aren't noted this way are counted from the
+     * "results" of the logged reply, if any.
+     */
+    public void recordSize(RequestContext context, long rows, long bytes) {
+        try {
+            context.getRequest().setAttribute(ROWS_ATTRIBUTE, rows);
+            context.getRequest().setAttribute(BYTES_ATTRIBUTE, bytes);
+        } catch (Exception e) {
         }
-        return loggers.get(filename);
     }
 
     /** Emits an "end" line for a successful reply. */
     public <T> T reply(RequestContext context, Object instance, String method, T result) {
-        reply(context, formatKey(instance, method), result != null ? "" + result : "");
+        end(context, instance, method, result != null ? "" + result : "",
+            countRows(context, result), false);
         return result;
     }
 
-    /** Emits an "end" line for a successful reply. */
-    protected void reply(RequestContext context, String key, String message) {
+    /** Emits an "end" line when an exception occurs. */
+    public void error(RequestContext context, Object instance, String method, Exception error) {
+        end(context, instance, method,
+            "\u001b[31m" + ExceptionUtils.getMessage(error) + "\u001b[0m:\n"
+                + ExceptionUtils.getStackTrace(error), 0, true);
+    }
+
+    /** Emits an "end" line and records the timing of the request. */
+    private void end(RequestContext context, Object instance, String method,
+                     String message, long rows, boolean error) {
         try {
             HttpServletRequest request = context.getRequest();
+            String key = formatKey(instance, method);
+            Long startNanos = (Long) request.getAttribute(START_ATTRIBUTE_PREFIX + key);
+            if (startNanos == null) return;
+            request.removeAttribute(START_ATTRIBUTE_PREFIX + key);
+            long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
             String filename = request.getRemoteAddr();
-            end(filename, key, message);
+            end(filename, key, elapsedMillis, message);
+
+            Long bytes = (Long) request.getAttribute(BYTES_ATTRIBUTE);
+            metrics.record(instance.getClass().getSimpleName(), method, elapsedMillis,
+                rows, bytes != null ? bytes : 0, error);
         } catch (Exception e) {
         }
     }
 
     /**
-     * Emits an "end" line for the given key to the given log.  The Logger
-     * records the elapsed time between start and end for each key.
+     * Emits an "end" line for the given key to the given log, for an interval
+     * that lasted the given number of milliseconds.
      */
-    protected void end(String filename, String key, String message) {
-        getLogger(filename).end(key, message);
-    }
-
-    /** Emits an "end" line when an exception occurs. */
-    public void error(RequestContext context, Object instance, String method, Exception e) {
-        error(context, formatKey(instance, method), e);
+    protected void end(String filename, String key, long elapsedMillis, String message) {
+        getLogger(filename).end(key, elapsedMillis, message);
     }
 
-    /** Emits an "end" line when an exception occurs. */
-    protected void error(RequestContext context, String key, Exception error) {
+    /** Gets the number of items in a reply, as noted by recordSize() or in its results. */
+    private long countRows(RequestContext context, Object result) {
         try {
-            HttpServletRequest request = context.getRequest();
-            String filename = request.getRemoteAddr();
-            end(filename, key, "\u001b[31m" + ExceptionUtils.getMessage(error) + "\u001b[0m:\n"
-                + ExceptionUtils.getStackTrace(error));
+            Long rows = (Long) context.getRequest().getAttribute(ROWS_ATTRIBUTE);
+            if (rows != null) return rows;
         } catch (Exception e) {
         }
+        if (result instanceof SimpleObject) {
+            Object results = ((SimpleObject) result).get("results");
+            if (results instanceof List) return ((List<?>) results).size();
+        }
+        return result != null ? 1 : 0;
     }
-    
+
     protected String formatKey(Object instance, String method) {
         return instance.getClass().getSimpleName() + "." + method;
     }
@@ -0,0 +1,132 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accumulates statistics on REST requests, for each combination of resource and
+ * operation (e.g. "sync" or "create").  Client addresses are deliberately not a
+ * label, as every new address would add series that are never removed; requests
+ * from each client can be found in the per-address request logs.  The statistics
+ * are written out in the Prometheus text exposition format by {@link #write(Writer)}.
+ */
+public class RequestMetrics {
+    public static final RequestMetrics INSTANCE = new RequestMetrics();
+    static final double[] QUANTILES = {0.5, 0.9, 0.99};
+    private static final int ROWS = 0;
+    private static final int BYTES = 1;
+    private static final int ERRORS = 2;
+
+    private final ConcurrentMap<Series, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Records one request that took the given number of milliseconds, returning the
+     * given numbers of items and bytes (0 if unknown), and possibly failing.
+     */
+    public void record(String resource, String operation,
+                       long millis, long rows, long bytes, boolean error) {
+        Stats s = getStats(new Series(resource, operation));
+        s.latency.record(millis);
+        s.counters[ROWS].addAndGet(rows);
+        s.counters[BYTES].addAndGet(bytes);
+        if (error) s.counters[ERRORS].incrementAndGet();
+    }
+
+    /** Writes out all the statistics in Prometheus text format. */
+    public void write(Writer out) throws IOException {
+        List<Map.Entry<Series, Stats>> entries = new ArrayList<>(stats.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Series, Stats>>() {
+            @Override public int compare(Map.Entry<Series, Stats> a, Map.Entry<Series, Stats> b) {
+                return a.getKey().labels.compareTo(b.getKey().labels);
+            }
+        });
+
+        String name = "buendia_request_latency_milliseconds";
+        out.write("# HELP " + name + " Time taken to handle REST requests.\n");
+        out.write("# TYPE " + name + " summary\n");
+        for (Map.Entry<Series, Stats> entry : entries) {
+            String labels = entry.getKey().labels;
+            LatencyHistogram latency = entry.getValue().latency;
+            for (double q : QUANTILES) {
+                out.write(name + "{" + labels + ",quantile=\"" + q + "\"} "
+                    + latency.getQuantile(q) + "\n");
+            }
+            out.write(name + "_sum{" + labels + "} " + latency.getSum() + "\n");
+            out.write(name + "_count{" + labels + "} " + latency.getCount() + "\n");
+        }
+        writeCounter(out, entries, "buendia_request_rows_total",
+            "Items returned in REST replies.", ROWS);
+        writeCounter(out, entries, "buendia_request_bytes_total",
+            "Bytes written in streamed or compact REST replies.", BYTES);
+        writeCounter(out, entries, "buendia_request_errors_total",
+            "REST requests that failed.", ERRORS);
+        out.flush();
+    }
+
+    private static void writeCounter(Writer out, List<Map.Entry<Series, Stats>> entries,
+                                     String name, String help, int counter) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " counter\n");
+        for (Map.Entry<Series, Stats> entry : entries) {
+            long value = entry.getValue().counters[counter].get();
+            out.write(name + "{" + entry.getKey().labels + "} " + value + "\n");
+        }
+    }
+
+    private Stats getStats(Series series) {
+        Stats s = stats.get(series);
+        if (s == null) {
+            Stats newStats = new Stats();
+            s = stats.putIfAbsent(series, newStats);
+            if (s == null) s = newStats;
+        }
+        return s;
+    }
+
+    /** Escapes a label value as required by the Prometheus text format. */
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /** Identifies a series by its formatted labels. */
+    private static class Series {
+        final String labels;
+
+        Series(String resource, String operation) {
+            labels = "resource=\"" + escape(resource)
+                + "\",operation=\"" + escape(operation) + "\"";
+        }
+
+        @Override public boolean equals(Object obj) {
+            return obj instanceof Series && labels.equals(((Series) obj).labels);
+        }
+
+        @Override public int hashCode() {
+            return labels.hashCode();
+        }
+    }
+
+    private static class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong[] counters = {new AtomicLong(), new AtomicLong(), new AtomicLong()};
+    }
+}
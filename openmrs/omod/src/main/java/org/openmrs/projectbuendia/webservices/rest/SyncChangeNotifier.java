@@ -0,0 +1,203 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.util.PrivilegeConstants;
+import org.projectbuendia.openmrs.api.Bookmark;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lets requests wait for the sync maps to advance, so that clients can be told about new
+ * data as soon as it arrives instead of polling for it.  A single watcher thread reads the
+ * high-water marks of all the sync maps on behalf of every waiting request, so the database
+ * load doesn't grow with the number of clients, and there is no load at all when nobody
+ * is waiting.  Writes made through our own resources, including submitted XForm instances
+ * (whether saved directly or through HL7), poke the watcher so that it reads the marks
+ * immediately; writes made by other means are noticed within one poll interval.
+ */
+public class SyncChangeNotifier {
+    public static final String OBSERVATIONS = "observations";
+    public static final String PATIENTS = "patients";
+    public static final String ORDERS = "orders";
+
+    public static final SyncChangeNotifier INSTANCE =
+        new SyncChangeNotifier(new ServiceMarkSource(), 1000, 60 * 1000);
+
+    private static final Log log = LogFactory.getLog(SyncChangeNotifier.class);
+
+    /** Reads the current high-water marks, keyed by resource name. */
+    public interface MarkSource {
+        Map<String, Bookmark> read();
+    }
+
+    private final MarkSource source;
+    private final long pollIntervalMillis;
+    private final long idleTimeoutMillis;
+
+    // Guarded by marksLock; waiting requests wait on marksLock for new marks.
+    private final Object marksLock = new Object();
+    private Map<String, Bookmark> marks = new HashMap<>();
+
+    // Guarded by watcherLock; the watcher waits on watcherLock between polls.
+    private final Object watcherLock = new Object();
+    private int numWaiters = 0;
+    private boolean poked = false;
+    private Thread watcher = null;
+
+    /**
+     * @param pollIntervalMillis how often to read the marks while requests are waiting.
+     * @param idleTimeoutMillis how long the watcher thread lingers with no requests waiting.
+     */
+    public SyncChangeNotifier(MarkSource source, long pollIntervalMillis, long idleTimeoutMillis) {
+        this.source = source;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Waits until the high-water mark of at least one of the given resources is after the
+     * corresponding bookmark, or until the timeout expires.
+     * @return the names of the resources whose marks have advanced (empty on timeout).
+     */
+    public Set<String> await(Map<String, Bookmark> since, long timeoutMillis)
+        throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (watcherLock) {
+            numWaiters++;
+            if (watcher == null) {
+                watcher = new Thread(new Runnable() {
+                    @Override public void run() {
+                        watch();
+                    }
+                }, "Buendia sync change watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+            // Wake the watcher if it was idle, and have it read the marks at once, as the
+            // marks it last read may be long out of date; otherwise it is already polling.
+            if (numWaiters == 1) {
+                poked = true;
+                watcherLock.notifyAll();
+            }
+        }
+        try {
+            synchronized (marksLock) {
+                while (true) {
+                    Set<String> changed = findChanges(since);
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (!changed.isEmpty() || remaining <= 0) return changed;
+                    marksLock.wait(remaining);
+                }
+            }
+        } finally {
+            synchronized (watcherLock) {
+                numWaiters--;
+            }
+        }
+    }
+
+    /** Asks the watcher to read the marks now, because something has just been written. */
+    public void poke() {
+        synchronized (watcherLock) {
+            poked = true;
+            watcherLock.notifyAll();
+        }
+    }
+
+    /** Returns the most recently read marks, keyed by resource name. */
+    public Map<String, Bookmark> getMarks() {
+        synchronized (marksLock) {
+            return new HashMap<>(marks);
+        }
+    }
+
+    private Set<String> findChanges(Map<String, Bookmark> since) {
+        Set<String> changed = new LinkedHashSet<>();
+        for (String name : since.keySet()) {
+            Bookmark mark = marks.get(name);
+            if (mark != null && mark.isAfter(since.get(name))) changed.add(name);
+        }
+        return changed;
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                synchronized (watcherLock) {
+                    long idleSince = System.currentTimeMillis();
+                    while (numWaiters == 0) {
+                        long remaining = idleSince + idleTimeoutMillis - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            watcher = null;
+                            return;
+                        }
+                        watcherLock.wait(remaining);
+                    }
+                    if (!poked) watcherLock.wait(pollIntervalMillis);
+                    poked = false;
+                }
+                Map<String, Bookmark> latest;
+                try {
+                    latest = source.read();
+                } catch (RuntimeException e) {
+                    log.error("Could not read sync high-water marks", e);
+                    continue;
+                }
+                synchronized (marksLock) {
+                    marks = latest;
+                    marksLock.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            synchronized (watcherLock) {
+                watcher = null;
+            }
+        }
+    }
+
+    /** Reads the marks through ProjectBuendiaService in a session of its own. */
+    static class ServiceMarkSource implements MarkSource {
+        private static final String[] PRIVILEGES = {
+            PrivilegeConstants.VIEW_OBS,
+            PrivilegeConstants.VIEW_PATIENTS,
+            PrivilegeConstants.VIEW_ORDERS
+        };
+
+        @Override public Map<String, Bookmark> read() {
+            Map<String, Bookmark> marks = new HashMap<>();
+            Context.openSession();
+            try {
+                for (String privilege : PRIVILEGES) {
+                    Context.addProxyPrivilege(privilege);
+                }
+                ProjectBuendiaService service = Context.getService(ProjectBuendiaService.class);
+                marks.put(OBSERVATIONS, service.getObservationSyncHighWaterMark());
+                marks.put(PATIENTS, service.getPatientSyncHighWaterMark());
+                marks.put(ORDERS, service.getOrderSyncHighWaterMark());
+            } finally {
+                for (String privilege : PRIVILEGES) {
+                    Context.removeProxyPrivilege(privilege);
+                }
+                Context.closeSession();
+            }
+            return marks;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.projectbuendia.openmrs.api.Bookmark;
+import org.projectbuendia.openmrs.api.db.SyncPage;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.Nullable;
+
+/**
+ * A bounded cache of sync pages, already converted to JSON.  All the tablets on a ward
+ * poll with much the same bookmarks, so when nothing has changed since a page was
+ * produced, the page can be served again without querying or converting anything.
+ * <p>
+ * Each page is stored with the high-water mark of its sync map (the bookmark of the
+ * most recently updated record) at the time it was produced.  A page is reused only if
+ * the high-water mark is still the same and the page isn't too old.  Requests for a page
+ * that is already being produced wait for it instead of producing it again.
+ * <p>
+ * Pages are shared by all requests with the same key, so the loader must not depend
+ * on anything about the request other than the bookmark and page size.
+ */
+public class SyncPageCache {
+    /**
+     * The granularity to which coarsen() rounds bookmarks.  A tablet that is caught up
+     * receives a bookmark clamped to two seconds before its request time, so no two
+     * tablets would otherwise ever poll with the same bookmark.
+     */
+    static final long BOOKMARK_GRANULARITY_MILLIS = 10 * 1000;
+
+    private final long maxAgeMillis;
+    private final Map<Key, Entry> entries;
+
+    /**
+     * @param capacity the number of pages to keep.
+     * @param maxAgeMillis how long a page may be reused even if the high-water mark
+     *     hasn't changed (this catches records committed out of timestamp order).
+     */
+    public SyncPageCache(final int capacity, long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+        this.entries = new LinkedHashMap<Key, Entry>(capacity, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets the page that follows the given bookmark in the given resource, using the
+     * loader to produce it if there is no usable cached page.
+     */
+    public SyncPage<SimpleObject> get(
+        String resource, Bookmark bookmark, int pageSize, @Nullable Bookmark highWaterMark,
+        Callable<SyncPage<SimpleObject>> loader) {
+        return lookup(resource, bookmark, pageSize, highWaterMark, loader).page;
+    }
+
+    /**
+     * Like get(), but also tells whether this call ran the loader, and how long the
+     * loader took if it did.  Pages served from the cache, or produced by another
+     * request, cost almost nothing and say nothing about the cost of a page.
+     */
+    public Result lookup(
+        String resource, Bookmark bookmark, int pageSize, @Nullable Bookmark highWaterMark,
+        Callable<SyncPage<SimpleObject>> loader) {
+        Key key = new Key(resource, bookmark.serialize(), pageSize);
+        String mark = highWaterMark == null ? null : highWaterMark.serialize();
+        long now = System.currentTimeMillis();
+        Entry entry;
+        boolean loading = false;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null || !entry.isUsable(mark, now)) {
+                entry = new Entry(mark, now, new FutureTask<>(loader));
+                entries.put(key, entry);
+                loading = true;
+            }
+        }
+        long loadMillis = -1;
+        if (loading) {
+            long startMillis = System.currentTimeMillis();
+            entry.task.run();
+            loadMillis = System.currentTimeMillis() - startMillis;
+        }
+        try {
+            return new Result(entry.task.get(), loadMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // Don't keep a failure around; the next request should try again.
+            synchronized (entries) {
+                if (entries.get(key) == entry) entries.remove(key);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Rounds a bookmark that has no UUID (i.e. one that was clamped to a time just before
+     * a request, rather than one positioned at a record) down to a multiple of
+     * BOOKMARK_GRANULARITY_MILLIS, so that tablets polling at about the same time
+     * request the same page.  Rounding down only means that a few records the tablet
+     * already has may be sent again, which the sync protocol allows.
+     */
+    public static Bookmark coarsen(Bookmark bookmark) {
+        if (bookmark.minUuid != null) return bookmark;
+        long millis = bookmark.minTime.getTime();
+        return new Bookmark(new Date(millis - millis % BOOKMARK_GRANULARITY_MILLIS), null);
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /** A page from lookup(), with the time its loader took if this lookup ran it. */
+    public static class Result {
+        public final SyncPage<SimpleObject> page;
+        /** The time the loader took, or -1 if the page wasn't loaded by this lookup. */
+        public final long loadMillis;
+
+        Result(SyncPage<SimpleObject> page, long loadMillis) {
+            this.page = page;
+            this.loadMillis = loadMillis;
+        }
+
+        public boolean wasLoaded() {
+            return loadMillis >= 0;
+        }
+    }
+
+    private class Entry {
+        final String highWaterMark;
+        final long createdMillis;
+        final FutureTask<SyncPage<SimpleObject>> task;
+
+        Entry(String highWaterMark, long createdMillis, FutureTask<SyncPage<SimpleObject>> task) {
+            this.highWaterMark = highWaterMark;
+            this.createdMillis = createdMillis;
+            this.task = task;
+        }
+
+        boolean isUsable(String currentMark, long now) {
+            if (highWaterMark == null ? currentMark != null : !highWaterMark.equals(currentMark)) {
+                return false;
+            }
+            // A page that is still being produced is always worth waiting for.
+            return !task.isDone() || now - createdMillis < maxAgeMillis;
+        }
+    }
+
+    private static class Key {
+        final String resource;
+        final String bookmark;
+        final int pageSize;
+
+        Key(String resource, String bookmark, int pageSize) {
+            this.resource = resource;
+            this.bookmark = bookmark;
+            this.pageSize = pageSize;
+        }
+
+        @Override public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key o = (Key) other;
+            return resource.equals(o.resource) && bookmark.equals(o.bookmark)
+                && pageSize == o.pageSize;
+        }
+
+        @Override public int hashCode() {
+            return Arrays.hashCode(new Object[] {resource, bookmark, pageSize});
+        }
+    }
+}
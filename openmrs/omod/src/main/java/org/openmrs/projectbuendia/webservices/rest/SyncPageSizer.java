@@ -0,0 +1,105 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Chooses page sizes for adaptive sync.  The bookmark in each sync reply becomes
+ * the "since" parameter of the client's next request, so we remember how long it
+ * took to produce the page that ended at each bookmark, and how big that page was.
+ * The next page in the same lineage is then scaled up or down to aim for a target
+ * time and size per round trip.  Clients on fast links thus get big pages, and a
+ * slow client never gets a page that took much longer than the target to produce.
+ */
+public class SyncPageSizer {
+    // Limits on how quickly the page size may change from one page to the next.
+    static final double MAX_GROWTH = 2.0;
+    static final double MAX_SHRINKAGE = 0.25;
+
+    private final int minSize;
+    private final long targetMillis;
+    private final long targetBytes;
+    private final Map<String, Measurement> measurements;
+
+    /**
+     * @param minSize the smallest page size this sizer will ever choose.
+     * @param targetMillis the desired time to produce each page.
+     * @param targetBytes the desired size of each page, in bytes.
+     * @param capacity the number of bookmark lineages to remember.
+     */
+    public SyncPageSizer(int minSize, long targetMillis, long targetBytes, final int capacity) {
+        this.minSize = minSize;
+        this.targetMillis = targetMillis;
+        this.targetBytes = targetBytes;
+        this.measurements = new LinkedHashMap<String, Measurement>(capacity, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, Measurement> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Chooses the size of the page that follows the bookmark with the given key,
+     * based on the measurements recorded for the page that produced that bookmark.
+     */
+    public int choose(String key, int defaultSize, int maxSize) {
+        Measurement m;
+        synchronized (measurements) {
+            m = measurements.get(key);
+        }
+        if (m == null) return clamp(defaultSize, maxSize);
+
+        // A partial page means the client has caught up, and its cost is dominated
+        // by fixed overhead, so it tells us nothing about the cost per item.
+        if (m.count < m.size) return clamp(m.size, maxSize);
+
+        double scale = m.millis > 0 ? (double) targetMillis / m.millis : MAX_GROWTH;
+        if (m.bytes > 0) {
+            scale = Math.min(scale, (double) targetBytes / m.bytes);
+        }
+        scale = Math.max(MAX_SHRINKAGE, Math.min(MAX_GROWTH, scale));
+        return clamp((int) Math.round(m.size * scale), maxSize);
+    }
+
+    /**
+     * Records the cost of producing a page, under the key of the bookmark at its end.
+     * @param size the number of items that were requested for the page.
+     * @param count the number of items actually returned.
+     * @param millis the time taken to fetch and serialize the page.
+     * @param bytes the size of the serialized page, or 0 if unknown.
+     */
+    public void record(String key, int size, int count, long millis, long bytes) {
+        synchronized (measurements) {
+            measurements.put(key, new Measurement(size, count, millis, bytes));
+        }
+    }
+
+    private int clamp(int size, int maxSize) {
+        return Math.max(Math.min(minSize, maxSize), Math.min(size, maxSize));
+    }
+
+    private static class Measurement {
+        final int size;
+        final int count;
+        final long millis;
+        final long bytes;
+
+        Measurement(int size, int count, long millis, long bytes) {
+            this.size = size;
+            this.count = count;
+            this.millis = millis;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps a copy of every submitted XForm instance, written on a single background
+ * thread so that submitting a form never waits for the disk.  Instances are queued
+ * in memory and written in batches: each batch is compressed as one gzip member and
+ * appended to the current segment file, which is synced to disk, and then a line for
+ * each instance is appended to index.tsv.  When a segment grows past its size limit,
+ * a new one is started; segments are never deleted.
+ * <p>
+ * A segment is an ordinary concatenated gzip file, so "zcat" shows its instances,
+ * each after a comment line giving its submission ID, encounter UUID, and time.  The
+ * index has a line for each instance, with tab-separated columns: encounter UUID (or
+ * "-" if unknown), submission ID, segment file name, byte offset of the gzip member
+ * in the segment, and the offset and length of the XML within the member's contents.
+ * <p>
+ * The archive is a record of what was submitted; the forms themselves are already
+ * saved in the database by the time they are archived, so the few instances still
+ * in memory when the server stops, or dropped because the writer fell behind, are
+ * not lost from the medical record.
+ */
+public class XformArchive {
+    public static final XformArchive INSTANCE = new XformArchive(
+        new File(OpenmrsUtil.getApplicationDataDirectory(), "buendia_xform_archive"),
+        1024, 16 * 1024 * 1024);
+
+    static final String INDEX_FILENAME = "index.tsv";
+
+    private static final Log log = LogFactory.getLog(XformArchive.class);
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long APPEND_TIMEOUT_MILLIS = 5000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Entry STOP = new Entry(null, null, null, 0);
+
+    private final File dir;
+    private final long maxSegmentBytes;
+    private final BlockingQueue<Entry> queue;
+    private final Thread thread;
+
+    // The following are accessed only by the writer thread.
+    private final SimpleDateFormat format;
+    private @Nullable String segmentName;
+    private @Nullable FileOutputStream segment;
+    private long segmentSize;
+    private int segmentCount;
+
+    /**
+     * @param dir             the directory for the segments and the index
+     * @param capacity        the number of instances that can be waiting to be written
+     * @param maxSegmentBytes the size at which a new segment is started
+     */
+    public XformArchive(File dir, int capacity, long maxSegmentBytes) {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        thread = new Thread("Buendia xform archiver") {
+            @Override public void run() {
+                drain();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a submitted instance to be archived.  If the writer has fallen so far
+     * behind that the queue is full, this waits a few seconds for room and then drops
+     * the instance, logging an error, rather than hold up the submitting request.
+     */
+    public void append(String submissionId, @Nullable String encounterUuid, String xml) {
+        Entry entry = new Entry(submissionId, encounterUuid, xml, System.currentTimeMillis());
+        try {
+            if (!queue.offer(entry, APPEND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                log.error("Archive queue is full; submission " + submissionId
+                    + " was not archived");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted; submission " + submissionId + " was not archived");
+        }
+    }
+
+    /** Waits until all the instances appended so far have been written. */
+    void flush() throws InterruptedException {
+        Flush flush = new Flush();
+        queue.put(flush);
+        flush.done.await();
+    }
+
+    /**
+     * Reads back the archived XML of the latest instance with the given encounter UUID
+     * or submission ID, or returns null if there is none.  This scans the whole index,
+     * so it is meant for occasional lookups rather than serving requests.
+     */
+    public @Nullable String read(String key) throws IOException {
+        File index = new File(dir, INDEX_FILENAME);
+        if (!index.exists()) return null;
+        String[] found = null;
+        try (BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(index), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t");
+                if (columns.length == 6 && (columns[0].equals(key) || columns[1].equals(key))) {
+                    found = columns;
+                }
+            }
+        }
+        if (found == null) return null;
+        try (InputStream input = new FileInputStream(new File(dir, found[2]))) {
+            skipFully(input, Long.parseLong(found[3]));
+            DataInputStream member = new DataInputStream(new GZIPInputStream(input));
+            skipFully(member, Long.parseLong(found[4]));
+            byte[] bytes = new byte[Integer.parseInt(found[5])];
+            member.readFully(bytes);
+            return new String(bytes, UTF_8);
+        }
+    }
+
+    /** Writes out all queued instances, closes the files, and stops the writer thread. */
+    public void close() throws InterruptedException {
+        queue.put(STOP);
+        thread.join();
+    }
+
+    private void drain() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (true) {
+            Entry first;
+            try {
+                first = queue.take();
+            } catch (InterruptedException e) {
+                first = STOP;
+            }
+            batch.add(first);
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            boolean stop = batch.remove(STOP);
+            List<Flush> flushes = new ArrayList<>();
+            for (Iterator<Entry> it = batch.iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (entry instanceof Flush) {
+                    flushes.add((Flush) entry);
+                    it.remove();
+                }
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    write(batch);
+                } catch (IOException | RuntimeException e) {
+                    // Keep the thread alive, or later appends would fill the queue.
+                    log.error("Could not archive " + batch.size() + " submitted forms", e);
+                    closeSegment();  // start a fresh segment next time
+                }
+                batch.clear();
+            }
+            for (Flush flush : flushes) {
+                flush.done.countDown();
+            }
+            if (stop) {
+                closeSegment();
+                return;
+            }
+        }
+    }
+
+    private void write(List<Entry> batch) throws IOException {
+        ByteArrayOutputStream member = new ByteArrayOutputStream();
+        StringBuilder indexLines = new StringBuilder();
+        List<long[]> positions = new ArrayList<>();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(member)) {
+            long offset = 0;
+            for (Entry entry : batch) {
+                byte[] header = ("<!-- submission: " + entry.submissionId
+                    + " encounter: " + (entry.encounterUuid != null ? entry.encounterUuid : "-")
+                    + " time: " + format.format(new Date(entry.time)) + " -->\n")
+                    .getBytes(UTF_8);
+                byte[] body = entry.xml.getBytes(UTF_8);
+                gzip.write(header);
+                gzip.write(body);
+                gzip.write('\n');
+                positions.add(new long[] {offset + header.length, body.length});
+                offset += header.length + body.length + 1;
+            }
+        }
+
+        if (segment == null || segmentSize + member.size() > maxSegmentBytes) {
+            openSegment();
+        }
+        long memberOffset = segmentSize;
+        member.writeTo(segment);
+        segment.getChannel().force(false);
+        segmentSize += member.size();
+
+        for (int i = 0; i < batch.size(); i++) {
+            Entry entry = batch.get(i);
+            indexLines.append(entry.encounterUuid != null ? entry.encounterUuid : "-")
+                .append('\t').append(entry.submissionId)
+                .append('\t').append(segmentName)
+                .append('\t').append(memberOffset)
+                .append('\t').append(positions.get(i)[0])
+                .append('\t').append(positions.get(i)[1])
+                .append('\n');
+        }
+        try (OutputStream index = new FileOutputStream(new File(dir, INDEX_FILENAME), true)) {
+            index.write(indexLines.toString().getBytes(UTF_8));
+        }
+    }
+
+    /** Starts a new segment, named by the time it was started. */
+    private void openSegment() throws IOException {
+        closeSegment();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        SimpleDateFormat nameFormat = new SimpleDateFormat("yyyyMMdd-HHmmss");
+        nameFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        segmentCount++;
+        segmentName = "xforms-" + nameFormat.format(new Date()) + "-" + segmentCount + ".gz";
+        File file = new File(dir, segmentName);
+        segment = new FileOutputStream(file, true /* append */);
+        segmentSize = file.length();
+    }
+
+    private void closeSegment() {
+        if (segment != null) {
+            try {
+                segment.close();
+            } catch (IOException e) { }
+            segment = null;
+        }
+    }
+
+    private static void skipFully(InputStream input, long count) throws IOException {
+        while (count > 0) {
+            long skipped = input.skip(count);
+            if (skipped <= 0) {
+                if (input.read() < 0) throw new IOException("Archive segment is truncated");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static class Entry {
+        final String submissionId;
+        final @Nullable String encounterUuid;
+        final String xml;
+        final long time;
+
+        Entry(String submissionId, @Nullable String encounterUuid, String xml, long time) {
+            this.submissionId = submissionId;
+            this.encounterUuid = encounterUuid;
+            this.xml = xml;
+            this.time = time;
+        }
+    }
+
+    /** A marker that the writer thread releases once everything before it is written. */
+    private static class Flush extends Entry {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Flush() {
+            super(null, null, null, 0);
+        }
+    }
+}
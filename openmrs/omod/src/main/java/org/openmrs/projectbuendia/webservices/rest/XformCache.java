@@ -0,0 +1,216 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Form;
+import org.openmrs.FormField;
+import org.openmrs.Provider;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.buendia.BuendiaXformBuilderEx;
+import org.openmrs.module.xforms.buendia.FormData;
+import org.openmrs.projectbuendia.SessionWorkers;
+import org.openmrs.util.PrivilegeConstants;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A bounded cache of XForms already built and converted for ODK Collect, which takes
+ * long enough that it dominates the time to fetch the full representation of a form.
+ * <p>
+ * Entries are keyed by form UUID, locale, and a version string (see getVersion()) that
+ * changes whenever the form, its fields, or (for forms with a provider field) the set
+ * of providers changes, so a stale entry is never served; it just stops being looked
+ * up and falls out of the LRU order.  Requests for a form that is already being built
+ * wait for it instead of building it again.
+ */
+public class XformCache {
+    public static final XformCache INSTANCE = new XformCache(100);
+    private static final int MAX_LOCALES = 10;
+
+    private static final Log log = LogFactory.getLog(XformCache.class);
+    private static final String[] PREBUILD_PRIVILEGES = {
+        PrivilegeConstants.VIEW_FORMS,
+        PrivilegeConstants.VIEW_CONCEPTS,
+        PrivilegeConstants.VIEW_PROVIDERS,
+        PrivilegeConstants.VIEW_LOCATIONS,
+        PrivilegeConstants.VIEW_ENCOUNTER_TYPES,
+        PrivilegeConstants.VIEW_GLOBAL_PROPERTIES
+    };
+    /** A single thread for prebuilding, which idles out when there's nothing to do. */
+    private static final ExecutorService prebuilder =
+        SessionWorkers.newPool("Buendia xform prebuilder", 1);
+
+    private final Map<String, Entry> entries;
+    /** Locales that forms have been requested in, most recent last. */
+    private final Set<Locale> locales = new LinkedHashSet<>();
+
+    public XformCache(final int capacity) {
+        this.entries = new LinkedHashMap<String, Entry>(capacity, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+        locales.add(DbUtils.DEFAULT_LOCALE);
+    }
+
+    /** Gets the converted XForm for a form at the given version, building it if needed. */
+    public Xform get(final Form form, final Locale locale, String version) {
+        String key = form.getUuid() + "/" + locale.toLanguageTag() + "/" + version;
+        Entry entry;
+        boolean building = false;
+        synchronized (entries) {
+            locales.remove(locale);
+            locales.add(locale);
+            if (locales.size() > MAX_LOCALES) locales.remove(locales.iterator().next());
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(new FutureTask<>(new Callable<Xform>() {
+                    @Override public Xform call() throws Exception {
+                        return build(form, locale);
+                    }
+                }));
+                entries.put(key, entry);
+                building = true;
+            }
+        }
+        if (building) entry.task.run();
+        try {
+            return entry.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // Don't keep a failure around; the next request should try again.
+            synchronized (entries) {
+                if (entries.get(key) == entry) entries.remove(key);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Discards all the cached XForms and builds all the published XForms again, in every
+     * locale they have been requested in, on a background thread; used after something
+     * (such as applying a profile) has changed the forms, so that the first tablet to
+     * sync doesn't have to wait.  The cache is cleared first because changes made behind
+     * Hibernate's back needn't update the dates that the versions are derived from.
+     * Prebuilding is only an optimization: a form that fails to build here is built again
+     * when requested.
+     */
+    public void prebuildAll() {
+        final List<Locale> localesToBuild;
+        synchronized (entries) {
+            entries.clear();
+            localesToBuild = new ArrayList<>(locales);
+        }
+        prebuilder.submit(new SessionWorkers.Task<Void>(PREBUILD_PRIVILEGES) {
+            @Override protected Void callInSession() {
+                // The profile was applied to the database directly, behind Hibernate's back.
+                Context.getService(ProjectBuendiaService.class).clearCache();
+                Collection<Form> forms = XformResource.getXformForms(Context.getFormService());
+                String providersVersion = getProvidersVersion(
+                    Context.getProviderService().getAllProviders());
+                for (Form form : forms) {
+                    for (Locale locale : localesToBuild) {
+                        try {
+                            get(form, locale, getVersion(form, providersVersion));
+                        } catch (RuntimeException e) {
+                            log.warn("Could not prebuild XForm " + form.getUuid()
+                                + " for locale " + locale, e);
+                        }
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /** Returns a string that changes whenever a provider is added, changed, or removed. */
+    public static String getProvidersVersion(Collection<Provider> providers) {
+        long latest = 0;
+        for (Provider provider : providers) {
+            latest = Math.max(latest, getMillis(XformResource.dateChanged(provider)));
+        }
+        return latest + "/" + providers.size();
+    }
+
+    /**
+     * Returns a string that changes whenever the form or its fields change, or, if the
+     * form has a provider field, whenever the given providers version changes.
+     */
+    public static String getVersion(Form form, String providersVersion) {
+        long latest = getMillis(XformResource.dateChanged(form));
+        boolean includesProviders = false;
+        for (FormField formField : form.getFormFields()) {
+            latest = Math.max(latest, getMillis(XformResource.dateChanged(formField)));
+            includesProviders = includesProviders || XformResource.isProviderField(formField);
+        }
+        return latest + "/" + form.getFormFields().size()
+            + (includesProviders ? "/" + providersVersion : "");
+    }
+
+    private static long getMillis(Date date) {
+        return date != null ? date.getTime() : 0;
+    }
+
+    /** Builds an XForm and converts it for ODK Collect. */
+    protected Xform build(Form form, Locale locale) throws Exception {
+        FormData formData = BuendiaXformBuilderEx.buildXform(form, locale);
+        String xml = XformResource.convertToOdkCollect(formData.xml, form.getName());
+        xml = XformResource.removeRelationshipNodes(xml);
+        return new Xform(xml, formData.includesProviders);
+    }
+
+    /** An XForm converted for ODK Collect. */
+    public static class Xform {
+        public final String xml;
+        /** Whether the form has a provider field, as reported by the XForm builder. */
+        public final boolean includesProviders;
+
+        Xform(String xml, boolean includesProviders) {
+            this.xml = xml;
+            this.includesProviders = includesProviders;
+        }
+    }
+
+    private static class Entry {
+        final FutureTask<Xform> task;
+
+        Entry(FutureTask<Xform> task) {
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.Form;
+import org.openmrs.Location;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.Provider;
+import org.openmrs.api.context.Context;
+import org.openmrs.projectbuendia.Utils;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import static org.openmrs.projectbuendia.webservices.rest.XmlUtils.getChildren;
+
+/**
+ * Saves a submitted XForm instance (as prepared by XformInstanceResource) directly as an
+ * encounter with observations, in one transaction, instead of sending it through the
+ * XForms module's queue, XSLT transform to HL7, and HL7 processor.
+ * <p>
+ * This handles the instances our forms produce: an existing patient, a location and
+ * a provider given by ID, and observations that are each a question element with an
+ * openmrs_concept attribute, an openmrs_datatype of NM, BIT, CWE, ST, DT, or TS, and
+ * either a value element or (for multiple choice questions) answer elements with the
+ * text "true".  Each observation takes the encounter time, just as in the HL7 path.
+ * For anything else (observation groups, complex or time-valued observations, per-
+ * observation times, unknown concepts or providers), ingest() returns null without
+ * writing anything, and the instance should go through the XForms module as before.
+ */
+public class XformInstanceIngester {
+    private static final Log LOG = LogFactory.getLog(XformInstanceIngester.class);
+
+    /**
+     * Saves the instance as an encounter and returns it, or returns null if the instance
+     * has to be processed by the XForms module instead.
+     */
+    public static @Nullable Encounter ingest(Document doc, Patient patient) {
+        List<Obs> observations = new ArrayList<>();
+        Encounter encounter = read(doc, patient, observations);
+        if (encounter == null) return null;
+        return Context.getService(ProjectBuendiaService.class)
+            .saveEncounterWithObs(encounter, observations);
+    }
+
+    /**
+     * Reads the instance into a new, unsaved encounter, adding its observations to the
+     * given list, or returns null if the instance has to be processed by the XForms
+     * module instead.
+     */
+    public static @Nullable Encounter read(
+        Document doc, Patient patient, List<Obs> observations) {
+        Encounter encounter = new Encounter();
+        List<Obs> read = new ArrayList<>();
+        try {
+            readEncounter(doc.getDocumentElement(), patient, encounter, read);
+        } catch (UnsupportedInstanceException e) {
+            LOG.info("Using the XForms module for this instance: " + e.getMessage());
+            return null;
+        }
+        observations.addAll(read);
+        return encounter;
+    }
+
+    private static void readEncounter(Element root, Patient patient,
+        Encounter encounter, List<Obs> observations) throws UnsupportedInstanceException {
+        Form form = DbUtils.formsByUuid.get(root.getAttribute("uuid"));
+        if (form == null || form.getEncounterType() == null) {
+            throw new UnsupportedInstanceException("form has no encounter type");
+        }
+        Element encounterElement = requireChild(root, "encounter");
+        Date encounterTime = Utils.parse8601(
+            getChildText(encounterElement, "encounter.encounter_datetime").trim());
+
+        Integer locationId = Utils.toIntOrNull(
+            getChildText(encounterElement, "encounter.location_id").trim());
+        Location location = locationId != null ?
+            Context.getLocationService().getLocation(locationId) : null;
+        if (location == null) throw new UnsupportedInstanceException("no known location");
+
+        Element providerElement = requireChild(encounterElement, "encounter.provider_id");
+        if (!Utils.eq(providerElement.getAttribute("provider_id_type"), "PROVIDER.ID")) {
+            throw new UnsupportedInstanceException("provider not given by ID");
+        }
+        Integer providerId = Utils.toIntOrNull(providerElement.getTextContent().trim());
+        Provider provider = providerId != null ?
+            Context.getProviderService().getProvider(providerId) : null;
+        if (provider == null) throw new UnsupportedInstanceException("no known provider");
+
+        encounter.setForm(form);
+        encounter.setEncounterType(form.getEncounterType());
+        encounter.setPatient(patient);
+        encounter.setEncounterDatetime(encounterTime);
+        encounter.setLocation(location);
+        encounter.addProvider(DbUtils.getUnknownEncounterRole(), provider);
+
+        for (Element question : getChildren(requireChild(root, "obs"))) {
+            readQuestion(question, patient, encounterTime, location, observations);
+        }
+    }
+
+    private static void readQuestion(Element question, Patient patient, Date time,
+        Location location, List<Obs> observations) throws UnsupportedInstanceException {
+        String name = question.getTagName();
+        if (!question.hasAttribute("openmrs_concept")) {
+            throw new UnsupportedInstanceException(name + " has no concept");
+        }
+        Concept concept = getConcept(question.getAttribute("openmrs_concept"));
+        String datatype = question.getAttribute("openmrs_datatype");
+        for (Element child : getChildren(question)) {
+            String childName = child.getTagName();
+            if (childName.equals("value")) {
+                String value = child.getTextContent();
+                if (!value.isEmpty()) {
+                    Obs obs = new Obs(patient, concept, time, location);
+                    setValue(obs, datatype, value);
+                    observations.add(obs);
+                }
+            } else if (childName.equals("date") || childName.equals("time")) {
+                if (!child.getTextContent().trim().isEmpty()) {
+                    throw new UnsupportedInstanceException(name + " has its own time");
+                }
+            } else if (child.hasAttribute("openmrs_concept")
+                && getChildren(child).isEmpty()) {
+                // An answer to a multiple choice question, selected if its text is "true".
+                if (child.getTextContent().equals("true")) {
+                    if (!concept.getDatatype().isCoded()) {
+                        throw new UnsupportedInstanceException(name + " is not coded");
+                    }
+                    Obs obs = new Obs(patient, concept, time, location);
+                    obs.setValueCoded(getConcept(child.getAttribute("openmrs_concept")));
+                    observations.add(obs);
+                }
+            } else {
+                throw new UnsupportedInstanceException(name + " is a group");
+            }
+        }
+    }
+
+    /** Sets the value of an observation the way the HL7 processor would for an OBX. */
+    private static void setValue(Obs obs, String datatype, String value)
+        throws UnsupportedInstanceException {
+        Concept concept = obs.getConcept();
+        String trimmed = value.trim();
+        switch (datatype) {
+            case "BIT":
+                // The XSLT sends these as NM 0 or 1.
+                trimmed = trimmed.equals("0") || trimmed.equalsIgnoreCase("false") ? "0" : "1";
+                // fall through
+            case "NM":
+                if (concept.getDatatype().isBoolean()) {
+                    if (!trimmed.equals("0") && !trimmed.equals("1")) break;
+                    obs.setValueBoolean(trimmed.equals("1"));
+                    return;
+                }
+                if (concept.getDatatype().isNumeric()) {
+                    try {
+                        obs.setValueNumeric(Double.valueOf(trimmed));
+                        return;
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+                break;
+            case "CWE":
+                if (concept.getDatatype().isCoded()) {
+                    obs.setValueCoded(getConcept(trimmed));
+                    return;
+                }
+                break;
+            case "ST":
+                if (concept.getDatatype().isText()) {
+                    obs.setValueText(value);
+                    return;
+                }
+                break;
+            case "DT":
+                if (concept.getDatatype().isDate()) {
+                    // Dates are kept as UTC midnight, as encounter times are sent in UTC.
+                    try {
+                        obs.setValueDatetime(Utils.parseLocalDate(trimmed));
+                        return;
+                    } catch (InvalidObjectDataException e) {
+                        break;
+                    }
+                }
+                break;
+            case "TS":
+                if (concept.getDatatype().isDateTime()) {
+                    Date datetime = XformInstanceResource.parseTimestamp(trimmed);
+                    if (datetime != null) {
+                        obs.setValueDatetime(datetime);
+                        return;
+                    }
+                }
+                break;
+        }
+        throw new UnsupportedInstanceException(
+            "unsupported " + datatype + " value for concept " + concept.getId());
+    }
+
+    /** Gets the concept for an HL7 coded element, e.g. "5089^WEIGHT (KG)^99DCT". */
+    private static Concept getConcept(String coded) throws UnsupportedInstanceException {
+        Integer conceptId = Utils.toIntOrNull(coded.split("\\^", 2)[0].trim());
+        Concept concept = conceptId != null ?
+            Context.getConceptService().getConcept(conceptId) : null;
+        if (concept == null) throw new UnsupportedInstanceException("unknown concept " + coded);
+        return concept;
+    }
+
+    private static Element requireChild(Element parent, String name)
+        throws UnsupportedInstanceException {
+        for (Element child : getChildren(parent)) {
+            if (child.getTagName().equals(name)) return child;
+        }
+        throw new UnsupportedInstanceException("missing " + name);
+    }
+
+    private static String getChildText(Element parent, String name)
+        throws UnsupportedInstanceException {
+        return requireChild(parent, name).getTextContent();
+    }
+
+    /** Thrown for instances that only the XForms module knows how to process. */
+    private static class UnsupportedInstanceException extends Exception {
+        UnsupportedInstanceException(String message) {
+            super(message);
+        }
+    }
+}
@@ -2,8 +2,10 @@ package org.openmrs.projectbuendia.webservices.rest;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.Encounter;
 import org.openmrs.Form;
 import org.openmrs.FormResource;
+import org.openmrs.Obs;
 import org.openmrs.OpenmrsObject;
 import org.openmrs.Patient;
 import org.openmrs.User;
@@ -15,22 +17,34 @@ import org.openmrs.module.webservices.rest.web.annotation.Resource;
 import org.openmrs.module.webservices.rest.web.representation.Representation;
 import org.openmrs.module.webservices.rest.web.response.ConversionException;
 import org.openmrs.module.webservices.rest.web.response.GenericRestException;
+import org.openmrs.module.webservices.rest.web.response.IllegalPropertyException;
 import org.openmrs.module.webservices.rest.web.response.ResponseException;
 import org.openmrs.module.xforms.XformsQueueProcessor;
-import org.openmrs.module.xforms.util.XformsUtil;
 import org.openmrs.projectbuendia.Utils;
+import org.openmrs.projectbuendia.webservices.rest.XformSubmissionQueue.Result;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
 import org.projectbuendia.openmrs.webservices.rest.RestController;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
 
 import static org.openmrs.projectbuendia.webservices.rest.XmlUtils.getChildren;
 import static org.openmrs.projectbuendia.webservices.rest.XmlUtils.removeNode;
@@ -44,17 +58,49 @@ import static org.openmrs.projectbuendia.webservices.rest.XmlUtils.requirePath;
 public class XformInstanceResource extends BaseResource<OpenmrsObject> {
     private static final Log LOG = LogFactory.getLog(XformInstanceResource.class);
     private static final String CLOB_XSLT_UUID = "buendia_clob_xform_instance_xslt";
-    private static final XformsQueueProcessor processor = new XformsQueueProcessor();
+    // XformsQueueProcessor parses every form with a single DocumentBuilder of its own,
+    // which is not thread-safe, so each request thread gets its own processor.  Its
+    // constructor sets a static field and uses a shared DocumentBuilderFactory, so the
+    // processors are created one at a time.
+    private static final ThreadLocal<XformsQueueProcessor> processors =
+        new ThreadLocal<XformsQueueProcessor>() {
+            @Override protected XformsQueueProcessor initialValue() {
+                synchronized (XformsQueueProcessor.class) {
+                    return new XformsQueueProcessor();
+                }
+            }
+        };
+    /** The size of the submission_id column in buendia_xform_submission. */
+    private static final int MAX_SUBMISSION_ID_LENGTH = 64;
+    /** The largest number of instances accepted in one batch; see createBatch(). */
+    public static final int MAX_BATCH_SIZE = 100;
 
     public XformInstanceResource() {
         super("XForm instances", Representation.DEFAULT);
     }
-    @Override protected OpenmrsObject createItem(SimpleObject data, RequestContext context) {
+    /**
+     * Saves a submitted form instance.  Instances of the kinds our forms produce are
+     * saved directly by XformInstanceIngester; anything else goes the long way round,
+     * through the XForms module's queue processor and HL7.
+     * <p>
+     * Submissions pass through XformSubmissionQueue, which orders them per patient and
+     * skips any that were already saved.  Clients should send a "submission_id" (such
+     * as a UUID generated for the filled-in form) and send the same ID when retrying;
+     * see getSubmissionId() for instances sent without one.
+     */
+    @Override protected OpenmrsObject createItem(SimpleObject data, final RequestContext context) {
         try {
-            Document doc = getPreparedXformDocument(data);
-            String xml = XformsUtil.doc2String(doc);
-            File file = File.createTempFile("projectbuendia", null);
-            processor.processXForm(xml, file.getAbsolutePath(), true, context.getRequest());
+            final Patient patient = DbUtils.patientsByUuid.get(
+                Utils.getRequiredString(data, "patient_uuid"));
+            final Document doc = prepareXformDocument(Utils.getRequiredString(data, "xml"),
+                patient, DbUtils.getAuthenticatedUser(), new Date(), new HashSet<String>());
+            final String submissionId = getSubmissionId(data);
+            XformSubmissionQueue.INSTANCE.submit(submissionId, patient.getId(),
+                new XformSubmissionQueue.Processor() {
+                    @Override public Integer process() throws Exception {
+                        return saveInstance(submissionId, doc, patient, context.getRequest());
+                    }
+                });
         } catch (IOException e) {
             throw new GenericRestException("Error storing xform data", e);
         } catch (ResponseException e) {
@@ -66,19 +112,256 @@ public class XformInstanceResource extends BaseResource<OpenmrsObject> {
         return null;  // this resource cannot be retrieved, so better not to return anything
     }
 
+    /**
+     * Saves a batch of submitted form instances, each a map with the same fields that
+     * createItem() takes, so that a tablet that was offline can send everything it has
+     * queued in a few requests.  The user, patients, and form XSLT resources are looked
+     * up once for the whole batch.  Each patient's instances are admitted to the queue
+     * together, and each run of them that XformInstanceIngester can save is saved in
+     * one transaction (or one at a time, if that fails).  A problem with one instance
+     * fails only that instance.
+     * @return a result for each instance, in the same order, with the "submission_id"
+     *     and a "status" of "saved", "duplicate", or "failed" (with an "error").
+     */
+    public static List<SimpleObject> createBatch(
+        List<?> instances, HttpServletRequest request) throws InterruptedException {
+        return createBatch(instances, request, XformSubmissionQueue.INSTANCE);
+    }
+
+    // Visible for testing
+    static List<SimpleObject> createBatch(List<?> instances,
+        final HttpServletRequest request, XformSubmissionQueue queue)
+        throws InterruptedException {
+        if (instances.size() > MAX_BATCH_SIZE) {
+            throw new IllegalPropertyException(
+                "A batch can have at most " + MAX_BATCH_SIZE + " instances");
+        }
+        User user = DbUtils.getAuthenticatedUser();
+        Date dateEntered = new Date();
+        Map<String, Patient> patientsByUuid = new HashMap<>();
+        Set<String> formsWithXslt = new HashSet<>();
+
+        SimpleObject[] results = new SimpleObject[instances.size()];
+        PreparedInstance[] prepared = new PreparedInstance[instances.size()];
+        Map<Integer, List<Integer>> indexesByPatientId = new LinkedHashMap<>();
+        for (int i = 0; i < instances.size(); i++) {
+            String submissionId = null;
+            try {
+                if (!(instances.get(i) instanceof Map)) {
+                    throw new InvalidObjectDataException("Each instance should be an object");
+                }
+                Map<?, ?> data = (Map<?, ?>) instances.get(i);
+                submissionId = getSubmissionId(data);
+                String patientUuid = Utils.getRequiredString(data, "patient_uuid");
+                Patient patient = patientsByUuid.get(patientUuid);
+                if (patient == null) {
+                    patient = DbUtils.patientsByUuid.get(patientUuid);
+                    patientsByUuid.put(patientUuid, patient);
+                }
+                Document doc = prepareXformDocument(Utils.getRequiredString(data, "xml"),
+                    patient, user, dateEntered, formsWithXslt);
+                prepared[i] = new PreparedInstance(submissionId, patient.getId(), doc);
+            } catch (Exception e) {
+                results[i] = describeResult(submissionId, Result.failed(e));
+                continue;
+            }
+            List<Integer> indexes = indexesByPatientId.get(prepared[i].patientId);
+            if (indexes == null) {
+                indexes = new ArrayList<>();
+                indexesByPatientId.put(prepared[i].patientId, indexes);
+            }
+            indexes.add(i);
+        }
+
+        for (Map.Entry<Integer, List<Integer>> entry : indexesByPatientId.entrySet()) {
+            final List<PreparedInstance> group = new ArrayList<>();
+            List<String> submissionIds = new ArrayList<>();
+            for (int i : entry.getValue()) {
+                group.add(prepared[i]);
+                submissionIds.add(prepared[i].submissionId);
+            }
+            List<Result> groupResults = queue.submitAll(
+                entry.getKey(), submissionIds, new XformSubmissionQueue.BatchProcessor() {
+                    @Override public List<Result> process(List<Integer> indexes) {
+                        List<PreparedInstance> pending = new ArrayList<>();
+                        for (int j : indexes) {
+                            pending.add(group.get(j));
+                        }
+                        return saveInstances(pending, request);
+                    }
+                });
+            for (int j = 0; j < group.size(); j++) {
+                results[entry.getValue().get(j)] =
+                    describeResult(group.get(j).submissionId, groupResults.get(j));
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Saves one patient's instances in order, saving each run of instances that
+     * XformInstanceIngester can handle in a single transaction.
+     */
+    private static List<Result> saveInstances(
+        List<PreparedInstance> instances, HttpServletRequest request) {
+        List<Result> results = new ArrayList<>();
+        int i = 0;
+        while (i < instances.size()) {
+            List<Encounter> encounters = new ArrayList<>();
+            List<List<Obs>> observations = new ArrayList<>();
+            for (; i < instances.size(); i++) {
+                PreparedInstance instance = instances.get(i);
+                List<Obs> obs = new ArrayList<>();
+                Encounter encounter;
+                try {
+                    encounter = XformInstanceIngester.read(
+                        instance.doc, instance.getPatient(), obs);
+                } catch (RuntimeException e) {
+                    encounter = null;  // saveInstance() will report the problem
+                }
+                if (encounter == null) break;
+                encounters.add(encounter);
+                observations.add(obs);
+            }
+            if (!encounters.isEmpty()) {
+                List<PreparedInstance> run = instances.subList(i - encounters.size(), i);
+                results.addAll(saveRun(run, encounters, observations, request));
+            }
+            if (i < instances.size()) {
+                results.add(saveInstanceResult(instances.get(i), request));
+                i++;
+            }
+        }
+        return results;
+    }
+
+    /** Saves a run of instances together, or one at a time if that fails. */
+    private static List<Result> saveRun(List<PreparedInstance> run,
+        List<Encounter> encounters, List<List<Obs>> observations, HttpServletRequest request) {
+        List<Result> results = new ArrayList<>();
+        List<Encounter> saved;
+        try {
+            saved = Context.getService(ProjectBuendiaService.class)
+                .saveEncountersWithObs(encounters, observations);
+        } catch (RuntimeException e) {
+            LOG.warn("Could not save " + run.size() + " instances together; "
+                + "saving them one at a time", e);
+            // The failed transaction can leave unsaved entities in the session.  This
+            // detaches everything loaded so far, which is why PreparedInstance looks up
+            // its patient again each time.
+            Context.clearSession();
+            for (PreparedInstance instance : run) {
+                results.add(saveInstanceResult(instance, request));
+            }
+            return results;
+        }
+        SyncChangeNotifier.INSTANCE.poke();
+        for (int i = 0; i < run.size(); i++) {
+            Encounter encounter = saved.get(i);
+            archive(run.get(i).submissionId, encounter, run.get(i).doc);
+            results.add(Result.saved(encounter.getId()));
+        }
+        return results;
+    }
+
+    private static Result saveInstanceResult(
+        PreparedInstance instance, HttpServletRequest request) {
+        try {
+            return Result.saved(
+                saveInstance(instance.submissionId, instance.doc, instance.getPatient(), request));
+        } catch (Exception e) {
+            return Result.failed(e);
+        }
+    }
+
+    /**
+     * Saves one instance, directly if XformInstanceIngester can handle it, or else
+     * through the XForms module, and archives it.
+     * @return the ID of the saved encounter, if known.
+     */
+    private static @Nullable Integer saveInstance(String submissionId, Document doc,
+        Patient patient, HttpServletRequest request) throws Exception {
+        Encounter encounter = XformInstanceIngester.ingest(doc, patient);
+        if (encounter == null) {
+            // A null path tells the processor there is no queue file.
+            processors.get().processXForm(XmlUtils.toString(doc), null, true, request);
+        }
+        // Wake any clients waiting for new observations (see SyncChangeNotifier).
+        SyncChangeNotifier.INSTANCE.poke();
+        archive(submissionId, encounter, doc);
+        return encounter != null ? encounter.getId() : null;
+    }
+
+    private static void archive(
+        String submissionId, @Nullable Encounter encounter, Document doc) {
+        try {
+            XformArchive.INSTANCE.append(submissionId,
+                encounter != null ? encounter.getUuid() : null, XmlUtils.toString(doc));
+        } catch (Exception e) {
+            LOG.error("Could not archive submission " + submissionId, e);
+        }
+    }
+
+    private static SimpleObject describeResult(
+        @Nullable String submissionId, Result result) {
+        SimpleObject description = new SimpleObject().add("submission_id", submissionId);
+        if (result.duplicate) {
+            description.add("status", "duplicate");
+        } else if (result.error == null) {
+            description.add("status", "saved");
+        } else {
+            String message = result.error.getMessage();
+            description.add("status", "failed")
+                .add("error", message != null ? message : result.error.getClass().getName());
+        }
+        return description;
+    }
+
+    /**
+     * Gets the client's ID for a submission.  If the client sent none, but the instance
+     * carries the client's own encounter_datetime, the ID is derived from the patient and
+     * the instance XML, so that a retry of the same instance gets the same ID and is
+     * recognised as a duplicate.  Without a client timestamp, two genuinely separate
+     * submissions can be identical (such as the same vitals on two days), so the ID is
+     * random and the instance is never taken for a duplicate.
+     */
+    private static String getSubmissionId(Map<?, ?> data) throws IOException, SAXException {
+        String submissionId = (String) data.get("submission_id");
+        if (submissionId == null || submissionId.isEmpty()) {
+            String xml = Utils.getRequiredString(data, "xml");
+            if (getEncounterDatetime(XmlUtils.parse(xml)).trim().isEmpty()) {
+                return UUID.randomUUID().toString();
+            }
+            String content = Utils.getRequiredString(data, "patient_uuid") + "\n" + xml;
+            return UUID.nameUUIDFromBytes(content.getBytes(StandardCharsets.UTF_8)).toString();
+        }
+        if (submissionId.length() > MAX_SUBMISSION_ID_LENGTH) {
+            throw new IllegalPropertyException(
+                "submission_id must be at most " + MAX_SUBMISSION_ID_LENGTH + " characters");
+        }
+        return submissionId;
+    }
+
     /** Given the received form instance, prepares an XML document that OpenMRS will accept. */
     public Document getPreparedXformDocument(SimpleObject post) throws IOException, SAXException {
-        String xml = Utils.getRequiredString(post, "xml");
-
-        String patientUuid = Utils.getRequiredString(post, "patient_uuid");
-        Patient patient = DbUtils.patientsByUuid.get(patientUuid);
+        Patient patient = DbUtils.patientsByUuid.get(Utils.getRequiredString(post, "patient_uuid"));
+        return prepareXformDocument(Utils.getRequiredString(post, "xml"), patient,
+            DbUtils.getAuthenticatedUser(), new Date(), new HashSet<String>());
+    }
 
+    /**
+     * Prepares a received form instance as getPreparedXformDocument() does, skipping the
+     * XSLT resource check for forms already in formsWithXslt and adding the form to it.
+     */
+    static Document prepareXformDocument(String xml, Patient patient, User user,
+        Date dateEntered, Set<String> formsWithXslt) throws IOException, SAXException {
         Document doc = XmlUtils.parse(xml);
         Element formElement = XmlUtils.requireElementTagName(doc.getDocumentElement(), "form");
-        ensureFormHasXsltResource(formElement.getAttribute("uuid"));
-
-        User user = DbUtils.getAuthenticatedUser();
-        adjustXformDocument(doc, patient.getId(), user.getId(), new Date());
+        String formUuid = formElement.getAttribute("uuid");
+        if (formsWithXslt.add(formUuid)) {
+            ensureFormHasXsltResource(formUuid);
+        }
+        adjustXformDocument(doc, patient.getId(), user.getId(), dateEntered);
         return doc;
     }
 
@@ -206,4 +489,25 @@ public class XformInstanceResource extends BaseResource<OpenmrsObject> {
     }
 
     @Override protected void populateJson(SimpleObject json, OpenmrsObject unused, RequestContext context) { }
+
+    /** A received instance, prepared and ready to save. */
+    private static class PreparedInstance {
+        final String submissionId;
+        final int patientId;
+        final Document doc;
+
+        PreparedInstance(String submissionId, int patientId, Document doc) {
+            this.submissionId = submissionId;
+            this.patientId = patientId;
+            this.doc = doc;
+        }
+
+        /**
+         * Gets the patient from the current session.  This is usually a cache hit, but
+         * saveRun() may have cleared the session, detaching a Patient loaded earlier.
+         */
+        Patient getPatient() {
+            return Context.getPatientService().getPatient(patientId);
+        }
+    }
 }
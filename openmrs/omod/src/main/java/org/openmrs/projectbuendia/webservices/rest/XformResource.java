@@ -10,9 +10,7 @@ import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 import org.openmrs.module.webservices.rest.web.annotation.Resource;
 import org.openmrs.module.webservices.rest.web.representation.Representation;
-import org.openmrs.module.xforms.buendia.BuendiaXformBuilderEx;
-import org.openmrs.module.xforms.buendia.FormData;
-import org.openmrs.module.xforms.util.XformsUtil;
+import org.openmrs.module.webservices.rest.web.response.ResponseException;
 import org.openmrs.util.FormConstants;
 import org.projectbuendia.openmrs.api.ProjectBuendiaService;
 import org.projectbuendia.openmrs.webservices.rest.RestController;
@@ -22,13 +20,18 @@ import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.UUID;
 
 import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import static org.openmrs.projectbuendia.Utils.eq;
 import static org.openmrs.projectbuendia.webservices.rest.XmlUtils.elementsIn;
@@ -43,13 +46,44 @@ import static org.openmrs.projectbuendia.webservices.rest.XmlUtils.requireDescen
 public class XformResource extends BaseResource<Form> {
     private static final String HTML_NAMESPACE = "http://www.w3.org/1999/xhtml";
     private static final String XFORMS_NAMESPACE = "http://www.w3.org/2002/xforms";
+    // Request attributes under which the forms and providers are kept for one request.
+    private static final String FORMS_ATTRIBUTE = XformResource.class.getName() + ".forms";
+    private static final String PROVIDERS_ATTRIBUTE =
+        XformResource.class.getName() + ".providers";
 
     public XformResource() {
         super("XForms", Representation.DEFAULT);
     }
 
+    /**
+     * Lists the published XForms.  The list is read once per request, as getAll()
+     * needs it both for the ETag and for the reply.
+     */
+    @SuppressWarnings("unchecked")
     @Override protected Collection<Form> listItems(RequestContext context) {
-        return getXformForms(formService);
+        HttpServletRequest request = context.getRequest();
+        Collection<Form> forms = (Collection<Form>) request.getAttribute(FORMS_ATTRIBUTE);
+        if (forms == null) {
+            forms = getXformForms(formService);
+            request.setAttribute(FORMS_ATTRIBUTE, forms);
+        }
+        return forms;
+    }
+
+    /**
+     * Gets all the providers, which are read once per request rather than once for
+     * the ETag and again for each form.
+     */
+    @SuppressWarnings("unchecked")
+    private Collection<Provider> getProviders(RequestContext context) {
+        HttpServletRequest request = context.getRequest();
+        Collection<Provider> providers =
+            (Collection<Provider>) request.getAttribute(PROVIDERS_ATTRIBUTE);
+        if (providers == null) {
+            providers = providerService.getAllProviders();
+            request.setAttribute(PROVIDERS_ATTRIBUTE, providers);
+        }
+        return providers;
     }
 
     public static Collection<Form> getXformForms(FormService formService) {
@@ -65,6 +99,57 @@ public class XformResource extends BaseResource<Form> {
         return DbUtils.isPublishedXform(form) ? form : null;
     }
 
+    /**
+     * Lists all the forms, or replies 304 Not Modified with no content if the client
+     * already has the current versions; see isNotModified().
+     */
+    @Override public SimpleObject getAll(RequestContext context) throws ResponseException {
+        if (isNotModified(listItems(context), context)) return null;
+        return super.getAll(context);
+    }
+
+    /**
+     * Retrieves a form, or replies 304 Not Modified with no content if the client
+     * already has its current version; see isNotModified().
+     */
+    @Override public Object retrieve(String uuid, RequestContext context) throws ResponseException {
+        Form form = retrieveItem(uuid);
+        if (form != null && isNotModified(Collections.singletonList(form), context)) return null;
+        return super.retrieve(uuid, context);
+    }
+
+    /**
+     * Sets an ETag header derived from the versions of the given forms (see
+     * XformCache.getVersion()) and the requested representation and locale, and
+     * returns true and sets the status to 304 if the If-None-Match header matches it.
+     */
+    private boolean isNotModified(Collection<Form> forms, RequestContext context) {
+        String providersVersion = XformCache.getProvidersVersion(getProviders(context));
+        StringBuilder versions = new StringBuilder();
+        versions.append(context.getRepresentation().getRepresentation()).append('/')
+            .append(context.getParameter("locale"));
+        for (Form form : forms) {
+            versions.append('/').append(form.getUuid())
+                .append('=').append(XformCache.getVersion(form, providersVersion));
+        }
+        String etag = "\"" + UUID.nameUUIDFromBytes(
+            versions.toString().getBytes(StandardCharsets.UTF_8)) + "\"";
+
+        HttpServletResponse response = context.getResponse();
+        response.setHeader("ETag", etag);
+        String ifNoneMatch = context.getRequest().getHeader("If-None-Match");
+        if (ifNoneMatch == null) return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (eq(tag, etag) || eq(tag, "*")) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Adds the following fields to the {@link SimpleObject}:
      *   - name: display type of the form
@@ -74,7 +159,7 @@ public class XformResource extends BaseResource<Form> {
      *     for forms that contain a provider field, this date will also be
      *     updated whenever the set of providers on the server changes
      * If the query parameter "?v=full" is present, also adds the "xml" field
-     * containing the XML of the form model definition.
+     * containing the XML of the form model definition, from the {@link XformCache}.
      */
     @Override protected void populateJson(SimpleObject json, Form form, RequestContext context) {
         json.add("name", form.getName());
@@ -86,33 +171,24 @@ public class XformResource extends BaseResource<Form> {
         boolean includesProviders = false;
         if (context.getRepresentation() == Representation.FULL) {
             Locale locale = DbUtils.getLocaleForTag(context.getParameter("locale"));
-            try {
-                FormData formData = BuendiaXformBuilderEx.buildXform(form, locale);
-                String xml = convertToOdkCollect(formData.xml, form.getName());
-                includesProviders = formData.includesProviders;
-                xml = removeRelationshipNodes(xml);
-                json.add("xml", xml);
-                json.add("locale", locale.toLanguageTag());
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+            String version = XformCache.getVersion(form,
+                XformCache.getProvidersVersion(getProviders(context)));
+            XformCache.Xform xform = XformCache.INSTANCE.get(form, locale, version);
+            includesProviders = xform.includesProviders;
+            json.add("xml", xform.xml);
+            json.add("locale", locale.toLanguageTag());
         } else {
             // Do a linear search, as otherwise it puts too many assumptions on
             // comparison order.  Also FormField overrides compare to be based
             // on lots of fields, but leaves .equals() based on UUID unchanged,
             // which is really dangerous.
             for (FormField formField : form.getFormFields()) {
-                Field field = formField.getField();
-                if (eq(field.getFieldType().getFieldTypeId(),
-                    FormConstants.FIELD_TYPE_DATABASE)
-                    && eq(field.getTableName(), "encounter")) {
-                    includesProviders = true;
-                }
+                if (isProviderField(formField)) includesProviders = true;
                 dateChanged = maxDate(dateChanged, dateChanged(formField));
             }
         }
         if (includesProviders) {
-            for (Provider provider : providerService.getAllProviders()) {
+            for (Provider provider : getProviders(context)) {
                 dateChanged = maxDate(dateChanged, dateChanged(provider));
             }
         }
@@ -132,7 +208,7 @@ public class XformResource extends BaseResource<Form> {
         // seems
         // to do odd things... so instead, we import it into a new document.
         Document oldDoc = XmlUtils.parse(xml);
-        Document doc = XmlUtils.createDocumentBuilder().newDocument();
+        Document doc = XmlUtils.newDocument();
         Element root = (Element) doc.importNode(oldDoc.getDocumentElement(), true);
         root = (Element) doc.renameNode(root, HTML_NAMESPACE, "h:form");
         doc.appendChild(root);
@@ -165,7 +241,7 @@ public class XformResource extends BaseResource<Form> {
         root.appendChild(head);
         root.appendChild(body);
 
-        return XformsUtil.doc2String(doc);
+        return XmlUtils.toString(doc);
     }
 
     /**
@@ -197,7 +273,7 @@ public class XformResource extends BaseResource<Form> {
                 break;
             }
         }
-        return XformsUtil.doc2String(doc);
+        return XmlUtils.toString(doc);
     }
 
     /** Returns the later of two nullable dates. */
@@ -207,12 +283,19 @@ public class XformResource extends BaseResource<Form> {
         return d1.before(d2) ? d2 : d1;
     }
 
+    /** Returns true if the field is the encounter field, which lists the providers. */
+    static boolean isProviderField(FormField formField) {
+        Field field = formField.getField();
+        return eq(field.getFieldType().getFieldTypeId(), FormConstants.FIELD_TYPE_DATABASE)
+            && eq(field.getTableName(), "encounter");
+    }
+
     /**
      * Returns the actual last modification time of an OpenMRS object.
      * Because OpenMRS doesn't set the modification time upon initial
      * creation (sigh) we have to check both dateChanged and dateCreated.
      */
-    private Date dateChanged(BaseOpenmrsMetadata d) {
+    static Date dateChanged(BaseOpenmrsMetadata d) {
         Date dateChanged = d.getDateChanged();
         if (dateChanged != null) return dateChanged;
         return d.getDateCreated();
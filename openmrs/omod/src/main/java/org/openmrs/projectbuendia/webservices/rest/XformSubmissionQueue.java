@@ -0,0 +1,342 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.projectbuendia.SessionWorkers;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.projectbuendia.openmrs.api.XformSubmissionStatus;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+/**
+ * Admits submitted XForm instances for processing: submissions for the same patient
+ * are processed one at a time in the order they arrived, submissions for different
+ * patients are processed in parallel up to a fixed limit, and each submission is
+ * recorded in a journal under its submission ID, so that a client retrying a
+ * submission that was already saved gets a success without a second encounter.
+ * <p>
+ * This is not a durable queue, only an admission gate.  The processing happens on
+ * the submitting request's thread, as the submitting user, and a waiting submission
+ * holds that thread, blocked on a semaphore, until it may start; so a burst of
+ * submissions ties up as many servlet container threads.  Nothing waiting here
+ * survives a restart.  Only the journal does: a submission that was interrupted stays
+ * PENDING and is processed again if the client retries it.
+ */
+public class XformSubmissionQueue {
+    public static final XformSubmissionQueue INSTANCE = new XformSubmissionQueue(
+        SessionWorkers.DEFAULT_POOL_SIZE, new ServiceJournal());
+
+    private static final Log log = LogFactory.getLog(XformSubmissionQueue.class);
+
+    private final Journal journal;
+    /** Permits to process, one per submission (or group) that may be processed at once. */
+    private final Semaphore slots;
+    /** The lane of each patient with a submission waiting or being processed. */
+    private final Map<Integer, Lane> lanes = new HashMap<>();
+
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger processing = new AtomicInteger();
+    private final LatencyHistogram waitLatency = new LatencyHistogram();
+    private final LatencyHistogram processingLatency = new LatencyHistogram();
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    public XformSubmissionQueue(int maxConcurrent, Journal journal) {
+        this.journal = journal;
+        this.slots = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * Waits for the patient's earlier submissions and for a free slot, then processes
+     * the submission unless the journal shows it was already saved.
+     * @return true if the submission was processed, false if it was a duplicate.
+     */
+    public boolean submit(String submissionId, int patientId, final Processor processor)
+        throws Exception {
+        Result result = submitAll(patientId, Collections.singletonList(submissionId),
+            new BatchProcessor() {
+                @Override public List<Result> process(List<Integer> indexes) {
+                    Result result;
+                    try {
+                        result = Result.saved(processor.process());
+                    } catch (Exception e) {
+                        result = Result.failed(e);
+                    }
+                    return Collections.singletonList(result);
+                }
+            }).get(0);
+        if (result.error != null) throw result.error;
+        return !result.duplicate;
+    }
+
+    /**
+     * Admits several submissions for the same patient together, so that the caller can
+     * save them in fewer transactions.  This waits as submit() does, then passes the
+     * positions of the submissions that were not already saved (nor repeated earlier
+     * in the list) to the processor, which reports the outcome of each.
+     * @return a result for each submission, in the same order.
+     */
+    public List<Result> submitAll(int patientId, List<String> submissionIds,
+        BatchProcessor processor) throws InterruptedException {
+        long startMillis = System.currentTimeMillis();
+        int count = submissionIds.size();
+        waiting.addAndGet(count);
+        Lane lane;
+        try {
+            lane = enterLane(patientId);
+        } catch (InterruptedException e) {
+            waiting.addAndGet(-count);
+            throw e;
+        }
+        boolean started = false;
+        try {
+            slots.acquire();
+            try {
+                waiting.addAndGet(-count);
+                processing.addAndGet(count);
+                started = true;
+                long waitMillis = System.currentTimeMillis() - startMillis;
+                for (int i = 0; i < count; i++) {
+                    waitLatency.record(waitMillis);
+                }
+                return process(patientId, submissionIds, processor);
+            } finally {
+                processing.addAndGet(-count);
+                slots.release();
+            }
+        } finally {
+            if (!started) waiting.addAndGet(-count);
+            leaveLane(patientId, lane);
+        }
+    }
+
+    private List<Result> process(
+        int patientId, List<String> submissionIds, BatchProcessor processor) {
+        Result[] results = new Result[submissionIds.size()];
+        List<Integer> pending = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < results.length; i++) {
+            String submissionId = submissionIds.get(i);
+            if (!seen.add(submissionId)
+                || journal.getStatus(submissionId) == XformSubmissionStatus.DONE) {
+                log.info("Submission " + submissionId + " was already saved; ignoring it");
+                duplicates.incrementAndGet();
+                results[i] = Result.DUPLICATE;
+            } else {
+                journal.setStatus(
+                    submissionId, patientId, XformSubmissionStatus.PENDING, null, null);
+                pending.add(i);
+            }
+        }
+        if (pending.isEmpty()) return Arrays.asList(results);
+
+        long startMillis = System.currentTimeMillis();
+        List<Result> processed;
+        try {
+            processed = processor.process(pending);
+        } finally {
+            long millisEach = (System.currentTimeMillis() - startMillis) / pending.size();
+            for (int i = 0; i < pending.size(); i++) {
+                processingLatency.record(millisEach);
+            }
+        }
+        for (int j = 0; j < pending.size(); j++) {
+            int i = pending.get(j);
+            Result result = processed.get(j);
+            results[i] = result;
+            if (result.error == null) {
+                done.incrementAndGet();
+                // The encounter is already committed, so the client must hear that it
+                // was saved even if this fails; a retry would then save it again.
+                try {
+                    journal.setStatus(submissionIds.get(i), patientId,
+                        XformSubmissionStatus.DONE, result.encounterId, null);
+                } catch (RuntimeException e) {
+                    log.error("Could not record completion of submission "
+                        + submissionIds.get(i), e);
+                }
+            } else {
+                failed.incrementAndGet();
+                try {
+                    journal.setStatus(submissionIds.get(i), patientId,
+                        XformSubmissionStatus.FAILED, null, String.valueOf(result.error));
+                } catch (RuntimeException e) {
+                    log.error("Could not record failure of submission "
+                        + submissionIds.get(i), e);
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private Lane enterLane(int patientId) throws InterruptedException {
+        Lane lane;
+        synchronized (lanes) {
+            lane = lanes.get(patientId);
+            if (lane == null) {
+                lane = new Lane();
+                lanes.put(patientId, lane);
+            }
+            lane.users++;
+        }
+        try {
+            lane.lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            release(patientId, lane);
+            throw e;
+        }
+        return lane;
+    }
+
+    private void leaveLane(int patientId, Lane lane) {
+        lane.lock.unlock();
+        release(patientId, lane);
+    }
+
+    private void release(int patientId, Lane lane) {
+        synchronized (lanes) {
+            if (--lane.users == 0) lanes.remove(patientId);
+        }
+    }
+
+    /** Returns the number of submissions waiting or being processed. */
+    public int getDepth() {
+        return waiting.get() + processing.get();
+    }
+
+    /** Writes out the queue's statistics in Prometheus text format. */
+    public void write(Writer out) throws IOException {
+        writeGauge(out, "buendia_xform_queue_waiting",
+            "XForm submissions waiting to be processed.", waiting.get());
+        writeGauge(out, "buendia_xform_queue_processing",
+            "XForm submissions being processed.", processing.get());
+        writeSummary(out, "buendia_xform_queue_wait_milliseconds",
+            "Time XForm submissions waited before processing.", waitLatency);
+        writeSummary(out, "buendia_xform_processing_milliseconds",
+            "Time taken to process XForm submissions.", processingLatency);
+
+        String name = "buendia_xform_submissions_total";
+        out.write("# HELP " + name + " XForm submissions by outcome.\n");
+        out.write("# TYPE " + name + " counter\n");
+        out.write(name + "{outcome=\"done\"} " + done.get() + "\n");
+        out.write(name + "{outcome=\"failed\"} " + failed.get() + "\n");
+        out.write(name + "{outcome=\"duplicate\"} " + duplicates.get() + "\n");
+        out.flush();
+    }
+
+    private static void writeGauge(Writer out, String name, String help, long value)
+        throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " gauge\n");
+        out.write(name + " " + value + "\n");
+    }
+
+    private static void writeSummary(Writer out, String name, String help,
+                                     LatencyHistogram latency) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " summary\n");
+        for (double q : RequestMetrics.QUANTILES) {
+            out.write(name + "{quantile=\"" + q + "\"} " + latency.getQuantile(q) + "\n");
+        }
+        out.write(name + "_sum " + latency.getSum() + "\n");
+        out.write(name + "_count " + latency.getCount() + "\n");
+    }
+
+    /** Processes one submission, returning the ID of the saved encounter if known. */
+    public interface Processor {
+        @Nullable Integer process() throws Exception;
+    }
+
+    /** Processes several submissions for one patient, in order. */
+    public interface BatchProcessor {
+        /**
+         * Processes the submissions at the given positions in the list passed to
+         * submitAll(), returning a result (saved or failed) for each, in order.
+         */
+        List<Result> process(List<Integer> indexes);
+    }
+
+    /** The outcome of one submission. */
+    public static class Result {
+        static final Result DUPLICATE = new Result(true, null, null);
+
+        /** True if the submission was already saved, and was not processed again. */
+        public final boolean duplicate;
+        /** The saved encounter, if known. */
+        public final @Nullable Integer encounterId;
+        /** The reason the submission could not be saved, or null if it was saved. */
+        public final @Nullable Exception error;
+
+        private Result(boolean duplicate, @Nullable Integer encounterId,
+                       @Nullable Exception error) {
+            this.duplicate = duplicate;
+            this.encounterId = encounterId;
+            this.error = error;
+        }
+
+        public static Result saved(@Nullable Integer encounterId) {
+            return new Result(false, encounterId, null);
+        }
+
+        public static Result failed(Exception error) {
+            return new Result(false, null, error);
+        }
+    }
+
+    /** Records the status of each submission. */
+    public interface Journal {
+        @Nullable XformSubmissionStatus getStatus(String submissionId);
+
+        void setStatus(String submissionId, int patientId, XformSubmissionStatus status,
+                       @Nullable Integer encounterId, @Nullable String error);
+    }
+
+    /** Keeps the journal in the buendia_xform_submission table. */
+    private static class ServiceJournal implements Journal {
+        @Override public @Nullable XformSubmissionStatus getStatus(String submissionId) {
+            return Context.getService(ProjectBuendiaService.class)
+                .getXformSubmissionStatus(submissionId);
+        }
+
+        @Override public void setStatus(String submissionId, int patientId,
+            XformSubmissionStatus status, @Nullable Integer encounterId, @Nullable String error) {
+            Context.getService(ProjectBuendiaService.class).setXformSubmissionStatus(
+                submissionId, patientId, status, encounterId, error);
+        }
+    }
+
+    private static class Lane {
+        /** Fair, so that the patient's submissions are processed in arrival order. */
+        final ReentrantLock lock = new ReentrantLock(true);
+        /** The number of submissions holding or waiting for the lock. */
+        int users;
+    }
+}
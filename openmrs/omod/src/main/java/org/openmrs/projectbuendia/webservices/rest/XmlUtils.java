@@ -22,17 +22,60 @@ import org.xml.sax.SAXException;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 
 import static org.openmrs.projectbuendia.Utils.eq;
 
 /** XML manipulation functions. */
 public class XmlUtils {
+    private static final DocumentBuilderFactory documentBuilderFactory;
+    private static final TransformerFactory transformerFactory =
+        TransformerFactory.newInstance();
+
+    static {
+        documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        documentBuilderFactory.setIgnoringComments(true);
+    }
+
+    // DocumentBuilders and Transformers are not thread-safe (parsing two documents at
+    // once with one builder fails with "FWK005 parse may not be called while parsing"),
+    // but looking up and constructing them costs more than parsing a typical form, so
+    // each thread keeps one of each and reuses it.
+    private static final ThreadLocal<DocumentBuilder> builders =
+        new ThreadLocal<DocumentBuilder>() {
+            @Override protected DocumentBuilder initialValue() {
+                return createDocumentBuilder();
+            }
+        };
+    private static final ThreadLocal<Transformer> serializers =
+        new ThreadLocal<Transformer>() {
+            @Override protected Transformer initialValue() {
+                try {
+                    synchronized (transformerFactory) {
+                        Transformer transformer = transformerFactory.newTransformer();
+                        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+                        return transformer;
+                    }
+                } catch (TransformerConfigurationException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
     /** Converts a NodeList to an Iterable of Elements. */
     public static Iterable<Element> elementsIn(NodeList nodeList) {
         List<Element> elements = new ArrayList<>(nodeList.getLength());
@@ -126,13 +169,15 @@ public class XmlUtils {
         return ret;
     }
 
-    /** Constructs a new namespace-aware DocumentBuilder. */
+    /**
+     * Constructs a new namespace-aware DocumentBuilder.  To parse or create documents,
+     * use parse() or newDocument(), which reuse this thread's DocumentBuilder instead.
+     */
     public static DocumentBuilder createDocumentBuilder() {
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            factory.setIgnoringComments(true);
-            return factory.newDocumentBuilder();
+            synchronized (documentBuilderFactory) {
+                return documentBuilderFactory.newDocumentBuilder();
+            }
         } catch (ParserConfigurationException e) {
             throw new RuntimeException(e);
         }
@@ -140,10 +185,28 @@ public class XmlUtils {
 
     /** Parses the given XML string to produce a Document. */
     public static Document parse(String xml) throws SAXException, IOException {
-        // DocumentBuilder is not thread-safe; parsing multiple documents concurrently
-        // will cause the error "FWK005 parse may not be called while parsing".  So,
-        // we have to construct a new DocumentBuilder every time we parse something.
-        return createDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        DocumentBuilder builder = builders.get();
+        try {
+            return builder.parse(new InputSource(new StringReader(xml)));
+        } finally {
+            builder.reset();
+        }
+    }
+
+    /** Creates a new empty Document. */
+    public static Document newDocument() {
+        return builders.get().newDocument();
+    }
+
+    /** Serializes a Document (or any node and its descendants) to an XML string. */
+    public static String toString(Node node) {
+        StringWriter writer = new StringWriter();
+        try {
+            serializers.get().transform(new DOMSource(node), new StreamResult(writer));
+        } catch (TransformerException e) {
+            throw new RuntimeException(e);
+        }
+        return writer.toString();
     }
 
     /** Gets a sequence of descending children by name, creating each if not present. */
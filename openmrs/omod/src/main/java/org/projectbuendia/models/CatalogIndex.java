@@ -5,32 +5,105 @@ import org.projectbuendia.models.Catalog.Drug;
 import org.projectbuendia.models.Catalog.Format;
 import org.projectbuendia.models.Catalog.Route;
 
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import static org.openmrs.projectbuendia.Utils.eq;
-
+/**
+ * Lookups by code, and type-ahead search by name, over a catalog.  Everything is
+ * indexed once when the index is built: codes in hash maps, and the words of every
+ * drug's names (in all languages), aliases, and codes in a sorted array, in which all
+ * the words starting with a given prefix lie in one contiguous run.
+ */
 public class CatalogIndex {
     Category[] categories = {};
     Map<String, Drug> drugs = new HashMap<>();
     Map<String, Format> formats = new HashMap<>();
-    Route[] routes = {};
+    Map<String, Route> routes = new HashMap<>();
     Unit[] dosageUnits = {};
 
+    /** All the drugs, in catalog order. */
+    Drug[] drugList;
+    /** Normalized search words, sorted. */
+    String[] searchWords;
+    /** For each entry in searchWords, the index in drugList of a drug having that word. */
+    int[] searchDrugIndexes;
+
     public CatalogIndex(Category... categories) {
         this.categories = categories;
+        List<Drug> drugList = new ArrayList<>();
         for (Category category : categories) {
             for (Drug drug : category.drugs) {
                 drugs.put(drug.code, drug);
+                drugList.add(drug);
                 for (Format format : drug.formats) {
                     formats.put(format.code, format);
                 }
             }
         }
+        this.drugList = drugList.toArray(new Drug[drugList.size()]);
+        buildSearchIndex();
+    }
+
+    private void buildSearchIndex() {
+        List<SearchEntry> entries = new ArrayList<>();
+        for (int d = 0; d < drugList.length; d++) {
+            Drug drug = drugList[d];
+            Set<String> words = new LinkedHashSet<>();
+            addWords(words, drug.name.getAll());
+            for (Intl alias : drug.aliases) {
+                addWords(words, alias.getAll());
+            }
+            addWords(words, drug.code);
+            for (Format format : drug.formats) {
+                addWords(words, format.code);
+            }
+            for (String word : words) {
+                entries.add(new SearchEntry(word, d));
+            }
+        }
+        SearchEntry[] sorted = entries.toArray(new SearchEntry[entries.size()]);
+        Arrays.sort(sorted);
+        searchWords = new String[sorted.length];
+        searchDrugIndexes = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            searchWords[i] = sorted[i].word.intern();
+            searchDrugIndexes[i] = sorted[i].drugIndex;
+        }
+    }
+
+    private static void addWords(Set<String> words, String... texts) {
+        for (String text : texts) {
+            for (String word : normalize(text).split("[^a-z0-9]+")) {
+                if (!word.isEmpty()) words.add(word);
+            }
+        }
+    }
+
+    /** Lowercases text and strips accents, so that "Rubéole" is found by "rubeole". */
+    static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder result = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                result.append(Character.toLowerCase(c));
+            }
+        }
+        return result.toString();
     }
 
     public CatalogIndex withRoutes(Route... routes) {
-        this.routes = routes;
+        this.routes = new HashMap<>();
+        for (Route route : routes) {
+            this.routes.put(route.code, route);
+        }
         return this;
     }
 
@@ -52,21 +125,77 @@ public class CatalogIndex {
     }
 
     public Format getFormat(String code) {
-        code = code.replaceAll("-*$", "");
-        if (formats.containsKey(code)) {
-            return formats.get(code);
-        }
-        return Format.UNSPECIFIED;
+        int end = code.length();
+        while (end > 0 && code.charAt(end - 1) == '-') end--;
+        Format format = formats.get(code.substring(0, end));
+        return format != null ? format : Format.UNSPECIFIED;
     }
 
     public Route getRoute(String code) {
-        for (Route route : routes) {
-            if (eq(code, route.code)) return route;
+        Route route = routes.get(code);
+        return route != null ? route : Route.UNSPECIFIED;
+    }
+
+    /**
+     * Finds drugs for type-ahead search.  The query is split into words, and a drug
+     * matches if each word is a prefix of some word in the drug's name or aliases (in
+     * any language) or in its drug or format codes.  Matches are returned in catalog
+     * order, up to the given limit.
+     */
+    public List<Drug> search(String query, int limit) {
+        BitSet matches = null;
+        for (String word : normalize(query).split("[^a-z0-9]+")) {
+            if (word.isEmpty()) continue;
+            BitSet wordMatches = new BitSet(drugList.length);
+            for (int i = findFirstWordNotBefore(word); i < searchWords.length && searchWords[i].startsWith(word); i++) {
+                wordMatches.set(searchDrugIndexes[i]);
+            }
+            if (matches == null) {
+                matches = wordMatches;
+            } else {
+                matches.and(wordMatches);
+            }
+        }
+        List<Drug> results = new ArrayList<>();
+        if (matches == null) return results;
+        for (int d = matches.nextSetBit(0); d >= 0 && results.size() < limit;
+             d = matches.nextSetBit(d + 1)) {
+            results.add(drugList[d]);
+        }
+        return results;
+    }
+
+    /** Returns the index of the first entry in searchWords that is >= the given word. */
+    private int findFirstWordNotBefore(String word) {
+        int low = 0;
+        int high = searchWords.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (searchWords[mid].compareTo(word) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
-        return Route.UNSPECIFIED;
+        return low;
     }
 
     public Unit[] getDosageUnits() {
         return dosageUnits;
     }
+
+    private static class SearchEntry implements Comparable<SearchEntry> {
+        final String word;
+        final int drugIndex;
+
+        SearchEntry(String word, int drugIndex) {
+            this.word = word;
+            this.drugIndex = drugIndex;
+        }
+
+        @Override public int compareTo(SearchEntry other) {
+            int result = word.compareTo(other.word);
+            return result != 0 ? result : Integer.compare(drugIndex, other.drugIndex);
+        }
+    }
 }
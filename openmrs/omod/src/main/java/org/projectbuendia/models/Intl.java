@@ -7,29 +7,50 @@ import org.projectbuendia.openmrs.web.controller.HtmlOutput.Doc;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** A localizable string, made from a string of the form "cat [fr:chat] [es:gato]". */
 public class Intl implements Doc {
-    private static final Pattern BRACKETED_PATTERN = Pattern.compile("\\[(.*?)\\]");
-    private static final Pattern EXTRA_SPACES = Pattern.compile("^ *| *$");
+    /** For each locale, the language tags to look up, from most to least specific. */
+    private static final Map<Locale, String[]> lookupTags = new ConcurrentHashMap<>();
+    private static final int MAX_LOOKUP_LOCALES = 100;
 
     public final String base;
     public final Map<String, String> options;
 
     public Intl(String packed) {
         if (packed == null) packed = "";
-        String unpacked = BRACKETED_PATTERN.matcher(packed).replaceAll("");
-        base = EXTRA_SPACES.matcher(unpacked).replaceAll("");
+        // Scanned by hand rather than with regexes, as the catalog constructs
+        // thousands of these when its class is loaded.
         options = new HashMap<>();
-        Matcher matcher = BRACKETED_PATTERN.matcher(packed);
-        for (int pos = 0; matcher.find(pos); pos = matcher.end(1)) {
-            String[] parts = Utils.splitFields(matcher.group(1), ":", 2);
-            options.put(parts[0], parts[1]);
+        StringBuilder unpacked = new StringBuilder(packed.length());
+        int pos = 0;
+        for (int open = packed.indexOf('['); open >= 0; open = packed.indexOf('[', pos)) {
+            int close = packed.indexOf(']', open + 1);
+            if (close < 0) break;
+            String option = packed.substring(open + 1, close);
+            if (option.indexOf('\n') >= 0 || option.indexOf('\r') >= 0) {
+                // Brackets don't span lines; treat this "[" as ordinary text.
+                unpacked.append(packed, pos, open + 1);
+                pos = open + 1;
+                continue;
+            }
+            unpacked.append(packed, pos, open);
+            String[] parts = Utils.splitFields(option, ":", 2);
+            options.put(parts[0].intern(), parts[1]);
+            pos = close + 1;
         }
+        unpacked.append(packed, pos, packed.length());
+
+        int start = 0;
+        int end = unpacked.length();
+        while (start < end && unpacked.charAt(start) == ' ') start++;
+        while (end > start && unpacked.charAt(end - 1) == ' ') end--;
+        base = unpacked.substring(start, end);
     }
 
     public Intl(String base, Map<String, String> options) {
@@ -44,22 +65,30 @@ public class Intl implements Doc {
     public String loc(Locale locale) {
         if (options == null || options.isEmpty() || locale == null) return base;
 
-        String tag = Utils.toLanguageTag(locale);
-        if (options.containsKey(tag)) return options.get(tag);
-
-        String lang = locale.getLanguage();
-        String region = locale.getCountry();
-        String variant = locale.getVariant();
-        tag = Utils.toLanguageTag(new Locale(lang, region, variant));
-        if (options.containsKey(tag)) return options.get(tag);
-        tag = Utils.toLanguageTag(new Locale(lang, region));
-        if (options.containsKey(tag)) return options.get(tag);
-        tag = Utils.toLanguageTag(new Locale(lang));
-        if (options.containsKey(tag)) return options.get(tag);
-
+        for (String tag : getLookupTags(locale)) {
+            if (options.containsKey(tag)) return options.get(tag);
+        }
         return base;
     }
 
+    private static String[] getLookupTags(Locale locale) {
+        String[] tags = lookupTags.get(locale);
+        if (tags == null) {
+            String lang = locale.getLanguage();
+            String region = locale.getCountry();
+            String variant = locale.getVariant();
+            Set<String> set = new LinkedHashSet<>();
+            set.add(Utils.toLanguageTag(locale));
+            set.add(Utils.toLanguageTag(new Locale(lang, region, variant)));
+            set.add(Utils.toLanguageTag(new Locale(lang, region)));
+            set.add(Utils.toLanguageTag(new Locale(lang)));
+            tags = set.toArray(new String[set.size()]);
+            if (lookupTags.size() >= MAX_LOOKUP_LOCALES) lookupTags.clear();
+            lookupTags.put(locale, tags);
+        }
+        return tags;
+    }
+
     public String[] getAll() {
         String[] values = options.values().toArray(new String[0]);
         String[] results = new String[values.length + 1];
@@ -0,0 +1,33 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.openmrs.web;
+
+import org.openmrs.projectbuendia.webservices.rest.AsyncLogWriter;
+import org.openmrs.projectbuendia.webservices.rest.XformArchive;
+import org.projectbuendia.openmrs.ProjectBuendiaActivator;
+
+/**
+ * Extends the module activator to stop the background threads that the web layer
+ * starts, so that unloading or restarting the module doesn't leave them running.
+ */
+public class ProjectBuendiaWebActivator extends ProjectBuendiaActivator {
+    @Override public void stopped() {
+        try {
+            AsyncLogWriter.INSTANCE.close();
+            XformArchive.INSTANCE.close();
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while stopping the background writers", e);
+            Thread.currentThread().interrupt();
+        }
+        super.stopped();
+    }
+}
@@ -0,0 +1,72 @@
+package org.projectbuendia.openmrs.web.controller;
+
+import org.joda.time.DateTimeZone;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * A bounded, least-recently-used cache of rendered patient charts, keyed by patient,
+ * locale, and time zone.  Each entry is stored with the patient's revision (see
+ * ProjectBuendiaService.getPatientRevisions()) as read before rendering, and is reused
+ * only while the revision is unchanged.  The revision covers the patient's own record,
+ * observations, and orders, but not shared data that charts display by name: renaming
+ * a location, a provider, or a concept doesn't change any patient's revision.  Entries
+ * therefore expire after a maximum age, which also covers an update made in the same
+ * second as the one before it, which the revision can miss.
+ */
+class ChartCache {
+    private final long maxAgeMillis;
+    private final Map<String, Entry> entries;
+
+    ChartCache(final int capacity, long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** Returns the cached HTML for the patient at the given revision, or null. */
+    synchronized @Nullable String get(
+        String patientUuid, Locale locale, DateTimeZone zone, String revision) {
+        String key = getKey(patientUuid, locale, zone);
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (!entry.revision.equals(revision)
+            || System.currentTimeMillis() - entry.createdMillis > maxAgeMillis) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.html;
+    }
+
+    synchronized void put(
+        String patientUuid, Locale locale, DateTimeZone zone, String revision, String html) {
+        entries.put(getKey(patientUuid, locale, zone), new Entry(revision, html));
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static String getKey(String patientUuid, Locale locale, DateTimeZone zone) {
+        return patientUuid + "/" + locale.toLanguageTag() + "/" + zone.getID();
+    }
+
+    private static class Entry {
+        final String revision;
+        final String html;
+        final long createdMillis;
+
+        Entry(String revision, String html) {
+            this.revision = revision;
+            this.html = html;
+            this.createdMillis = System.currentTimeMillis();
+        }
+    }
+}
@@ -37,13 +37,16 @@ import org.projectbuendia.openmrs.api.ProjectBuendiaService;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import static org.openmrs.projectbuendia.Utils.eq;
 import static org.openmrs.projectbuendia.Utils.toUuid;
@@ -73,6 +76,14 @@ public class DataHelper {
     private Locale locale;
     private DateTimeFormatter timeFormatter;
     private DateTimeFormatter dateFormatter;
+    private final Map<String, Map<String, Obs>> latestObsByConceptUuid = new HashMap<>();
+    private Set<String> pregnantPatientUuids = null;
+    private List<Form> forms = null;
+
+    // Data prefetched by prefetch(), keyed by patient ID.
+    private final Map<Integer, List<Encounter>> prefetchedEncounters = new HashMap<>();
+    private final Map<Integer, List<Order>> prefetchedOrders = new HashMap<>();
+    private final Map<Integer, Map<String, List<Obs>>> prefetchedObs = new HashMap<>();
 
     private static final Comparator<Encounter> ENCOUNTER_TIME = new Comparator<Encounter>() {
         @Override public int compare(Encounter e1, Encounter e2) {
@@ -90,6 +101,14 @@ public class DataHelper {
         }
     };
 
+    /** Orders observations by time, breaking ties by ID. */
+    private static final Comparator<Obs> OBS_TIME_ID = new Comparator<Obs>() {
+        @Override public int compare(Obs o1, Obs o2) {
+            int result = o1.getObsDatetime().compareTo(o2.getObsDatetime());
+            return result != 0 ? result : o1.getObsId().compareTo(o2.getObsId());
+        }
+    };
+
     private static final Comparator<Obs> OBS_VALUE_TIME = new Comparator<Obs>() {
         @Override public int compare(Obs o1, Obs o2) {
             DateTime dt1 = toDateTime(o1.getValueDatetime());
@@ -149,6 +168,10 @@ public class DataHelper {
         return locale;
     }
 
+    public DateTimeZone getZone() {
+        return zone;
+    }
+
     public String formatTime(DateTime dt) {
         return timeFormatter.print(dt);
     }
@@ -199,27 +222,116 @@ public class DataHelper {
     }
 
     public boolean isPregnant(Patient patient) {
-        Obs latest = getLatestObsByPatient(PREGNANCY_UUID).get(patient.getUuid());
-        return (latest != null && isYes(latest));
+        return getPregnantPatientUuids().contains(patient.getUuid());
+    }
+
+    /**
+     * Returns the UUIDs of the patients whose latest pregnancy observation is "yes".
+     * The set is computed once per DataHelper, from one query for all patients.
+     */
+    public Set<String> getPregnantPatientUuids() {
+        if (pregnantPatientUuids == null) {
+            Set<String> uuids = new HashSet<>();
+            for (Map.Entry<String, Obs> entry : getLatestObsByPatient(PREGNANCY_UUID).entrySet()) {
+                if (isYes(entry.getValue())) uuids.add(entry.getKey());
+            }
+            pregnantPatientUuids = Collections.unmodifiableSet(uuids);
+        }
+        return pregnantPatientUuids;
+    }
+
+    /**
+     * Supplies the result of getPregnantPatientUuids() computed by another DataHelper,
+     * so that helpers working on parts of the same page don't each repeat the query.
+     */
+    public void setPregnantPatientUuids(Set<String> uuids) {
+        pregnantPatientUuids = uuids;
     }
 
+    /**
+     * Gets the latest observation of a concept for every patient, keyed by patient UUID.
+     * The results are read in one query on the latest-observation table and kept for the
+     * life of this DataHelper, which serves a single page.
+     */
     public Map<String, Obs> getLatestObsByPatient(String conceptUuid) {
-        Map<String, Obs> results = new HashMap<>();
-        Concept concept = conceptService.getConceptByUuid(conceptUuid);
-        if (concept != null) {
-            for (Patient patient : patientService.getAllPatients()) {
-                Obs obs = getLatestObs(patient, concept);
-                if (obs != null) results.put(patient.getUuid(), obs);
+        Map<String, Obs> results = latestObsByConceptUuid.get(conceptUuid);
+        if (results == null) {
+            results = new HashMap<>();
+            Concept concept = conceptService.getConceptByUuid(conceptUuid);
+            if (concept != null) {
+                for (Obs obs : buendiaService.getLatestObsForAllPatients(concept)) {
+                    results.put(obs.getPerson().getUuid(), obs);
+                }
             }
+            latestObsByConceptUuid.put(conceptUuid, results);
         }
         return results;
     }
 
+    /**
+     * Reads the encounters, observations (including those without an encounter), and
+     * orders of the given patients in a few bulk queries, so that rendering their charts
+     * doesn't have to query for each encounter and each concept.  The helper answers
+     * getEncounters(), getOrders(), getLatestObs(), and getFirstObs() for these patients
+     * from the prefetched data.
+     */
+    public void prefetch(Collection<Patient> patients) {
+        for (Patient patient : patients) {
+            prefetchedEncounters.put(patient.getId(), new ArrayList<Encounter>());
+            prefetchedOrders.put(patient.getId(), new ArrayList<Order>());
+            prefetchedObs.put(patient.getId(), new HashMap<String, List<Obs>>());
+        }
+        for (Encounter enc : buendiaService.getEncountersWithObs(patients)) {
+            Integer patientId = enc.getPatient().getId();
+            prefetchedEncounters.get(patientId).add(enc);
+            for (Obs obs : enc.getAllObs()) {
+                addPrefetchedObs(patientId, obs);
+            }
+        }
+        for (Obs obs : buendiaService.getObsWithoutEncounter(patients)) {
+            addPrefetchedObs(obs.getPersonId(), obs);
+        }
+        for (Map<String, List<Obs>> obsByConcept : prefetchedObs.values()) {
+            for (List<Obs> list : obsByConcept.values()) {
+                Collections.sort(list, OBS_TIME_ID);
+            }
+        }
+        for (Order order : buendiaService.getAllOrdersByPatients(patients)) {
+            prefetchedOrders.get(order.getPatient().getId()).add(order);
+        }
+    }
+
+    private void addPrefetchedObs(Integer patientId, Obs obs) {
+        Map<String, List<Obs>> obsByConcept = prefetchedObs.get(patientId);
+        String conceptUuid = getConceptUuid(obs);
+        List<Obs> list = obsByConcept.get(conceptUuid);
+        if (list == null) {
+            list = new ArrayList<>();
+            obsByConcept.put(conceptUuid, list);
+        }
+        list.add(obs);
+    }
+
+    /**
+     * Returns the revision of each of the given patients' charts, keyed by patient ID;
+     * see ProjectBuendiaService.getPatientRevisions().
+     */
+    public Map<Integer, String> getRevisions(Collection<Patient> patients) {
+        List<Integer> patientIds = new ArrayList<>();
+        for (Patient patient : patients) {
+            patientIds.add(patient.getId());
+        }
+        return buendiaService.getPatientRevisions(patientIds);
+    }
+
     public Obs getFirstObs(Patient pat, String conceptUuid) {
         return getFirstObs(pat, conceptService.getConceptByUuid(conceptUuid));
     }
 
     public Obs getFirstObs(Patient pat, Concept concept) {
+        if (concept == null) return null;
+        List<Obs> prefetched = getPrefetchedObs(pat, concept);
+        if (prefetched != null) return prefetched.isEmpty() ? null : prefetched.get(0);
         List<Obs> allObs = obsService.getObservations(
             Arrays.asList((Person) pat), null,
             Arrays.asList(concept), null, null, null, null,
@@ -238,6 +350,8 @@ public class DataHelper {
 
     public Obs getLatestObs(Patient pat, Concept concept) {
         if (concept == null) return null;
+        List<Obs> prefetched = getPrefetchedObs(pat, concept);
+        if (prefetched != null) return prefetched.isEmpty() ? null : Utils.last(prefetched);
         for (Obs obs : obsService.getObservations(
             Arrays.asList((Person) pat), null,
             Arrays.asList(concept), null, null, null, null,
@@ -248,6 +362,17 @@ public class DataHelper {
         return null;
     }
 
+    /**
+     * Gets the prefetched observations of a concept for a patient, in chronological
+     * order, or null if the patient's data wasn't prefetched.
+     */
+    private List<Obs> getPrefetchedObs(Patient pat, Concept concept) {
+        Map<String, List<Obs>> obsByConcept = prefetchedObs.get(pat.getId());
+        if (obsByConcept == null) return null;
+        List<Obs> list = obsByConcept.get(concept.getUuid());
+        return list != null ? list : Collections.<Obs>emptyList();
+    }
+
     public Map<String, Obs> getLatestObsByQuestion(List<Obs> group) {
         Map<String, Obs> obsByQuestion = new HashMap<>();
         for (Obs obs : group) {
@@ -309,6 +434,8 @@ public class DataHelper {
     }
 
     public List<Encounter> getEncounters(Patient patient) {
+        List<Encounter> prefetched = prefetchedEncounters.get(patient.getId());
+        if (prefetched != null) return new ArrayList<>(prefetched);
         return encounterService.getEncounters(
             patient, null, null, null,
             null, null, null, null, null, false
@@ -362,17 +489,22 @@ public class DataHelper {
     }
 
     public List<Order> getOrders(Patient patient) {
+        List<Order> prefetched = prefetchedOrders.get(patient.getId());
+        if (prefetched != null) return new ArrayList<>(prefetched);
         return orderService.getAllOrdersByPatient(patient);
     }
 
+    /** Gets the published forms, sorted by title; they are read once per helper. */
     public List<Form> getForms() {
-        List<Form> forms = new ArrayList<>();
-        for (Form form : formService.getAllForms()) {
-            if (form.getPublished()) {
-                forms.add(form);
+        if (forms == null) {
+            forms = new ArrayList<>();
+            for (Form form : formService.getAllForms()) {
+                if (form.getPublished()) {
+                    forms.add(form);
+                }
             }
+            Collections.sort(forms, FORM_TITLE);
         }
-        Collections.sort(forms, FORM_TITLE);
         return forms;
     }
 
@@ -9,6 +9,11 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.MissingFormatArgumentException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class HtmlOutput {
     public interface Doc {
@@ -99,9 +104,14 @@ public class HtmlOutput {
         }
 
         public void writeTo(Writer writer, Locale locale) throws IOException {
-            writer.write("<" + tag + "\n>");
+            writer.write('<');
+            writer.write(tag);
+            writer.write("\n>");
             content.writeTo(writer, locale);
-            writer.write("</" + tag.split(" ")[0] + "\n>");
+            writer.write("</");
+            int space = tag.indexOf(' ');
+            writer.write(tag, 0, space >= 0 ? space : tag.length());
+            writer.write("\n>");
         }
 
         public boolean isEmpty() {
@@ -117,7 +127,7 @@ public class HtmlOutput {
         }
 
         public void writeTo(Writer writer, Locale locale) throws IOException {
-            writer.write(esc(text));
+            writeEscaped(writer, text);
         }
 
         public boolean isEmpty() {
@@ -141,7 +151,19 @@ public class HtmlOutput {
         }
     }
 
+    /**
+     * A localized format string applied to arguments.  The template is split once into
+     * literal text and format specifiers, so that Doc arguments formatted with a plain
+     * "%s" are written straight to the output instead of being rendered to strings.
+     */
     public static class Format implements Doc {
+        private static final Pattern SPECIFIER = Pattern.compile(
+            "%(?:(\\d+)\\$)?([-#+ 0,(<]*\\d*(?:\\.\\d+)?[tT]?[a-zA-Z%])");
+        /** Parsed templates, or UNPARSED for templates that must go to String.format. */
+        private static final Map<String, Object[]> parsedTemplates = new ConcurrentHashMap<>();
+        private static final int MAX_PARSED_TEMPLATES = 1000;
+        private static final Object[] UNPARSED = {};
+
         private Intl template;
         private Object[] args;
 
@@ -152,13 +174,77 @@ public class HtmlOutput {
 
         public void writeTo(Writer writer, Locale locale) throws IOException {
             String locTemplate = template.loc(locale);
-            Object[] locArgs = new Object[args.length];
-            int i = 0;
-            for (Object arg : args) {
-                locArgs[i++] = arg instanceof Doc ? render((Doc) arg, locale) : arg;
+            Locale formatLocale = Utils.orDefault(locale, Locale.US);
+            Object[] parts = parseTemplate(locTemplate);
+            if (parts == UNPARSED) {
+                Object[] locArgs = new Object[args.length];
+                int i = 0;
+                for (Object arg : args) {
+                    locArgs[i++] = arg instanceof Doc ? render((Doc) arg, locale) : arg;
+                }
+                writer.write(String.format(formatLocale, locTemplate, locArgs));
+                return;
+            }
+            int next = 0;
+            for (Object part : parts) {
+                if (part instanceof String) {
+                    writer.write((String) part);
+                    continue;
+                }
+                Specifier spec = (Specifier) part;
+                int index = spec.index >= 0 ? spec.index : next++;
+                if (index >= args.length) {
+                    throw new MissingFormatArgumentException(spec.format);
+                }
+                Object arg = args[index];
+                if (arg instanceof Doc && spec.format.equals("%s")) {
+                    ((Doc) arg).writeTo(writer, locale);
+                } else {
+                    writer.write(String.format(formatLocale, spec.format,
+                        arg instanceof Doc ? render((Doc) arg, locale) : arg));
+                }
             }
-            writer.write(String.format(
-                Utils.orDefault(locale, Locale.US), locTemplate, locArgs));
+        }
+
+        /**
+         * Splits a template into literal Strings and Specifiers, or returns UNPARSED if
+         * it uses relative indexes or date conversions, which don't split apart.
+         */
+        private static Object[] parseTemplate(String template) {
+            Object[] parts = parsedTemplates.get(template);
+            if (parts != null) return parts;
+
+            List<Object> list = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            Matcher matcher = SPECIFIER.matcher(template);
+            int pos = 0;
+            while (parts == null && matcher.find()) {
+                literal.append(template, pos, matcher.start());
+                pos = matcher.end();
+                String spec = matcher.group(2);
+                char conversion = spec.charAt(spec.length() - 1);
+                if (spec.indexOf('<') >= 0 || spec.indexOf('t') >= 0 || spec.indexOf('T') >= 0) {
+                    parts = UNPARSED;
+                } else if (conversion == '%') {
+                    literal.append('%');
+                } else if (conversion == 'n') {
+                    literal.append(System.getProperty("line.separator"));
+                } else {
+                    if (literal.length() > 0) list.add(literal.toString());
+                    literal.setLength(0);
+                    String index = matcher.group(1);
+                    list.add(new Specifier(
+                        index != null ? Integer.parseInt(index) - 1 : -1, "%" + spec));
+                }
+            }
+            if (parts == null) {
+                literal.append(template, pos, template.length());
+                if (literal.length() > 0) list.add(literal.toString());
+                parts = list.toArray();
+            }
+            if (parsedTemplates.size() >= MAX_PARSED_TEMPLATES) parsedTemplates.clear();
+            parsedTemplates.put(template, parts);
+            return parts;
         }
 
         public boolean isEmpty() {
@@ -166,6 +252,18 @@ public class HtmlOutput {
         }
     }
 
+    private static class Specifier {
+        /** The zero-based explicit argument index, or -1 to take the next argument. */
+        final int index;
+        /** The specifier without its argument index, e.g. "%s" or "%5.1f". */
+        final String format;
+
+        Specifier(int index, String format) {
+            this.index = index;
+            this.format = format;
+        }
+    }
+
     interface Renderer {
         Doc render(Object obj);
     }
@@ -200,7 +298,7 @@ public class HtmlOutput {
         }
 
         public void writeEscaped(String text) throws IOException {
-            writer.write(esc(text));
+            HtmlOutput.writeEscaped(writer, text);
         }
 
         public void writeEscaped(Intl template, Object... args) throws IOException {
@@ -210,11 +308,21 @@ public class HtmlOutput {
             for (Object arg : args) {
                 locArgs[i++] = arg instanceof Intl ? ((Intl) arg).loc(locale) : arg;
             }
-            writer.write(esc(String.format(Locale.US, locTemplate, locArgs)));
+            HtmlOutput.writeEscaped(writer, String.format(Locale.US, locTemplate, locArgs));
         }
     }
 
-    private static String esc(String x) {
-        return x.replace("&", "&amp;").replace("<", "&lt;");
+    /** Writes text with "&" and "<" escaped, without building an escaped copy. */
+    private static void writeEscaped(Writer writer, String text) throws IOException {
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&' || c == '<') {
+                writer.write(text, start, i - start);
+                writer.write(c == '&' ? "&amp;" : "&lt;");
+                start = i + 1;
+            }
+        }
+        writer.write(text, start, text.length() - start);
     }
 }
\ No newline at end of file
@@ -98,8 +98,12 @@ class PatientPrinter {
     }
 
     public void printHistory(Patient pat) throws IOException {
+        renderHistory(pat).writeTo(writer, locale);
+    }
+
+    public Doc renderHistory(Patient pat) {
         History history = helper.getHistory(pat);
-        table("pages",
+        return table("pages",
             el("thead",
                 el("tr",
                     el("td",
@@ -116,7 +120,7 @@ class PatientPrinter {
                     )
                 )
             )
-        ).writeTo(writer, locale);
+        );
     }
 
     public Doc renderIntro(Patient pat) {
@@ -1,21 +1,35 @@
 package org.projectbuendia.openmrs.web.controller;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.joda.time.DateTimeZone;
 import org.openmrs.Patient;
+import org.openmrs.projectbuendia.SessionWorkers;
 import org.openmrs.projectbuendia.Utils;
+import org.openmrs.util.PrivilegeConstants;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestMapping;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Enumeration;
-import java.util.HashSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -23,6 +37,31 @@ import static org.springframework.web.bind.annotation.RequestMethod.GET;
 import static org.springframework.web.bind.annotation.RequestMethod.POST;
 
 @Controller public class Print {
+    protected static Log log = LogFactory.getLog(Print.class);
+
+    /** The number of patients whose charts are prefetched and rendered together. */
+    private static final int PATIENTS_PER_BATCH = 5;
+    private static final int MAX_PENDING_BATCHES = SessionWorkers.DEFAULT_POOL_SIZE * 2;
+    private static final String[] WORKER_PRIVILEGES = {
+        PrivilegeConstants.VIEW_PATIENTS,
+        PrivilegeConstants.VIEW_ENCOUNTERS,
+        PrivilegeConstants.VIEW_OBS,
+        PrivilegeConstants.VIEW_ORDERS,
+        PrivilegeConstants.VIEW_CONCEPTS,
+        PrivilegeConstants.VIEW_FORMS,
+        PrivilegeConstants.VIEW_LOCATIONS,
+        PrivilegeConstants.VIEW_PROVIDERS
+    };
+    /** The threads rendering batches of charts, shared by all print requests. */
+    private static final ExecutorService workers = SessionWorkers.newPool(
+        "Buendia print worker", SessionWorkers.DEFAULT_POOL_SIZE);
+
+    /**
+     * Rendered charts (admission form and history), reused until the patient's data
+     * changes or ten minutes pass; see ChartCache for what the revision doesn't cover.
+     */
+    private static final ChartCache chartCache = new ChartCache(500, 10 * 60 * 1000);
+
     private static final DateTimeZone DEFAULT_ZONE = DateTimeZone.forOffsetHours(2); // Central Africa Time
     private static final Locale DEFAULT_LOCALE = new Locale("fr");
 
@@ -70,26 +109,118 @@ import static org.springframework.web.bind.annotation.RequestMethod.POST;
 
     @RequestMapping(method = POST, value = "/module/projectbuendia/openmrs/print")
     public void post(HttpServletRequest request, HttpServletResponse response, ModelMap model)
-        throws IOException {
+        throws IOException, ServletException {
         DataHelper helper = getDataHelper(request);
         response.setCharacterEncoding("utf-8");
-        PatientPrinter printer = new PatientPrinter(response.getWriter(), helper.getLocale(), helper);
+        // The workers read with proxy privileges, so check that the user has them.
+        if (!SessionWorkers.hasPrivileges(WORKER_PRIVILEGES)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN,
+                "Privileges required: " + Arrays.toString(WORKER_PRIVILEGES));
+            return;
+        }
+        Set<String> uuids = new LinkedHashSet<>();
+        String[] values = request.getParameterValues("patient");
+        if (values != null) uuids.addAll(Arrays.asList(values));
+        List<String> patientUuids = new ArrayList<>(uuids);
+
+        Writer writer = response.getWriter();
+        PatientPrinter printer = new PatientPrinter(writer, helper.getLocale(), helper);
         printer.printPrologue();
-        Enumeration<String> names = request.getParameterNames();
-        Set<String> printedUuids = new HashSet<>();
-        while (names.hasMoreElements()) {
-            String name = names.nextElement();
-            if (name.startsWith("patient")) {
-                for (String uuid : request.getParameterValues("patient")) {
-                    if (!printedUuids.contains(uuid)) {
-                        Patient patient = helper.getPatient(uuid);
-                        printer.printAdmissionForm(patient);
-                        printer.printHistory(patient);
-                        printedUuids.add(uuid);
-                    }
+
+        // The patients are printed in batches on the worker pool; each batch reads its
+        // patients' data in a few bulk queries and renders their charts to HTML.  The
+        // batches are written out in the requested order as they finish.  Queries about
+        // all patients, such as the pregnancy census, are made once here for all batches.
+        Set<String> pregnantUuids = patientUuids.isEmpty() ?
+            Collections.<String>emptySet() : helper.getPregnantPatientUuids();
+        Deque<Future<String>> pending = new ArrayDeque<>();
+        int start = 0;
+        try {
+            while (start < patientUuids.size() || !pending.isEmpty()) {
+                while (start < patientUuids.size() && pending.size() < MAX_PENDING_BATCHES) {
+                    List<String> batch = patientUuids.subList(
+                        start, Math.min(start + PATIENTS_PER_BATCH, patientUuids.size()));
+                    pending.add(workers.submit(new BatchPrinter(
+                        batch, pregnantUuids, helper.getZone(), helper.getLocale())));
+                    start += PATIENTS_PER_BATCH;
                 }
+                writer.write(pending.remove().get());
+                writer.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Printing interrupted", e);
+        } catch (ExecutionException e) {
+            log.error("Error printing patients", e.getCause());
+            throw new ServletException("Error printing patients", e.getCause());
+        } finally {
+            for (Future<String> future : pending) {
+                future.cancel(false);
             }
         }
         printer.printEpilogue();
     }
+
+    /** Prefetches the data for a batch of patients and renders their charts. */
+    private static class BatchPrinter extends SessionWorkers.Task<String> {
+        final List<String> patientUuids;
+        final Set<String> pregnantUuids;
+        final DateTimeZone zone;
+        final Locale locale;
+
+        BatchPrinter(List<String> patientUuids, Set<String> pregnantUuids,
+                     DateTimeZone zone, Locale locale) {
+            super(WORKER_PRIVILEGES);
+            this.patientUuids = patientUuids;
+            this.pregnantUuids = pregnantUuids;
+            this.zone = zone;
+            this.locale = locale;
+        }
+
+        @Override protected String callInSession() throws IOException {
+            DataHelper helper = new DataHelper(zone, locale);
+            helper.setPregnantPatientUuids(pregnantUuids);
+            List<Patient> patients = new ArrayList<>();
+            for (String uuid : patientUuids) {
+                Patient patient = helper.getPatient(uuid);
+                if (patient != null) patients.add(patient);
+            }
+            // Read the revisions before the data, so that a change made while rendering
+            // leaves the cached chart at an older revision rather than a newer one.
+            Map<Integer, String> revisions = helper.getRevisions(patients);
+            Map<Integer, String> charts = new HashMap<>();
+            List<Patient> misses = new ArrayList<>();
+            for (Patient patient : patients) {
+                String revision = revisions.get(patient.getId());
+                String chart = revision != null ?
+                    chartCache.get(patient.getUuid(), locale, zone, revision) : null;
+                if (chart != null) {
+                    charts.put(patient.getId(), chart);
+                } else {
+                    misses.add(patient);
+                }
+            }
+            // Only the patients whose charts weren't cached need their data read.
+            if (!misses.isEmpty()) helper.prefetch(misses);
+
+            StringWriter output = new StringWriter();
+            for (Patient patient : patients) {
+                String chart = charts.get(patient.getId());
+                if (chart == null) {
+                    StringWriter patientOutput = new StringWriter();
+                    PatientPrinter printer = new PatientPrinter(patientOutput, locale, helper);
+                    printer.printAdmissionForm(patient);
+                    patientOutput.write(
+                        HtmlOutput.render(printer.renderHistory(patient), locale));
+                    chart = patientOutput.toString();
+                    String revision = revisions.get(patient.getId());
+                    if (revision != null) {
+                        chartCache.put(patient.getUuid(), locale, zone, revision, chart);
+                    }
+                }
+                output.write(chart);
+            }
+            return output.toString();
+        }
+    }
 }
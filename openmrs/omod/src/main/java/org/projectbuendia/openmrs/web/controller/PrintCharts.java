@@ -37,6 +37,8 @@ import org.openmrs.projectbuendia.webservices.rest.DbUtils;
 import org.openmrs.projectbuendia.webservices.rest.OrderResource;
 import org.openmrs.util.FormUtil;
 import org.openmrs.util.OpenmrsUtil;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.projectbuendia.openmrs.api.db.OrderChain;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.ModelAttribute;
@@ -346,9 +348,9 @@ public class PrintCharts {
     private Map<Order, String> obtainOrders(OrderService orderService, Patient patient) {
         List<Order> orders = orderService.getAllOrdersByPatient(patient);
         HashMap<Order, String> filteredOrders = new HashMap<>();
-        for (Order order : orders) {
-            Order newest = DbUtils.getLastRevision(order);
-            filteredOrders.put(newest, DbUtils.getRootOrder(order).getUuid());
+        for (OrderChain chain : Context.getService(ProjectBuendiaService.class)
+                .getOrderChains(orders).values()) {
+            filteredOrders.put(chain.lastRevision, chain.rootUuid);
         }
         return filteredOrders;
     }
@@ -16,6 +16,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.projectbuendia.webservices.rest.XformCache;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.ModelAttribute;
@@ -232,6 +233,8 @@ public class ProfileManager {
         List<String> lines = new ArrayList<>();
         if (execute(APPLY_CMD, file, lines)) {
             setCurrentProfile(file.getName());
+            // The profile usually replaces the forms; build them before tablets ask.
+            XformCache.INSTANCE.prebuildAll();
             model.addAttribute("success", true);
             model.addAttribute("message", "Success applying profile: " + file.getName());
             model.addAttribute("output", StringUtils.join(lines, "\n"));
@@ -19,22 +19,43 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.RestConstants;
 import org.openmrs.module.webservices.rest.web.RestUtil;
+import org.openmrs.module.webservices.rest.web.response.IllegalPropertyException;
+import org.openmrs.module.webservices.rest.web.response.InvalidSearchException;
 import org.openmrs.module.webservices.rest.web.response.ResponseException;
 import org.openmrs.module.webservices.rest.web.v1_0.controller.MainResourceController;
 import org.openmrs.projectbuendia.Utils;
+import org.openmrs.projectbuendia.webservices.rest.CombinedSync;
+import org.openmrs.projectbuendia.webservices.rest.DbUtils;
+import org.openmrs.projectbuendia.webservices.rest.RequestMetrics;
+import org.openmrs.projectbuendia.webservices.rest.SyncChangeNotifier;
 import org.openmrs.projectbuendia.webservices.rest.VersionInfo;
+import org.openmrs.projectbuendia.webservices.rest.XformCache;
+import org.openmrs.projectbuendia.webservices.rest.XformInstanceResource;
+import org.openmrs.projectbuendia.webservices.rest.XformSubmissionQueue;
+import org.projectbuendia.models.Catalog.Drug;
+import org.projectbuendia.models.Catalog.Format;
+import org.projectbuendia.models.Intl;
+import org.projectbuendia.models.MsfCatalog;
+import org.projectbuendia.openmrs.api.Bookmark;
 import org.projectbuendia.openmrs.api.ProjectBuendiaService;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
@@ -50,6 +71,14 @@ import javax.servlet.http.HttpSession;
 public class RestController extends MainResourceController {
     public static final String PATH = "buendia";
 
+    private static final String[] WATCHABLE_COLLECTIONS = {
+        SyncChangeNotifier.OBSERVATIONS, SyncChangeNotifier.PATIENTS, SyncChangeNotifier.ORDERS
+    };
+    private static final int DEFAULT_CHANGES_TIMEOUT = 30;  // seconds
+    private static final int MAX_CHANGES_TIMEOUT = 120;  // seconds
+    private static final int DEFAULT_DRUG_SEARCH_LIMIT = 20;
+    private static final int MAX_DRUG_SEARCH_LIMIT = 100;
+
     private final VersionInfo versionInfo;
 
     public RestController() {
@@ -96,6 +125,225 @@ public class RestController extends MainResourceController {
         finally { finish(request, response); }
     }
 
+    /** Syncs patients, orders, and observations in one request; see {@link CombinedSync}. */
+    @RequestMapping(value = "/sync", method = RequestMethod.GET)
+    @ResponseBody
+    public SimpleObject sync(HttpServletRequest request, HttpServletResponse response)
+        throws Exception {
+        start(request, response);
+        try { return new CombinedSync().sync(RestUtil.getRequestContext(request, response)); }
+        finally { finish(request, response); }
+    }
+
+    /**
+     * Waits for new observations, patients, or orders, so that clients can sync as soon as
+     * there is something to fetch instead of polling.  Each of the "observations",
+     * "patients", and "orders" parameters that is present gives a bookmark to watch (an
+     * empty value means the client has nothing yet).  The reply comes as soon as any of the
+     * watched collections has records after its bookmark, or after "timeout" seconds
+     * (default 30), and has the form:
+     *
+     *     {
+     *         "observations": [bookmark of the newest observation],
+     *         "patients": [bookmark of the newest patient],
+     *         "orders": [bookmark of the newest order],
+     *         "changed": ["observations", ...]
+     *     }
+     *
+     * containing only the collections that were asked about.  After syncing the changed
+     * collections, clients should pass these bookmarks back in their next request, rather
+     * than the sync bookmarks, which lag a little behind the newest records.
+     */
+    @RequestMapping(value = "/changes", method = RequestMethod.GET)
+    @ResponseBody
+    public SimpleObject changes(HttpServletRequest request, HttpServletResponse response)
+        throws Exception {
+        start(request, response);
+        try {
+            Map<String, Bookmark> since = new LinkedHashMap<>();
+            for (String name : WATCHABLE_COLLECTIONS) {
+                String value = request.getParameter(name);
+                if (value != null) since.put(name, parseBookmark(name, value));
+            }
+            if (since.isEmpty()) {
+                throw new InvalidSearchException(
+                    "At least one of " + Arrays.toString(WATCHABLE_COLLECTIONS) + " is required");
+            }
+            int timeout = Utils.toNonnull(
+                Utils.toIntOrNull(request.getParameter("timeout")), DEFAULT_CHANGES_TIMEOUT);
+            timeout = Math.max(0, Math.min(timeout, MAX_CHANGES_TIMEOUT));
+
+            // Reading the marks here checks that the caller may view each collection,
+            // and lets us reply at once if something has already changed.
+            Map<String, Bookmark> marks = readHighWaterMarks(since.keySet());
+            List<String> changed = new ArrayList<>();
+            for (String name : since.keySet()) {
+                Bookmark mark = marks.get(name);
+                if (mark != null && mark.isAfter(since.get(name))) changed.add(name);
+            }
+            if (changed.isEmpty() && timeout > 0) {
+                // Servlet 2.5 has no asynchronous requests, so this thread has to wait,
+                // but it need not hold a database connection while it does.
+                Context.getService(ProjectBuendiaService.class).releaseSessionConnection();
+                SyncChangeNotifier notifier = SyncChangeNotifier.INSTANCE;
+                changed.addAll(notifier.await(since, timeout * Utils.SECOND));
+                Map<String, Bookmark> latest = notifier.getMarks();
+                for (String name : since.keySet()) {
+                    Bookmark mark = latest.get(name);
+                    if (mark != null && mark.isAfter(marks.get(name))) marks.put(name, mark);
+                }
+            }
+
+            SimpleObject reply = new SimpleObject();
+            for (String name : since.keySet()) {
+                Bookmark mark = marks.get(name);
+                reply.add(name, mark == null ? null : mark.serialize());
+            }
+            return reply.add("changed", changed);
+        } finally {
+            finish(request, response);
+        }
+    }
+
+    /**
+     * Reports the latency, size, and error counts of REST requests, and the depth and
+     * processing times of the XForm submission queue, in the Prometheus text format;
+     * see {@link RequestMetrics} and {@link XformSubmissionQueue}.
+     */
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET)
+    public void metrics(HttpServletRequest request, HttpServletResponse response)
+        throws Exception {
+        start(request, response);
+        try {
+            if (!Context.isAuthenticated()) {
+                throw new APIAuthenticationException("Authentication is required");
+            }
+            response.setContentType("text/plain; version=0.0.4");
+            response.setCharacterEncoding("UTF-8");
+            RequestMetrics.INSTANCE.write(response.getWriter());
+            XformSubmissionQueue.INSTANCE.write(response.getWriter());
+        } finally {
+            finish(request, response);
+        }
+    }
+
+    /**
+     * Searches the drug catalog, so that clients can offer type-ahead entry of drugs
+     * without fetching the whole formulary; see {@link
+     * org.projectbuendia.models.CatalogIndex#search}.  Takes the query in "q", and
+     * optionally a "limit" (default 20) and a "locale" for the names, and replies with:
+     *
+     *     {"results": [{
+     *         "code": "DORAACSA",
+     *         "name": "ACETYLSALICYLIC acid (aspirin)",
+     *         "aliases": [...],
+     *         "captions": [...],
+     *         "formats": [{"code": "DORAACSA3TD", "description": "300 mg, disp. tab.",
+     *                      "unit": "TABLET"}, ...]
+     *     }, ...]}
+     */
+    @RequestMapping(value = "/drugs", method = RequestMethod.GET)
+    @ResponseBody
+    public SimpleObject searchDrugs(HttpServletRequest request, HttpServletResponse response)
+        throws Exception {
+        start(request, response);
+        try {
+            if (!Context.isAuthenticated()) {
+                throw new APIAuthenticationException("Authentication is required");
+            }
+            String query = request.getParameter("q");
+            if (query == null) throw new InvalidSearchException("The \"q\" parameter is required");
+            int limit = Utils.toNonnull(
+                Utils.toIntOrNull(request.getParameter("limit")), DEFAULT_DRUG_SEARCH_LIMIT);
+            limit = Math.max(0, Math.min(limit, MAX_DRUG_SEARCH_LIMIT));
+            Locale locale = DbUtils.getLocaleForTag(request.getParameter("locale"));
+
+            List<SimpleObject> results = new ArrayList<>();
+            for (Drug drug : MsfCatalog.INDEX.search(query, limit)) {
+                List<SimpleObject> formats = new ArrayList<>();
+                for (Format format : drug.formats) {
+                    formats.add(new SimpleObject()
+                        .add("code", format.code)
+                        .add("description", format.description.loc(locale))
+                        .add("unit", format.dosageUnit != null ? format.dosageUnit.code : null));
+                }
+                results.add(new SimpleObject()
+                    .add("code", drug.code)
+                    .add("name", drug.name.loc(locale))
+                    .add("aliases", localize(drug.aliases, locale))
+                    .add("captions", localize(drug.captions, locale))
+                    .add("formats", formats));
+            }
+            return new SimpleObject().add("results", results);
+        } finally {
+            finish(request, response);
+        }
+    }
+
+    /**
+     * Saves a batch of XForm instances, so that a tablet that was offline can send the
+     * forms it queued in a few requests instead of one request per form.  Takes
+     *
+     *     {"instances": [{"xml": ..., "patient_uuid": ..., "submission_id": ...}, ...]}
+     *
+     * where each instance has the fields of a POST to xforminstances, and replies with a
+     * result for each instance in the same order; see {@link
+     * XformInstanceResource#createBatch}.  Instances that fail don't affect the others,
+     * so the client should resend just the failed ones.
+     */
+    @RequestMapping(value = "/xforminstances/batch", method = RequestMethod.POST)
+    @ResponseBody
+    public SimpleObject createXformInstances(@RequestBody SimpleObject post,
+        HttpServletRequest request, HttpServletResponse response) throws Exception {
+        start(request, response);
+        try {
+            if (!Context.isAuthenticated()) {
+                throw new APIAuthenticationException("Authentication is required");
+            }
+            Object instances = post.get("instances");
+            if (!(instances instanceof List)) {
+                throw new IllegalPropertyException("\"instances\" should be a list");
+            }
+            return new SimpleObject().add("results",
+                XformInstanceResource.createBatch((List<?>) instances, request));
+        } finally {
+            finish(request, response);
+        }
+    }
+
+    private static List<String> localize(Intl[] intls, Locale locale) {
+        List<String> results = new ArrayList<>();
+        for (Intl intl : intls) {
+            results.add(intl.loc(locale));
+        }
+        return results;
+    }
+
+    private static Bookmark parseBookmark(String name, String value) {
+        if (value.isEmpty()) return null;
+        try {
+            return Bookmark.deserialize(value);
+        } catch (ParseException e) {
+            throw new InvalidSearchException(
+                "Invalid bookmark for " + name + " \"" + value + "\": " + e.getMessage());
+        }
+    }
+
+    private static Map<String, Bookmark> readHighWaterMarks(Collection<String> names) {
+        ProjectBuendiaService service = Context.getService(ProjectBuendiaService.class);
+        Map<String, Bookmark> marks = new HashMap<>();
+        if (names.contains(SyncChangeNotifier.OBSERVATIONS)) {
+            marks.put(SyncChangeNotifier.OBSERVATIONS, service.getObservationSyncHighWaterMark());
+        }
+        if (names.contains(SyncChangeNotifier.PATIENTS)) {
+            marks.put(SyncChangeNotifier.PATIENTS, service.getPatientSyncHighWaterMark());
+        }
+        if (names.contains(SyncChangeNotifier.ORDERS)) {
+            marks.put(SyncChangeNotifier.ORDERS, service.getOrderSyncHighWaterMark());
+        }
+        return marks;
+    }
+
     private void start(HttpServletRequest request, HttpServletResponse response) {
         // These parameters should not be treated as search criteria.
         RestConstants.SPECIAL_REQUEST_PARAMETERS.add("clear-cache");
@@ -104,6 +352,7 @@ public class RestController extends MainResourceController {
         versionInfo.addHeaders(response);
         if (request.getParameter("clear-cache") != null) {
             Context.getService(ProjectBuendiaService.class).clearCache();
+            XformCache.INSTANCE.clear();
         }
     }
 
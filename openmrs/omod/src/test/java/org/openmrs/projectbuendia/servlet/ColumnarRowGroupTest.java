@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.servlet;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+
+public class ColumnarRowGroupTest {
+    private static String write(ColumnarRowGroup group) throws Exception {
+        StringWriter output = new StringWriter();
+        JsonGenerator json = new JsonFactory().createJsonGenerator(output);
+        group.write(json);
+        json.close();
+        return output.toString();
+    }
+
+    @Test public void testPlain() throws Exception {
+        ColumnarRowGroup group = new ColumnarRowGroup(
+            new ColumnarRowGroup.Type[] {ColumnarRowGroup.Type.DATETIME});
+        group.addRow(new Object[] {1L});
+        group.addRow(new Object[] {2L});
+        group.addRow(new Object[] {null});
+        assertEquals(
+            "{\"rows\":3,\"columns\":[{\"encoding\":\"plain\",\"values\":[1,2,null]}]}",
+            write(group));
+    }
+
+    @Test public void testSparse() throws Exception {
+        ColumnarRowGroup group = new ColumnarRowGroup(
+            new ColumnarRowGroup.Type[] {ColumnarRowGroup.Type.DOUBLE});
+        group.addRow(new Object[] {null});
+        group.addRow(new Object[] {37.5});
+        group.addRow(new Object[] {null});
+        group.addRow(new Object[] {null});
+        group.addRow(new Object[] {null});
+        assertEquals(
+            "{\"rows\":5,\"columns\":[{\"encoding\":\"sparse\","
+                + "\"positions\":[1],\"values\":[37.5]}]}",
+            write(group));
+    }
+
+    @Test public void testRunLength() throws Exception {
+        ColumnarRowGroup group = new ColumnarRowGroup(
+            new ColumnarRowGroup.Type[] {ColumnarRowGroup.Type.STRING});
+        group.addRow(new Object[] {"a"});
+        group.addRow(new Object[] {"a"});
+        group.addRow(new Object[] {"a"});
+        group.addRow(new Object[] {"b"});
+        group.addRow(new Object[] {"b"});
+        assertEquals(
+            "{\"rows\":5,\"columns\":[{\"encoding\":\"rle\","
+                + "\"values\":[\"a\",\"b\"],\"lengths\":[3,2]}]}",
+            write(group));
+    }
+
+    @Test public void testCodedUsesDictionary() throws Exception {
+        ColumnarRowGroup group = new ColumnarRowGroup(new ColumnarRowGroup.Type[] {
+            ColumnarRowGroup.Type.CODED, ColumnarRowGroup.Type.BOOLEAN});
+        group.addRow(new Object[] {"yes-uuid", true});
+        group.addRow(new Object[] {"no-uuid", false});
+        group.addRow(new Object[] {"yes-uuid", null});
+        assertEquals(
+            "{\"rows\":3,\"columns\":["
+                + "{\"dictionary\":[\"yes-uuid\",\"no-uuid\"],"
+                + "\"encoding\":\"plain\",\"values\":[0,1,0]},"
+                + "{\"encoding\":\"plain\",\"values\":[true,false,null]}]}",
+            write(group));
+    }
+}
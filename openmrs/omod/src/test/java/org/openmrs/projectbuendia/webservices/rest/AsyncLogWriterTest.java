@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncLogWriterTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test public void testWritesLinesToSeparateFiles() throws Exception {
+        AsyncLogWriter writer = new AsyncLogWriter(100, 1000000, 2, 10, null);
+        String a = new File(folder.getRoot(), "a").getPath();
+        String b = new File(folder.getRoot(), "b").getPath();
+        writer.append(a, new Date(), "first");
+        writer.append(b, new Date(), "second");
+        writer.append(a, new Date(), "third");
+        writer.close();
+
+        String contentsA = read(new File(a));
+        assertTrue(contentsA.indexOf("first") < contentsA.indexOf("third"));
+        assertFalse(contentsA.contains("second"));
+        assertTrue(read(new File(b)).contains("second"));
+        assertEquals(0, writer.getDroppedCount());
+    }
+
+    @Test public void testRotatesLargeFiles() throws Exception {
+        // Each line is 37 bytes, so every file holds two lines.
+        AsyncLogWriter writer = new AsyncLogWriter(100, 100, 1, 1, null);
+        String log = new File(folder.getRoot(), "log").getPath();
+        for (int i = 1; i <= 6; i++) {
+            writer.append(log, new Date(), "line " + i);
+        }
+        writer.close();
+
+        String current = read(new File(log));
+        String backup = read(new File(log + ".1"));
+        assertTrue(current.contains("line 5") && current.contains("line 6"));
+        assertTrue(backup.contains("line 3") && backup.contains("line 4"));
+        assertFalse(new File(log + ".2").exists());
+    }
+
+    @Test public void testKeepsWritingAfterAFailedLine() throws Exception {
+        AsyncLogWriter writer = new AsyncLogWriter(100, 1000000, 2, 10, null);
+        String log = new File(folder.getRoot(), "log").getPath();
+        writer.append(null, new Date(), "unwritable");  // new File(null) throws
+        writer.append(log, new Date(), "written");
+        writer.close();
+        writer.close();  // a second close does nothing
+
+        assertTrue(read(new File(log)).contains("written"));
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    }
+}
@@ -21,8 +21,10 @@ import java.text.ParseException;
 import java.util.Date;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class BookmarkTest {
@@ -72,6 +74,18 @@ public class BookmarkTest {
         }
     }
 
+    @Test public void testIsAfterComparesTimeThenUuid() throws Exception {
+        Bookmark early = new Bookmark(bufferedRequestTime, "zzz");
+        Bookmark late = new Bookmark(requestTime, null);
+        Bookmark lateWithUuid = new Bookmark(requestTime, uuid);
+        assertTrue(late.isAfter(early));
+        assertFalse(early.isAfter(late));
+        assertTrue(lateWithUuid.isAfter(late));
+        assertFalse(late.isAfter(lateWithUuid));
+        assertFalse(late.isAfter(late));
+        assertTrue(early.isAfter(null));
+    }
+
     @Test public void testSerializeWithUuid() throws Exception {
         String expected = "2015-11-25T11:25:28.000Z/i-am-a-uuid";
         String result = new Bookmark(new Date(1448450728000L), uuid).serialize();
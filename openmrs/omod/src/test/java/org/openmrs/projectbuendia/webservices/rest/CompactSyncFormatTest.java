@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Test;
+import org.openmrs.module.webservices.rest.SimpleObject;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompactSyncFormatTest {
+    @SuppressWarnings("unchecked")
+    @Test public void testEncodesItemsAsTableWithSharedStrings() throws Exception {
+        CompactSyncFormat format = new CompactSyncFormat();
+        SimpleObject table = format.encode(Arrays.asList(
+            new SimpleObject()
+                .add("uuid", "obs-1")
+                .add("patient_uuid", "patient-a")
+                .add("type", "coded")
+                .add("value", "concept-x"),
+            new SimpleObject()
+                .add("uuid", "obs-2")
+                .add("patient_uuid", "patient-a")
+                .add("voided", true)));
+
+        assertEquals(Arrays.asList("uuid", "patient_uuid", "type", "value", "voided"),
+            table.get("columns"));
+        List<Object[]> rows = (List<Object[]>) table.get("rows");
+        assertArrayEquals(new Object[] {"obs-1", 0, 1, "concept-x", null}, rows.get(0));
+        assertArrayEquals(new Object[] {"obs-2", 0, null, null, true}, rows.get(1));
+        assertEquals(Arrays.asList("patient-a", "coded"), format.getStrings());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void testStringTableIsSharedAcrossTables() throws Exception {
+        CompactSyncFormat format = new CompactSyncFormat();
+        format.encode(Arrays.asList(new SimpleObject().add("patient_uuid", "patient-a")));
+        SimpleObject table = format.encode(Arrays.asList(
+            new SimpleObject().add("patient_uuid", "patient-b"),
+            new SimpleObject().add("patient_uuid", "patient-a")));
+
+        List<Object[]> rows = (List<Object[]>) table.get("rows");
+        assertArrayEquals(new Object[] {1}, rows.get(0));
+        assertArrayEquals(new Object[] {0}, rows.get(1));
+        assertEquals(Arrays.asList("patient-a", "patient-b"), format.getStrings());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test public void testEncodesCodedValuesAsStrings() throws Exception {
+        CompactSyncFormat format = new CompactSyncFormat();
+        SimpleObject table = format.encode(Arrays.asList(
+            new SimpleObject().add("concept_uuid", "concept-x").add("value_coded", "concept-y"),
+            new SimpleObject().add("concept_uuid", "concept-x").add("value_text", "text")));
+
+        List<Object[]> rows = (List<Object[]>) table.get("rows");
+        assertArrayEquals(new Object[] {0, 1, null}, rows.get(0));
+        assertArrayEquals(new Object[] {0, null, "text"}, rows.get(1));
+        assertEquals(Arrays.asList("concept-x", "concept-y"), format.getStrings());
+    }
+
+    @Test public void testAcceptsGzipOnlyWithNonzeroQuality() throws Exception {
+        assertTrue(CompactSyncFormat.acceptsGzip("gzip"));
+        assertTrue(CompactSyncFormat.acceptsGzip("deflate, gzip;q=0.5"));
+        assertTrue(CompactSyncFormat.acceptsGzip("x-gzip"));
+        assertTrue(CompactSyncFormat.acceptsGzip("*"));
+        assertFalse(CompactSyncFormat.acceptsGzip((String) null));
+        assertFalse(CompactSyncFormat.acceptsGzip("identity"));
+        assertFalse(CompactSyncFormat.acceptsGzip("gzip;q=0"));
+        assertFalse(CompactSyncFormat.acceptsGzip("gzip; q=0.0, deflate"));
+        assertFalse(CompactSyncFormat.acceptsGzip("*, gzip;q=0"));
+        assertFalse(CompactSyncFormat.acceptsGzip("*;q=0"));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Test;
+import org.projectbuendia.openmrs.api.Bookmark;
+
+import java.text.ParseException;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class CompositeBookmarkTest {
+    private final Bookmark patients = new Bookmark(new Date(1448450728000L), "i-am-a-uuid");
+    private final Bookmark orders = new Bookmark(new Date(1448450729000L), null);
+
+    @Test public void testSerialize() throws Exception {
+        String result = new CompositeBookmark()
+            .put("patients", patients)
+            .put("orders", orders)
+            .put("observations", null)
+            .serialize();
+        assertEquals(
+            "patients=2015-11-25T11:25:28.000Z/i-am-a-uuid,orders=2015-11-25T11:25:29.000Z",
+            result);
+    }
+
+    @Test public void testRoundTrip() throws Exception {
+        CompositeBookmark expected = new CompositeBookmark()
+            .put("patients", patients)
+            .put("orders", orders);
+        CompositeBookmark result = CompositeBookmark.deserialize(expected.serialize());
+        assertEquals(expected, result);
+        assertEquals(patients, result.get("patients"));
+        assertNull(result.get("observations"));
+    }
+
+    @Test public void testDeserializeEmpty() throws Exception {
+        assertEquals(new CompositeBookmark(), CompositeBookmark.deserialize(""));
+    }
+
+    @Test public void testDeserializeMissingName() throws Exception {
+        try {
+            CompositeBookmark.deserialize("2015-11-25T11:25:28.000Z");
+            fail("Expected an exception");
+        } catch (ParseException e) {
+            // expected
+        }
+    }
+}
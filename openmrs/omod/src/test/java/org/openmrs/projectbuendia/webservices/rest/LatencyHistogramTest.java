@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test public void testSmallValuesAreExact() throws Exception {
+        for (long value = 0; value < 32; value++) {
+            assertEquals(value, LatencyHistogram.highestValueIn(LatencyHistogram.indexOf(value)));
+        }
+    }
+
+    @Test public void testLargeValuesAreWithinOneSixteenth() throws Exception {
+        for (long value = 32; value < 1000000; value = value * 3 / 2 + 1) {
+            long bucketLimit = LatencyHistogram.highestValueIn(LatencyHistogram.indexOf(value));
+            assertTrue(bucketLimit >= value);
+            assertTrue(bucketLimit - value <= value / 16);
+        }
+    }
+
+    @Test public void testQuantiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getQuantile(0.5));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(50, histogram.getQuantile(0.5), 50 / 16);
+        assertEquals(99, histogram.getQuantile(0.99), 99 / 16);
+        assertEquals(1, histogram.getQuantile(0));
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestMetricsTest {
+    @Test public void testWritesPrometheusText() throws Exception {
+        RequestMetrics metrics = new RequestMetrics();
+        metrics.record("ObservationResource", "sync", 12, 500, 20000, false);
+        metrics.record("ObservationResource", "sync", 30, 0, 0, true);
+        StringWriter out = new StringWriter();
+        metrics.write(out);
+        String text = out.toString();
+
+        String labels = "{resource=\"ObservationResource\",operation=\"sync\"";
+        assertTrue(text.contains("# TYPE buendia_request_latency_milliseconds summary\n"));
+        assertTrue(text.contains(
+            "buendia_request_latency_milliseconds" + labels + ",quantile=\"0.5\"} 12\n"));
+        assertTrue(text.contains("buendia_request_latency_milliseconds_count" + labels + "} 2\n"));
+        assertTrue(text.contains("buendia_request_latency_milliseconds_sum" + labels + "} 42\n"));
+        assertTrue(text.contains("buendia_request_rows_total" + labels + "} 500\n"));
+        assertTrue(text.contains("buendia_request_bytes_total" + labels + "} 20000\n"));
+        assertTrue(text.contains("buendia_request_errors_total" + labels + "} 1\n"));
+    }
+
+    @Test public void testEscapesLabelValues() throws Exception {
+        assertEquals("a\\\"b\\\\c\\nd", RequestMetrics.escape("a\"b\\c\nd"));
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Test;
+import org.projectbuendia.openmrs.api.Bookmark;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyncChangeNotifierTest {
+    private static final Bookmark OLD = new Bookmark(new Date(1000), "a");
+    private static final Bookmark NEW = new Bookmark(new Date(2000), "b");
+
+    /** A mark source whose observation mark can be moved by the test. */
+    private static class FakeMarkSource implements SyncChangeNotifier.MarkSource {
+        volatile Bookmark obsMark = OLD;
+
+        @Override public Map<String, Bookmark> read() {
+            Map<String, Bookmark> marks = new HashMap<>();
+            marks.put(SyncChangeNotifier.OBSERVATIONS, obsMark);
+            return marks;
+        }
+    }
+
+    private final FakeMarkSource source = new FakeMarkSource();
+    // A long poll interval, so that only pokes make the notifier read promptly.
+    private final SyncChangeNotifier notifier = new SyncChangeNotifier(source, 60000, 1000);
+
+    @Test public void testTimesOutWhenNothingChanges() throws Exception {
+        Set<String> changed = notifier.await(
+            Collections.singletonMap(SyncChangeNotifier.OBSERVATIONS, OLD), 200);
+        assertTrue(changed.isEmpty());
+    }
+
+    @Test public void testReadsMarksAsSoonAsAWaiterArrives() throws Exception {
+        source.obsMark = NEW;
+        long start = System.currentTimeMillis();
+        Set<String> changed = notifier.await(
+            Collections.singletonMap(SyncChangeNotifier.OBSERVATIONS, OLD), 30000);
+        assertEquals(Collections.singleton(SyncChangeNotifier.OBSERVATIONS), changed);
+        assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+
+    @Test public void testWakesWhenPokedAfterAChange() throws Exception {
+        new Thread() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) { }
+                source.obsMark = NEW;
+                notifier.poke();
+            }
+        }.start();
+        long start = System.currentTimeMillis();
+        Set<String> changed = notifier.await(
+            Collections.singletonMap(SyncChangeNotifier.OBSERVATIONS, OLD), 30000);
+        assertEquals(Collections.singleton(SyncChangeNotifier.OBSERVATIONS), changed);
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(NEW, notifier.getMarks().get(SyncChangeNotifier.OBSERVATIONS));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Test;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.projectbuendia.openmrs.api.Bookmark;
+import org.projectbuendia.openmrs.api.db.SyncPage;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SyncPageCacheTest {
+    private static final Bookmark BOOKMARK = new Bookmark(new Date(1000), "a");
+    private static final Bookmark MARK_1 = new Bookmark(new Date(2000), "b");
+    private static final Bookmark MARK_2 = new Bookmark(new Date(3000), "c");
+
+    private final SyncPageCache cache = new SyncPageCache(10, 60000);
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private final Callable<SyncPage<SimpleObject>> loader = new Callable<SyncPage<SimpleObject>>() {
+        @Override public SyncPage<SimpleObject> call() {
+            loads.incrementAndGet();
+            return new SyncPage<>(new ArrayList<SimpleObject>(), null);
+        }
+    };
+
+    @Test public void testReusesPageWhileHighWaterMarkIsUnchanged() throws Exception {
+        SyncPage<SimpleObject> page = cache.get("obs", BOOKMARK, 100, MARK_1, loader);
+        assertSame(page, cache.get("obs", BOOKMARK, 100, MARK_1, loader));
+        assertEquals(1, loads.get());
+    }
+
+    @Test public void testReportsLoadTimeOnlyWhenLoaderRuns() throws Exception {
+        SyncPageCache.Result first = cache.lookup("obs", BOOKMARK, 100, MARK_1, loader);
+        assertTrue(first.wasLoaded());
+        SyncPageCache.Result second = cache.lookup("obs", BOOKMARK, 100, MARK_1, loader);
+        assertFalse(second.wasLoaded());
+        assertSame(first.page, second.page);
+    }
+
+    @Test public void testCacheHitsLeavePageSizeUnchanged() throws Exception {
+        // Records timings as BaseResource.search() does, for a page that took as long
+        // as the sizer's target to produce.  Hits must not count as very fast pages.
+        SyncPageSizer sizer = new SyncPageSizer(10, 1000, 100000, 10);
+        int size = 100;
+        for (int i = 0; i < 5; i++) {
+            SyncPageCache.Result result = cache.lookup("obs", BOOKMARK, size, MARK_1, loader);
+            if (result.wasLoaded()) sizer.record("obs/next", size, size, 1000, 0);
+            size = sizer.choose("obs/next", 100, 1000);
+        }
+        assertEquals(100, size);
+        assertEquals(1, loads.get());
+    }
+
+    @Test public void testReloadsWhenHighWaterMarkMoves() throws Exception {
+        cache.get("obs", BOOKMARK, 100, MARK_1, loader);
+        cache.get("obs", BOOKMARK, 100, MARK_2, loader);
+        assertEquals(2, loads.get());
+    }
+
+    @Test public void testKeysIncludeResourceAndPageSize() throws Exception {
+        cache.get("obs", BOOKMARK, 100, MARK_1, loader);
+        cache.get("obs", BOOKMARK, 50, MARK_1, loader);
+        cache.get("orders", BOOKMARK, 100, MARK_1, loader);
+        assertEquals(3, loads.get());
+    }
+
+    @Test public void testDoesNotCacheFailures() throws Exception {
+        Callable<SyncPage<SimpleObject>> failing = new Callable<SyncPage<SimpleObject>>() {
+            @Override public SyncPage<SimpleObject> call() {
+                throw new IllegalStateException("database is down");
+            }
+        };
+        try {
+            cache.get("obs", BOOKMARK, 100, MARK_1, failing);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) { }
+        cache.get("obs", BOOKMARK, 100, MARK_1, loader);
+        assertEquals(1, loads.get());
+    }
+
+    @Test public void testConcurrentRequestsShareOneLoad() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<SyncPage<SimpleObject>> slowLoader = new Callable<SyncPage<SimpleObject>>() {
+            @Override public SyncPage<SimpleObject> call() throws Exception {
+                calls.incrementAndGet();
+                loading.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return loader.call();
+            }
+        };
+        final List<SyncPage<SimpleObject>> pages = new Vector<>();
+        Runnable fetch = new Runnable() {
+            @Override public void run() {
+                pages.add(cache.get("obs", BOOKMARK, 100, MARK_1, slowLoader));
+            }
+        };
+        Thread first = new Thread(fetch);
+        first.start();
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        Thread second = new Thread(fetch);
+        second.start();
+        // Wait until the second request is blocked, either waiting for the first
+        // request's load or (if requests were not coalesced) inside its own load.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (second.getState() != Thread.State.WAITING
+            && second.getState() != Thread.State.TIMED_WAITING) {
+            if (System.currentTimeMillis() > deadline) fail("Second request never blocked");
+            Thread.sleep(10);
+        }
+        release.countDown();
+        first.join();
+        second.join();
+        assertEquals(1, calls.get());
+        assertEquals(2, pages.size());
+        assertSame(pages.get(0), pages.get(1));
+    }
+
+    @Test public void testCoarsensClampedBookmarksOnly() throws Exception {
+        assertEquals(new Bookmark(new Date(20000), null),
+            SyncPageCache.coarsen(new Bookmark(new Date(23456), null)));
+        Bookmark positioned = new Bookmark(new Date(23456), "a");
+        assertSame(positioned, SyncPageCache.coarsen(positioned));
+    }
+}
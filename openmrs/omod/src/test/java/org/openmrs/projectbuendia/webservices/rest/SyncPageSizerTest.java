@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SyncPageSizerTest {
+    private static final int DEFAULT_SIZE = 100;
+    private static final int MAX_SIZE = 1000;
+
+    private final SyncPageSizer sizer = new SyncPageSizer(10, 1000, 100000, 2);
+
+    @Test public void testUnknownLineageUsesDefault() throws Exception {
+        assertEquals(DEFAULT_SIZE, sizer.choose("x", DEFAULT_SIZE, MAX_SIZE));
+    }
+
+    @Test public void testFastPageGrowsByAtMostMaxGrowth() throws Exception {
+        sizer.record("x", 100, 100, 10, 0);
+        assertEquals(200, sizer.choose("x", DEFAULT_SIZE, MAX_SIZE));
+    }
+
+    @Test public void testSlowPageShrinksTowardTarget() throws Exception {
+        sizer.record("x", 100, 100, 2000, 0);
+        assertEquals(50, sizer.choose("x", DEFAULT_SIZE, MAX_SIZE));
+    }
+
+    @Test public void testLargePageShrinksTowardTargetBytes() throws Exception {
+        sizer.record("x", 100, 100, 1000, 200000);
+        assertEquals(50, sizer.choose("x", DEFAULT_SIZE, MAX_SIZE));
+    }
+
+    @Test public void testPartialPageKeepsSize() throws Exception {
+        sizer.record("x", 100, 3, 10, 0);
+        assertEquals(100, sizer.choose("x", DEFAULT_SIZE, MAX_SIZE));
+    }
+
+    @Test public void testSizeIsClampedToLimits() throws Exception {
+        sizer.record("fast", 800, 800, 1, 0);
+        assertEquals(MAX_SIZE, sizer.choose("fast", DEFAULT_SIZE, MAX_SIZE));
+        sizer.record("slow", 12, 12, 100000, 0);
+        assertEquals(10, sizer.choose("slow", DEFAULT_SIZE, MAX_SIZE));
+    }
+
+    @Test public void testOldestLineageIsForgotten() throws Exception {
+        sizer.record("a", 100, 100, 10, 0);
+        sizer.record("b", 100, 100, 10, 0);
+        sizer.record("c", 100, 100, 10, 0);
+        assertEquals(DEFAULT_SIZE, sizer.choose("a", DEFAULT_SIZE, MAX_SIZE));
+        assertEquals(200, sizer.choose("c", DEFAULT_SIZE, MAX_SIZE));
+    }
+}
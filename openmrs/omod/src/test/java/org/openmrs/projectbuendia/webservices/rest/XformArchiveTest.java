@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class XformArchiveTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test public void testReadsBackByEncounterUuidAndSubmissionId() throws Exception {
+        XformArchive archive = new XformArchive(folder.getRoot(), 100, 1000000);
+        archive.append("s1", "e1", "<form>one</form>");
+        archive.append("s2", null, "<form>deux é</form>");
+        archive.append("s3", "e3", "<form>three</form>");
+        archive.close();
+
+        assertEquals("<form>one</form>", archive.read("e1"));
+        assertEquals("<form>one</form>", archive.read("s1"));
+        assertEquals("<form>deux é</form>", archive.read("s2"));
+        assertEquals("<form>three</form>", archive.read("e3"));
+        assertNull(archive.read("e2"));
+    }
+
+    @Test public void testSegmentsAreReadableGzip() throws Exception {
+        XformArchive archive = new XformArchive(folder.getRoot(), 100, 1000000);
+        archive.append("s1", "e1", "<form>one</form>");
+        archive.close();
+
+        File[] segments = folder.getRoot().listFiles();
+        File segment = segments[0].getName().equals(XformArchive.INDEX_FILENAME) ?
+            segments[1] : segments[0];
+        String contents = gunzip(segment);
+        assertTrue(contents.contains("submission: s1 encounter: e1"));
+        assertTrue(contents.contains("<form>one</form>\n"));
+    }
+
+    @Test public void testStartsNewSegmentsWhenFull() throws Exception {
+        XformArchive archive = new XformArchive(folder.getRoot(), 100, 10);
+        for (int i = 1; i <= 3; i++) {
+            archive.append("s" + i, "e" + i, "<form>" + i + "</form>");
+            archive.flush();  // so that each one is written in a batch of its own
+        }
+        archive.close();
+
+        assertEquals(4, folder.getRoot().listFiles().length);  // 3 segments and the index
+        for (int i = 1; i <= 3; i++) {
+            assertEquals("<form>" + i + "</form>", archive.read("e" + i));
+        }
+    }
+
+    private static String gunzip(File file) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream input = new GZIPInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = input.read(buffer)) > 0) {
+                output.write(buffer, 0, count);
+            }
+        }
+        return output.toString("UTF-8");
+    }
+}
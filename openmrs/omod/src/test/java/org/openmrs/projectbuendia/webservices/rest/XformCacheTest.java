@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Test;
+import org.openmrs.Field;
+import org.openmrs.FieldType;
+import org.openmrs.Form;
+import org.openmrs.FormField;
+import org.openmrs.Provider;
+import org.openmrs.util.FormConstants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class XformCacheTest {
+    @Test public void testBuildsEachVersionOnce() throws Exception {
+        CountingCache cache = new CountingCache(10);
+        Form form = newForm("form-a", 1000);
+        XformCache.Xform first = cache.get(form, Locale.ENGLISH, "v1");
+        assertSame(first, cache.get(form, Locale.ENGLISH, "v1"));
+        assertEquals(1, cache.builds.size());
+
+        cache.get(form, Locale.FRENCH, "v1");
+        cache.get(form, Locale.ENGLISH, "v2");
+        assertEquals(3, cache.builds.size());
+    }
+
+    @Test public void testEvictsLeastRecentlyUsed() throws Exception {
+        CountingCache cache = new CountingCache(2);
+        Form a = newForm("form-a", 1000);
+        Form b = newForm("form-b", 1000);
+        Form c = newForm("form-c", 1000);
+        cache.get(a, Locale.ENGLISH, "v1");
+        cache.get(b, Locale.ENGLISH, "v1");
+        cache.get(a, Locale.ENGLISH, "v1");
+        cache.get(c, Locale.ENGLISH, "v1");  // evicts b
+        cache.get(a, Locale.ENGLISH, "v1");
+        cache.get(b, Locale.ENGLISH, "v1");
+        assertEquals(Arrays.asList("form-a", "form-b", "form-c", "form-b"), cache.builds);
+    }
+
+    @Test public void testClearDiscardsBuiltForms() throws Exception {
+        CountingCache cache = new CountingCache(10);
+        Form form = newForm("form-a", 1000);
+        cache.get(form, Locale.ENGLISH, "v1");
+        cache.clear();
+        cache.get(form, Locale.ENGLISH, "v1");
+        assertEquals(2, cache.builds.size());
+    }
+
+    @Test public void testRetriesFailedBuilds() throws Exception {
+        CountingCache cache = new CountingCache(10);
+        Form form = newForm("form-a", 1000);
+        cache.failNext = true;
+        try {
+            cache.get(form, Locale.ENGLISH, "v1");
+            fail();
+        } catch (IllegalStateException e) { }
+        cache.get(form, Locale.ENGLISH, "v1");
+        assertEquals(2, cache.builds.size());
+    }
+
+    @Test public void testVersionFollowsFormAndFields() throws Exception {
+        Form form = newForm("form-a", 1000);
+        String version = XformCache.getVersion(form, "providers");
+        assertEquals(version, XformCache.getVersion(newForm("form-a", 1000), "providers"));
+        assertFalse(version.equals(XformCache.getVersion(newForm("form-a", 2000), "providers")));
+
+        form.addFormField(newFormField(3000, false));
+        String withField = XformCache.getVersion(form, "providers");
+        assertFalse(version.equals(withField));
+        // Without a provider field, the providers don't matter.
+        assertEquals(withField, XformCache.getVersion(form, "other providers"));
+    }
+
+    @Test public void testVersionFollowsProvidersForProviderForms() throws Exception {
+        Form form = newForm("form-a", 1000);
+        form.addFormField(newFormField(1000, true));
+        assertFalse(XformCache.getVersion(form, "providers").equals(
+            XformCache.getVersion(form, "other providers")));
+    }
+
+    @Test public void testProvidersVersionFollowsChangesAndCount() throws Exception {
+        Provider p1 = newProvider(1000);
+        Provider p2 = newProvider(2000);
+        String version = XformCache.getProvidersVersion(Arrays.asList(p1, p2));
+        assertFalse(version.equals(XformCache.getProvidersVersion(Arrays.asList(p2))));
+        p1.setDateChanged(new Date(3000));
+        assertFalse(version.equals(XformCache.getProvidersVersion(Arrays.asList(p1, p2))));
+    }
+
+    private static Form newForm(String uuid, long dateCreated) {
+        Form form = new Form();
+        form.setUuid(uuid);
+        form.setName(uuid);
+        form.setDateCreated(new Date(dateCreated));
+        form.setFormFields(new HashSet<FormField>());
+        return form;
+    }
+
+    private static FormField newFormField(long dateCreated, boolean providers) {
+        FieldType type = new FieldType(providers ? FormConstants.FIELD_TYPE_DATABASE : 99);
+        Field field = new Field();
+        field.setFieldType(type);
+        field.setTableName(providers ? "encounter" : "");
+        FormField formField = new FormField();
+        formField.setField(field);
+        formField.setDateCreated(new Date(dateCreated));
+        return formField;
+    }
+
+    private static Provider newProvider(long dateCreated) {
+        Provider provider = new Provider();
+        provider.setDateCreated(new Date(dateCreated));
+        return provider;
+    }
+
+    /** Records the forms it builds instead of building them. */
+    private static class CountingCache extends XformCache {
+        final List<String> builds = new ArrayList<>();
+        boolean failNext = false;
+
+        CountingCache(int capacity) {
+            super(capacity);
+        }
+
+        @Override protected XformCache.Xform build(Form form, Locale locale) {
+            builds.add(form.getUuid());
+            if (failNext) {
+                failNext = false;
+                throw new IllegalStateException("build failed");
+            }
+            return new XformCache.Xform("<form/>", false);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.response.IllegalPropertyException;
+import org.openmrs.test.SkipBaseSetup;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.projectbuendia.openmrs.api.XformSubmissionStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for XformInstanceResource.createBatch().  The XForms module isn't running in
+ * these tests, so an instance that XformInstanceIngester leaves to it always fails.
+ */
+@SkipBaseSetup
+public class XformInstanceBatchTest extends BaseModuleWebContextSensitiveTest {
+    // These constants should match the values in the data files.
+    private static final String FORM_UUID = "5b6b4f0e-2d0a-4a7b-9a61-4f3c1e0c2b11";
+    private static final String PETER_PAN_UUID = "f6f74ed9-5681-482a-9aa5-c3192579fa59";
+    private static final int PETER_PAN_ID = 2;
+    private static final String OTHER_PATIENT_UUID = "5946f880-b197-400b-9caa-a3c661d23041";
+    private static final int OTHER_PATIENT_ID = 7;
+
+    private XformSubmissionQueueTest.MemoryJournal journal;
+    private XformSubmissionQueue queue;
+
+    /** See BaseApiRequestTest.setUp() for why the base setup is skipped. */
+    @Before public void setUp() throws Exception {
+        if (useInMemoryDatabase()) {
+            initializeInMemoryDatabase();
+            authenticate();
+        }
+        executeDataSet("org/openmrs/projectbuendia/webservices/rest/base-test-data.xml");
+        executeDataSet("org/openmrs/projectbuendia/webservices/rest/patient-test-data.xml");
+        executeDataSet("org/openmrs/projectbuendia/webservices/rest/xform-ingester-test-data.xml");
+        journal = new XformSubmissionQueueTest.MemoryJournal();
+        queue = new XformSubmissionQueue(2, journal);
+    }
+
+    @Test public void testRejectsOversizedBatches() throws Exception {
+        List<Object> instances = new ArrayList<>();
+        for (int i = 0; i <= XformInstanceResource.MAX_BATCH_SIZE; i++) {
+            instances.add(instance("s" + i, PETER_PAN_UUID, weight(70)));
+        }
+        try {
+            createBatch(instances);
+            fail();
+        } catch (IllegalPropertyException e) { }
+        assertTrue(journal.statuses.isEmpty());
+
+        instances.remove(0);
+        assertEquals(XformInstanceResource.MAX_BATCH_SIZE, createBatch(instances).size());
+    }
+
+    @Test public void testReturnsOneResultPerInstanceInOrder() throws Exception {
+        Map<String, Object> withoutPatient = instance("s2", PETER_PAN_UUID, weight(70));
+        withoutPatient.remove("patient_uuid");
+        List<SimpleObject> results = createBatch(Arrays.asList(
+            "not an object",
+            withoutPatient,
+            instance("s3", PETER_PAN_UUID, weight(70)),
+            instance("s4", OTHER_PATIENT_UUID, weight(60)),
+            instance("s3", PETER_PAN_UUID, weight(70))));
+
+        assertEquals(5, results.size());
+        assertResult(results.get(0), null, "failed");
+        assertResult(results.get(1), "s2", "failed");
+        assertResult(results.get(2), "s3", "saved");
+        assertResult(results.get(3), "s4", "saved");
+        assertResult(results.get(4), "s3", "duplicate");
+        assertNotNull(results.get(1).get("error"));
+
+        // A retry of an instance that was saved is a duplicate, and saves nothing.
+        results = createBatch(Arrays.asList(instance("s3", PETER_PAN_UUID, weight(70))));
+        assertResult(results.get(0), "s3", "duplicate");
+        assertEquals(1, getEncounter("s3").getAllObs().size());
+    }
+
+    @Test public void testInstancesWithoutIdsAreDuplicatesOnlyIfTimestamped() throws Exception {
+        // The same vitals, entered twice on a client that leaves the encounter_datetime
+        // to the server, are two separate submissions.
+        Map<String, Object> untimed = instance(null, PETER_PAN_UUID, weight(70));
+        untimed.put("xml", ((String) untimed.get("xml")).replaceAll(
+            "<encounter.encounter_datetime>[^<]*<", "<encounter.encounter_datetime><"));
+        List<SimpleObject> results = createBatch(Arrays.asList(untimed, untimed));
+        String first = (String) results.get(0).get("submission_id");
+        String second = (String) results.get(1).get("submission_id");
+        assertResult(results.get(0), first, "saved");
+        assertResult(results.get(1), second, "saved");
+        assertFalse(first.equals(second));
+        assertWeight(70, getEncounter(first));
+        assertWeight(70, getEncounter(second));
+
+        // An instance with its own timestamp is the same submission when it is resent.
+        Map<String, Object> timed = instance(null, PETER_PAN_UUID, weight(71));
+        results = createBatch(Arrays.asList(timed));
+        String id = (String) results.get(0).get("submission_id");
+        assertResult(results.get(0), id, "saved");
+        results = createBatch(Arrays.asList(timed));
+        assertResult(results.get(0), id, "duplicate");
+    }
+
+    @Test public void testSavesRunsAroundInstancesForTheXformsModule() throws Exception {
+        List<SimpleObject> results = createBatch(Arrays.asList(
+            instance("a", PETER_PAN_UUID, weight(70)),
+            instance("b", PETER_PAN_UUID, weight(71)),
+            instance("legacy", PETER_PAN_UUID, "<weight openmrs_concept=\"5089^WEIGHT (KG)^99DCT\""
+                + " openmrs_datatype=\"NM\"><date>2015-01-01</date><value>72</value></weight>"),
+            instance("c", PETER_PAN_UUID, weight(73))));
+
+        assertResult(results.get(0), "a", "saved");
+        assertResult(results.get(1), "b", "saved");
+        assertResult(results.get(2), "legacy", "failed");
+        assertResult(results.get(3), "c", "saved");
+        assertEquals(XformSubmissionStatus.FAILED, journal.statuses.get("legacy"));
+        assertWeight(70, getEncounter("a"));
+        assertWeight(71, getEncounter("b"));
+        assertWeight(73, getEncounter("c"));
+        Set<Integer> encounterIds = new HashSet<>(Arrays.asList(
+            journal.encounterIds.get("a"), journal.encounterIds.get("b"),
+            journal.encounterIds.get("c")));
+        assertEquals(3, encounterIds.size());
+    }
+
+    @Test public void testSavesOneAtATimeWhenARunFails() throws Exception {
+        // The ingester reads a CD4 count above the concept's absolute maximum, but
+        // saving it fails validation, which fails the whole run.
+        List<SimpleObject> results = createBatch(Arrays.asList(
+            instance("a", PETER_PAN_UUID, weight(70)),
+            instance("invalid", PETER_PAN_UUID, cd4(3000)),
+            instance("b", PETER_PAN_UUID, weight(71)),
+            instance("other", OTHER_PATIENT_UUID, weight(60))));
+
+        assertResult(results.get(0), "a", "saved");
+        assertResult(results.get(1), "invalid", "failed");
+        assertResult(results.get(2), "b", "saved");
+        // The other patient's instances come after the session was cleared.
+        assertResult(results.get(3), "other", "saved");
+        assertNull(journal.encounterIds.get("invalid"));
+        assertWeight(70, getEncounter("a"));
+        assertWeight(71, getEncounter("b"));
+        Encounter other = getEncounter("other");
+        assertWeight(60, other);
+        assertEquals(OTHER_PATIENT_ID, (int) other.getPatient().getId());
+        assertEquals(PETER_PAN_ID, (int) getEncounter("a").getPatient().getId());
+    }
+
+    private List<SimpleObject> createBatch(List<?> instances) throws Exception {
+        return XformInstanceResource.createBatch(
+            instances, new MockHttpServletRequest(), queue);
+    }
+
+    private Encounter getEncounter(String submissionId) {
+        Integer encounterId = journal.encounterIds.get(submissionId);
+        assertNotNull(encounterId);
+        return Context.getEncounterService().getEncounter(encounterId);
+    }
+
+    private static void assertResult(
+        SimpleObject result, String submissionId, String status) {
+        assertEquals(submissionId, result.get("submission_id"));
+        assertEquals(status, result.get("status"));
+        assertEquals(status.equals("failed"), result.containsKey("error"));
+    }
+
+    private static void assertWeight(double kg, Encounter encounter) {
+        assertEquals(1, encounter.getAllObs().size());
+        Obs obs = encounter.getAllObs().iterator().next();
+        assertEquals(5089, (int) obs.getConcept().getId());
+        assertEquals(kg, obs.getValueNumeric(), 0);
+        assertFalse(obs.isVoided());
+    }
+
+    private static String weight(double kg) {
+        return "<weight openmrs_concept=\"5089^WEIGHT (KG)^99DCT\" openmrs_datatype=\"NM\">"
+            + "<value>" + kg + "</value></weight>";
+    }
+
+    private static String cd4(double count) {
+        return "<cd4 openmrs_concept=\"5497^CD4 COUNT^99DCT\" openmrs_datatype=\"NM\">"
+            + "<value>" + count + "</value></cd4>";
+    }
+
+    private static Map<String, Object> instance(
+        String submissionId, String patientUuid, String questions) {
+        Map<String, Object> instance = new HashMap<>();
+        instance.put("submission_id", submissionId);
+        instance.put("patient_uuid", patientUuid);
+        instance.put("xml", "<form uuid=\"" + FORM_UUID + "\">"
+            + "<encounter>"
+            + "<encounter.encounter_datetime>2015-01-02T03:04:05.000Z"
+            + "</encounter.encounter_datetime>"
+            + "<encounter.location_id>2</encounter.location_id>"
+            + "<encounter.provider_id provider_id_type=\"PROVIDER.ID\">23"
+            + "</encounter.provider_id>"
+            + "</encounter>"
+            + "<obs>" + questions + "</obs></form>");
+        return instance;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.Provider;
+import org.openmrs.api.context.Context;
+import org.openmrs.projectbuendia.Utils;
+import org.openmrs.test.SkipBaseSetup;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.w3c.dom.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/** Tests for XformInstanceIngester, which saves XForm instances without the XForms module. */
+@SkipBaseSetup
+public class XformInstanceIngesterTest extends BaseModuleWebContextSensitiveTest {
+    // These constants should match the values in the data files.
+    private static final String FORM_UUID = "5b6b4f0e-2d0a-4a7b-9a61-4f3c1e0c2b11";
+    private static final String FORM_WITHOUT_ENCOUNTER_TYPE_UUID =
+        "d9218f76-6c39-45f4-8efa-4c5c6c199f50";
+    private static final String ENCOUNTER_DATETIME = "2015-01-02T03:04:05.000Z";
+    private static final int ENCOUNTER_TYPE_ID = 76;
+    private static final int LOCATION_ID = 2;
+    private static final int PROVIDER_ID = 23;
+
+    private Patient patient;
+
+    /** See BaseApiRequestTest.setUp() for why the base setup is skipped. */
+    @Before public void setUp() throws Exception {
+        if (useInMemoryDatabase()) {
+            initializeInMemoryDatabase();
+            authenticate();
+        }
+        executeDataSet("org/openmrs/projectbuendia/webservices/rest/base-test-data.xml");
+        executeDataSet("org/openmrs/projectbuendia/webservices/rest/patient-test-data.xml");
+        executeDataSet("org/openmrs/projectbuendia/webservices/rest/xform-ingester-test-data.xml");
+        patient = Context.getPatientService().getPatient(2);
+    }
+
+    @Test public void testReadsEncounterDatetimeLocationAndProvider() throws Exception {
+        List<Obs> observations = new ArrayList<>();
+        Encounter encounter = XformInstanceIngester.read(
+            instance(question("weight", "5089^WEIGHT (KG)^99DCT", "NM", "72.5")),
+            patient, observations);
+
+        assertNotNull(encounter);
+        assertEquals(FORM_UUID, encounter.getForm().getUuid());
+        assertEquals(ENCOUNTER_TYPE_ID, (int) encounter.getEncounterType().getId());
+        assertEquals(patient, encounter.getPatient());
+        assertEquals(Utils.parse8601(ENCOUNTER_DATETIME), encounter.getEncounterDatetime());
+        assertEquals(LOCATION_ID, (int) encounter.getLocation().getId());
+        List<Provider> providers = new ArrayList<>(
+            encounter.getProvidersByRole(DbUtils.getUnknownEncounterRole()));
+        assertEquals(1, providers.size());
+        assertEquals(PROVIDER_ID, (int) providers.get(0).getId());
+
+        // Each observation takes the time and location of the encounter.
+        assertEquals(1, observations.size());
+        Obs obs = observations.get(0);
+        assertEquals(patient, obs.getPerson());
+        assertEquals(Utils.parse8601(ENCOUNTER_DATETIME), obs.getObsDatetime());
+        assertEquals(encounter.getLocation(), obs.getLocation());
+    }
+
+    @Test public void testReadsEachDatatype() throws Exception {
+        List<Obs> observations = read(instance(
+            question("weight", "5089^WEIGHT (KG)^99DCT", "NM", " 72.5 ")
+                + question("food", "18^FOOD ASSISTANCE^99DCT", "BIT", "1")
+                + question("no_food", "18^FOOD ASSISTANCE^99DCT", "BIT", "false")
+                + question("family", "21^FOOD ASSISTANCE FOR ENTIRE FAMILY^99DCT", "CWE",
+                    "7^Yes^99DCT")
+                + question("favorite", "19^FAVORITE FOOD, NON-CODED^99DCT", "ST", " soup ")
+                + question("onset", "1000^DATE OF ONSET^99DCT", "DT", "2015-03-04")
+                + question("assisted", "20^DATE OF FOOD ASSISTANCE^99DCT", "TS",
+                    "2015-03-04T05:06:07.000Z")
+                + question("empty", "5089^WEIGHT (KG)^99DCT", "NM", "")));
+
+        assertEquals(7, observations.size());
+        assertEquals(72.5, observations.get(0).getValueNumeric(), 0);
+        assertEquals(true, observations.get(1).getValueAsBoolean());
+        assertEquals(false, observations.get(2).getValueAsBoolean());
+        assertEquals(7, (int) observations.get(3).getValueCoded().getId());
+        assertEquals(" soup ", observations.get(4).getValueText());
+        // A date is UTC midnight, whatever the server's time zone.
+        assertEquals(Utils.parse8601("2015-03-04T00:00:00.000Z"),
+            observations.get(5).getValueDatetime());
+        assertEquals(Utils.parse8601("2015-03-04T05:06:07.000Z"),
+            observations.get(6).getValueDatetime());
+    }
+
+    @Test public void testReadsSelectedMultipleChoiceAnswers() throws Exception {
+        List<Obs> observations = read(instance(
+            "<family openmrs_concept=\"21^FOOD ASSISTANCE FOR ENTIRE FAMILY^99DCT\""
+                + " openmrs_datatype=\"CWE\" multiple=\"1\">"
+                + "<yes openmrs_concept=\"7^Yes^99DCT\">true</yes>"
+                + "<no openmrs_concept=\"8^No^99DCT\">false</no>"
+                + "<other openmrs_concept=\"22^Other^99DCT\">true</other>"
+                + "<date/><time/>"
+                + "</family>"));
+
+        assertEquals(2, observations.size());
+        for (Obs obs : observations) {
+            assertEquals(21, (int) obs.getConcept().getId());
+        }
+        assertEquals(7, (int) observations.get(0).getValueCoded().getId());
+        assertEquals(22, (int) observations.get(1).getValueCoded().getId());
+    }
+
+    @Test public void testFallsBackForFormsWithoutEncounterType() throws Exception {
+        assertFallsBack(instance(FORM_WITHOUT_ENCOUNTER_TYPE_UUID,
+            encounter("" + LOCATION_ID, "PROVIDER.ID", "" + PROVIDER_ID), ""));
+    }
+
+    @Test public void testFallsBackForUnknownLocationsAndProviders() throws Exception {
+        assertFallsBack(instance(FORM_UUID, encounter("99", "PROVIDER.ID", "" + PROVIDER_ID), ""));
+        assertFallsBack(instance(FORM_UUID, encounter("", "PROVIDER.ID", "" + PROVIDER_ID), ""));
+        assertFallsBack(instance(FORM_UUID, encounter("" + LOCATION_ID, "PROVIDER.ID", "99"), ""));
+        assertFallsBack(instance(FORM_UUID,
+            encounter("" + LOCATION_ID, "PERSON.ID", "" + PROVIDER_ID), ""));
+    }
+
+    @Test public void testFallsBackForUnsupportedQuestions() throws Exception {
+        // Unknown concept, or none at all
+        assertFallsBack(instance(question("x", "99999^UNKNOWN^99DCT", "NM", "1")));
+        assertFallsBack(instance("<x openmrs_datatype=\"NM\"><value>1</value></x>"));
+        // Values that don't suit the datatype or the concept
+        assertFallsBack(instance(question("x", "5089^WEIGHT (KG)^99DCT", "NM", "heavy")));
+        assertFallsBack(instance(question("x", "19^FAVORITE FOOD, NON-CODED^99DCT", "NM", "1")));
+        assertFallsBack(instance(question("x", "18^FOOD ASSISTANCE^99DCT", "NM", "2")));
+        assertFallsBack(instance(question("x", "5089^WEIGHT (KG)^99DCT", "CWE", "7^Yes^99DCT")));
+        assertFallsBack(instance(question("x", "1000^DATE OF ONSET^99DCT", "DT", "March 4")));
+        assertFallsBack(instance(question("x", "20^DATE OF FOOD ASSISTANCE^99DCT", "TS", "soon")));
+        assertFallsBack(instance(question("x", "20^DATE OF FOOD ASSISTANCE^99DCT", "TM", "05:06")));
+        // A multiple choice answer for a concept that isn't coded
+        assertFallsBack(instance("<x openmrs_concept=\"5089^WEIGHT (KG)^99DCT\""
+            + " openmrs_datatype=\"NM\"><yes openmrs_concept=\"7^Yes^99DCT\">true</yes></x>"));
+        // An observation with its own time
+        assertFallsBack(instance("<x openmrs_concept=\"5089^WEIGHT (KG)^99DCT\""
+            + " openmrs_datatype=\"NM\"><date>2015-01-01</date><value>72</value></x>"));
+        // An observation group
+        assertFallsBack(instance("<group openmrs_concept=\"23^FOOD CONSTRUCT^99DCT\""
+            + " openmrs_datatype=\"ZZ\">"
+            + question("x", "5089^WEIGHT (KG)^99DCT", "NM", "72") + "</group>"));
+    }
+
+    @Test public void testIngestSavesEncounterWithObservations() throws Exception {
+        Encounter encounter = XformInstanceIngester.ingest(instance(
+            question("weight", "5089^WEIGHT (KG)^99DCT", "NM", "72.5")
+                + question("favorite", "19^FAVORITE FOOD, NON-CODED^99DCT", "ST", "soup")),
+            patient);
+
+        assertNotNull(encounter);
+        assertNotNull(encounter.getId());
+        Context.flushSession();
+        Context.clearSession();
+        Encounter saved = Context.getEncounterService().getEncounter(encounter.getId());
+        assertEquals(2, saved.getAllObs().size());
+        for (Obs obs : saved.getAllObs()) {
+            assertEquals(patient.getId(), obs.getPerson().getId());
+            assertEquals(Utils.parse8601(ENCOUNTER_DATETIME), obs.getObsDatetime());
+        }
+    }
+
+    @Test public void testIngestWritesNothingWhenFallingBack() throws Exception {
+        int before = Context.getEncounterService().getEncountersByPatient(patient).size();
+        assertNull(XformInstanceIngester.ingest(instance(
+            question("weight", "5089^WEIGHT (KG)^99DCT", "NM", "72.5")
+                + question("x", "99999^UNKNOWN^99DCT", "NM", "1")), patient));
+        assertEquals(before, Context.getEncounterService().getEncountersByPatient(patient).size());
+    }
+
+    private List<Obs> read(Document doc) {
+        List<Obs> observations = new ArrayList<>();
+        assertNotNull(XformInstanceIngester.read(doc, patient, observations));
+        return observations;
+    }
+
+    private void assertFallsBack(Document doc) {
+        List<Obs> observations = new ArrayList<>();
+        assertNull(XformInstanceIngester.read(doc, patient, observations));
+        assertEquals(Collections.emptyList(), observations);
+    }
+
+    private static String question(String name, String concept, String datatype, String value) {
+        return "<" + name + " openmrs_concept=\"" + concept + "\" openmrs_datatype=\""
+            + datatype + "\"><date/><time/><value>" + value + "</value></" + name + ">";
+    }
+
+    private static String encounter(String locationId, String providerIdType, String providerId) {
+        return "<encounter>"
+            + "<encounter.encounter_datetime>" + ENCOUNTER_DATETIME
+            + "</encounter.encounter_datetime>"
+            + "<encounter.location_id>" + locationId + "</encounter.location_id>"
+            + "<encounter.provider_id provider_id_type=\"" + providerIdType + "\">"
+            + providerId + "</encounter.provider_id>"
+            + "</encounter>";
+    }
+
+    private static Document instance(String questions) throws Exception {
+        return instance(FORM_UUID,
+            encounter("" + LOCATION_ID, "PROVIDER.ID", "" + PROVIDER_ID), questions);
+    }
+
+    private static Document instance(
+        String formUuid, String encounter, String questions) throws Exception {
+        return XmlUtils.parse("<form uuid=\"" + formUuid + "\">" + encounter
+            + "<obs openmrs_concept=\"1238^MEDICAL RECORD OBSERVATIONS^99DCT\""
+            + " openmrs_datatype=\"ZZ\">" + questions + "</obs></form>");
+    }
+}
@@ -11,12 +11,113 @@
 
 package org.openmrs.projectbuendia.webservices.rest;
 
+import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.Form;
+import org.openmrs.api.FormService;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.SkipBaseSetup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.openmrs.projectbuendia.webservices.rest.XmlTestUtils.assertXmlEqual;
 import static org.openmrs.projectbuendia.webservices.rest.XmlTestUtils.getStringResource;
 
-public class XformResourceTest {
+/** REST API tests for XformResource, and tests of its XML conversions. */
+@SkipBaseSetup public class XformResourceTest extends BaseApiRequestTest {
+
+    // This should match the form in the BASE_TEST_DATA file.
+    String FORM_UUID = "d9218f76-6c39-45f4-8efa-4c5c6c199f50";
+
+    public String[] getInitialDataFiles() {
+        return new String[] {
+            "org/openmrs/projectbuendia/webservices/rest/base-test-data.xml"
+        };
+    }
+
+    @Override public String getURI() {
+        return "/xforms";
+    }
+
+    @Override public String getUuid() {
+        return FORM_UUID;
+    }
+
+    @Override public long getAllCount() {
+        return 1;
+    }
+
+    /** The form in the test data is unpublished; only published forms are listed. */
+    @Before public void publishForm() throws Exception {
+        FormService formService = Context.getFormService();
+        Form form = formService.getFormByUuid(FORM_UUID);
+        form.setPublished(true);
+        formService.saveForm(form);
+    }
+
+    /**
+     * Building the full XForm needs the XForms module to be running, so this checks
+     * only that a full request is answered from its ETag without building anything.
+     */
+    @Test public void shouldGetFullByUuid() throws Exception {
+        MockHttpServletRequest request = newGetRequest(getURI() + "/" + FORM_UUID);
+        request.addParameter("v", "full");
+        request.addHeader("If-None-Match", "*");
+        MockHttpServletResponse response = handle(request);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+        assertNotNull(response.getHeader("ETag"));
+    }
+
+    @Test public void testGetAllIsNotModifiedForMatchingEtag() throws Exception {
+        MockHttpServletResponse first = handle(newGetRequest(getURI()));
+        String etag = (String) first.getHeader("ETag");
+        assertNotNull(etag);
+        assertEquals(HttpServletResponse.SC_OK, first.getStatus());
+
+        MockHttpServletRequest request = newGetRequest(getURI());
+        request.addHeader("If-None-Match", "\"other\", W/" + etag);
+        MockHttpServletResponse second = handle(request);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, second.getStatus());
+        assertEquals(etag, second.getHeader("ETag"));
+    }
+
+    @Test public void testRetrieveIsNotModifiedForMatchingEtag() throws Exception {
+        String etag = (String) handle(newGetRequest(getURI() + "/" + FORM_UUID))
+            .getHeader("ETag");
+        MockHttpServletRequest request = newGetRequest(getURI() + "/" + FORM_UUID);
+        request.addHeader("If-None-Match", etag);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, handle(request).getStatus());
+    }
+
+    @Test public void testEtagChangesWhenFormsChange() throws Exception {
+        String etag = (String) handle(newGetRequest(getURI())).getHeader("ETag");
+
+        FormService formService = Context.getFormService();
+        Form form = formService.getFormByUuid(FORM_UUID);
+        form.setPublished(false);
+        formService.saveForm(form);
+
+        MockHttpServletRequest request = newGetRequest(getURI());
+        request.addHeader("If-None-Match", etag);
+        MockHttpServletResponse response = handle(request);
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        assertFalse(etag.equals(response.getHeader("ETag")));
+    }
+
+    @Test public void testEtagDependsOnRepresentation() throws Exception {
+        String etag = (String) handle(newGetRequest(getURI() + "/" + FORM_UUID))
+            .getHeader("ETag");
+        MockHttpServletRequest request = newGetRequest(getURI() + "/" + FORM_UUID);
+        request.addParameter("v", "full");
+        request.addHeader("If-None-Match", "*");
+        assertFalse(etag.equals(handle(request).getHeader("ETag")));
+    }
+
     @Test public void convertToOdkCollect() throws Exception {
         String input = getStringResource(getClass(), "sample-original-form1.xml");
         String expected = getStringResource(getClass(), "expected-result-form1.xml");
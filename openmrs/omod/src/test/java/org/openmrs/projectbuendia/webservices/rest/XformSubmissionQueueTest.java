@@ -0,0 +1,232 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.After;
+import org.junit.Test;
+import org.projectbuendia.openmrs.api.XformSubmissionStatus;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class XformSubmissionQueueTest {
+    private final MemoryJournal journal = new MemoryJournal();
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+
+    @After public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    @Test public void testDuplicateSubmissionIsNotProcessedAgain() throws Exception {
+        XformSubmissionQueue queue = new XformSubmissionQueue(4, journal);
+        CountingProcessor processor = new CountingProcessor();
+        assertTrue(queue.submit("a", 1, processor));
+        assertFalse(queue.submit("a", 1, processor));
+        assertEquals(1, processor.calls.get());
+        assertEquals(XformSubmissionStatus.DONE, journal.getStatus("a"));
+        assertEquals(Integer.valueOf(42), journal.encounterIds.get("a"));
+    }
+
+    @Test public void testFailedSubmissionIsProcessedAgain() throws Exception {
+        XformSubmissionQueue queue = new XformSubmissionQueue(4, journal);
+        try {
+            queue.submit("a", 1, new XformSubmissionQueue.Processor() {
+                @Override public Integer process() {
+                    throw new IllegalStateException("broken");
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) { }
+        assertEquals(XformSubmissionStatus.FAILED, journal.getStatus("a"));
+
+        CountingProcessor processor = new CountingProcessor();
+        assertTrue(queue.submit("a", 1, processor));
+        assertEquals(1, processor.calls.get());
+        assertEquals(XformSubmissionStatus.DONE, journal.getStatus("a"));
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test public void testSavedSubmissionSucceedsEvenIfJournalFails() throws Exception {
+        XformSubmissionQueue queue = new XformSubmissionQueue(4, new MemoryJournal() {
+            @Override public synchronized void setStatus(String submissionId, int patientId,
+                XformSubmissionStatus status, @Nullable Integer encounterId,
+                @Nullable String error) {
+                if (status == XformSubmissionStatus.DONE) {
+                    throw new IllegalStateException("database is down");
+                }
+                super.setStatus(submissionId, patientId, status, encounterId, error);
+            }
+        });
+        CountingProcessor processor = new CountingProcessor();
+        assertTrue(queue.submit("a", 1, processor));
+        assertEquals(1, processor.calls.get());
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test public void testSamePatientIsProcessedInOrder() throws Exception {
+        XformSubmissionQueue queue = new XformSubmissionQueue(4, journal);
+        BlockingProcessor first = new BlockingProcessor();
+        Future<Boolean> a = submitInBackground(queue, "a", 1, first);
+        assertTrue(first.started.await(5, TimeUnit.SECONDS));
+
+        CountingProcessor second = new CountingProcessor();
+        Future<Boolean> b = submitInBackground(queue, "b", 1, second);
+        waitForDepth(queue, 2);
+        assertEquals(0, second.calls.get());
+
+        first.release.countDown();
+        assertTrue(a.get(5, TimeUnit.SECONDS));
+        assertTrue(b.get(5, TimeUnit.SECONDS));
+        assertEquals(1, second.calls.get());
+    }
+
+    @Test public void testDifferentPatientsAreProcessedInParallel() throws Exception {
+        XformSubmissionQueue queue = new XformSubmissionQueue(4, journal);
+        BlockingProcessor first = new BlockingProcessor();
+        BlockingProcessor second = new BlockingProcessor();
+        Future<Boolean> a = submitInBackground(queue, "a", 1, first);
+        Future<Boolean> b = submitInBackground(queue, "b", 2, second);
+        assertTrue(first.started.await(5, TimeUnit.SECONDS));
+        assertTrue(second.started.await(5, TimeUnit.SECONDS));
+
+        first.release.countDown();
+        second.release.countDown();
+        assertTrue(a.get(5, TimeUnit.SECONDS));
+        assertTrue(b.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test public void testConcurrencyIsBounded() throws Exception {
+        XformSubmissionQueue queue = new XformSubmissionQueue(1, journal);
+        BlockingProcessor first = new BlockingProcessor();
+        Future<Boolean> a = submitInBackground(queue, "a", 1, first);
+        assertTrue(first.started.await(5, TimeUnit.SECONDS));
+
+        CountingProcessor second = new CountingProcessor();
+        Future<Boolean> b = submitInBackground(queue, "b", 2, second);
+        waitForDepth(queue, 2);
+        assertEquals(0, second.calls.get());
+
+        first.release.countDown();
+        assertTrue(a.get(5, TimeUnit.SECONDS));
+        assertTrue(b.get(5, TimeUnit.SECONDS));
+        assertEquals(1, second.calls.get());
+    }
+
+    @Test public void testSubmitAllProcessesOnlyNewSubmissions() throws Exception {
+        XformSubmissionQueue queue = new XformSubmissionQueue(4, journal);
+        queue.submit("a", 1, new CountingProcessor());
+        final List<Integer> processed = new ArrayList<>();
+        List<XformSubmissionQueue.Result> results = queue.submitAll(
+            1, Arrays.asList("a", "b", "c", "b"), new XformSubmissionQueue.BatchProcessor() {
+                @Override public List<XformSubmissionQueue.Result> process(List<Integer> indexes) {
+                    processed.addAll(indexes);
+                    return Arrays.asList(XformSubmissionQueue.Result.saved(7),
+                        XformSubmissionQueue.Result.failed(new IllegalStateException()));
+                }
+            });
+        assertEquals(Arrays.asList(1, 2), processed);
+        assertTrue(results.get(0).duplicate);
+        assertEquals(Integer.valueOf(7), results.get(1).encounterId);
+        assertTrue(results.get(2).error instanceof IllegalStateException);
+        assertTrue(results.get(3).duplicate);
+        assertEquals(XformSubmissionStatus.DONE, journal.getStatus("b"));
+        assertEquals(XformSubmissionStatus.FAILED, journal.getStatus("c"));
+    }
+
+    @Test public void testWritesMetrics() throws Exception {
+        XformSubmissionQueue queue = new XformSubmissionQueue(4, journal);
+        queue.submit("a", 1, new CountingProcessor());
+        queue.submit("a", 1, new CountingProcessor());
+        StringWriter output = new StringWriter();
+        queue.write(output);
+        String text = output.toString();
+        assertTrue(text.contains("buendia_xform_queue_waiting 0\n"));
+        assertTrue(text.contains("buendia_xform_processing_milliseconds_count 1\n"));
+        assertTrue(text.contains("buendia_xform_submissions_total{outcome=\"done\"} 1\n"));
+        assertTrue(text.contains("buendia_xform_submissions_total{outcome=\"duplicate\"} 1\n"));
+    }
+
+    private Future<Boolean> submitInBackground(final XformSubmissionQueue queue,
+        final String submissionId, final int patientId,
+        final XformSubmissionQueue.Processor processor) {
+        return threads.submit(new Callable<Boolean>() {
+            @Override public Boolean call() throws Exception {
+                return queue.submit(submissionId, patientId, processor);
+            }
+        });
+    }
+
+    private static void waitForDepth(XformSubmissionQueue queue, int depth)
+        throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.getDepth() < depth) {
+            if (System.currentTimeMillis() > deadline) fail("Queue depth stayed below " + depth);
+            Thread.sleep(10);
+        }
+    }
+
+    private static class CountingProcessor implements XformSubmissionQueue.Processor {
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override public Integer process() {
+            calls.incrementAndGet();
+            return 42;
+        }
+    }
+
+    private static class BlockingProcessor implements XformSubmissionQueue.Processor {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override public Integer process() throws InterruptedException {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }
+    }
+
+    static class MemoryJournal implements XformSubmissionQueue.Journal {
+        final Map<String, XformSubmissionStatus> statuses = new HashMap<>();
+        final Map<String, Integer> encounterIds = new HashMap<>();
+
+        @Override public synchronized @Nullable XformSubmissionStatus getStatus(
+            String submissionId) {
+            return statuses.get(submissionId);
+        }
+
+        @Override public synchronized void setStatus(String submissionId, int patientId,
+            XformSubmissionStatus status, @Nullable Integer encounterId, @Nullable String error) {
+            statuses.put(submissionId, status);
+            encounterIds.put(submissionId, encounterId);
+        }
+    }
+}
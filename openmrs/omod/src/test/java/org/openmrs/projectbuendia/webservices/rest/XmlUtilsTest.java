@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class XmlUtilsTest {
+    @Test public void testParseAndSerializeRoundTrip() throws Exception {
+        Document doc = XmlUtils.parse(
+            "<form xmlns:x=\"urn:x\"><!-- note --><x:obs>é</x:obs></form>");
+        assertEquals("urn:x", doc.getDocumentElement().getFirstChild().getNamespaceURI());
+        String xml = XmlUtils.toString(doc);
+        assertTrue(xml.endsWith("<form xmlns:x=\"urn:x\"><x:obs>é</x:obs></form>"));
+    }
+
+    @Test public void testParsesAgainAfterMalformedInput() throws Exception {
+        try {
+            XmlUtils.parse("<form>");
+            fail();
+        } catch (SAXException e) { }
+        assertEquals("form", XmlUtils.parse("<form/>").getDocumentElement().getTagName());
+    }
+
+    @Test public void testParsesConcurrently() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                final String xml = "<form><value>" + i + "</value></form>";
+                results.add(threads.submit(new Callable<String>() {
+                    @Override public String call() throws Exception {
+                        return XmlUtils.parse(xml).getDocumentElement().getTextContent();
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals("" + i, results.get(i).get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.models;
+
+import org.junit.Test;
+import org.projectbuendia.models.Catalog.Drug;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CatalogIndexTest {
+    private static final CatalogIndex INDEX = MsfCatalog.INDEX;
+
+    private static List<String> search(String query) {
+        List<String> codes = new ArrayList<>();
+        for (Drug drug : INDEX.search(query, 10)) {
+            codes.add(drug.code);
+        }
+        return codes;
+    }
+
+    @Test public void testSearchMatchesPrefixesOfEveryWord() {
+        List<String> codes = search("abc 3tc");
+        assertTrue(codes.contains("DORAABLA"));
+        assertTrue(codes.contains("DORAABLZ"));
+        assertFalse(codes.contains("DORAABCV"));
+    }
+
+    @Test public void testSearchIgnoresCaseAndAccents() {
+        assertEquals(search("vaccin ror rubeole"), search("VACCIN ROR rubéole"));
+        assertTrue(search("rubeole").contains("DVACVMMR"));
+    }
+
+    @Test public void testSearchByCode() {
+        assertTrue(search("doraacsa3").contains("DORAACSA"));
+    }
+
+    @Test public void testSearchWithoutWordsFindsNothing() {
+        assertEquals(0, search(" / ").size());
+        assertEquals(0, search("zzzz").size());
+    }
+
+    @Test public void testLookups() {
+        assertEquals("DORAACSA3TD", INDEX.getFormat("DORAACSA3TD--").code);
+        assertEquals(Catalog.Format.UNSPECIFIED, INDEX.getFormat("XYZ"));
+        assertEquals(MsfCatalog.IV, INDEX.getRoute("IV"));
+        assertEquals(Catalog.Route.UNSPECIFIED, INDEX.getRoute("XYZ"));
+    }
+}
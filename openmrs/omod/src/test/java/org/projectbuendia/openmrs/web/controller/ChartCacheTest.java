@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.openmrs.web.controller;
+
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ChartCacheTest {
+    private static final Locale FR = new Locale("fr");
+    private static final DateTimeZone ZONE = DateTimeZone.forOffsetHours(2);
+
+    @Test public void testHitAtSameRevision() {
+        ChartCache cache = new ChartCache(10, 60000);
+        cache.put("p1", FR, ZONE, "rev1", "<p>one</p>");
+        assertEquals("<p>one</p>", cache.get("p1", FR, ZONE, "rev1"));
+    }
+
+    @Test public void testMissAfterRevisionAdvances() {
+        ChartCache cache = new ChartCache(10, 60000);
+        cache.put("p1", FR, ZONE, "rev1", "<p>one</p>");
+        assertNull(cache.get("p1", FR, ZONE, "rev2"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test public void testKeyedByLocaleAndZone() {
+        ChartCache cache = new ChartCache(10, 60000);
+        cache.put("p1", FR, ZONE, "rev1", "<p>one</p>");
+        assertNull(cache.get("p1", Locale.ENGLISH, ZONE, "rev1"));
+        assertNull(cache.get("p1", FR, DateTimeZone.UTC, "rev1"));
+    }
+
+    @Test public void testExpiresAfterMaxAge() {
+        ChartCache cache = new ChartCache(10, -1);
+        cache.put("p1", FR, ZONE, "rev1", "<p>one</p>");
+        assertNull(cache.get("p1", FR, ZONE, "rev1"));
+    }
+
+    @Test public void testEvictsLeastRecentlyUsed() {
+        ChartCache cache = new ChartCache(2, 60000);
+        cache.put("p1", FR, ZONE, "rev1", "<p>one</p>");
+        cache.put("p2", FR, ZONE, "rev1", "<p>two</p>");
+        cache.get("p1", FR, ZONE, "rev1");
+        cache.put("p3", FR, ZONE, "rev1", "<p>three</p>");
+        assertEquals(2, cache.size());
+        assertEquals("<p>one</p>", cache.get("p1", FR, ZONE, "rev1"));
+        assertNull(cache.get("p2", FR, ZONE, "rev1"));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.openmrs.web.controller;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.projectbuendia.openmrs.web.controller.HtmlOutput.el;
+import static org.projectbuendia.openmrs.web.controller.HtmlOutput.format;
+import static org.projectbuendia.openmrs.web.controller.HtmlOutput.render;
+
+public class HtmlOutputTest {
+    private static final Locale FR = new Locale("fr");
+
+    @Test public void testElementEscapesText() throws Exception {
+        assertEquals("<div class=\"x\"\n>a&amp;b &lt;c></div\n>",
+            render(el("div class=\"x\"", "a&b <c>"), FR));
+    }
+
+    @Test public void testFormatWritesDocArgumentsInPlace() throws Exception {
+        assertEquals("<b\n>x&lt;y</b\n> dans 2",
+            render(format("%s in %s [fr:%s dans %s]", el("b", "x<y"), 2), FR));
+    }
+
+    @Test public void testFormatMatchesStringFormat() throws Exception {
+        assertEquals(String.format(Locale.US, "%3$s %s 100%% %d doses %.1f", 2, 3, 2.25),
+            render(format("%3$s %s 100%% %d doses %.1f", 2, 3, 2.25), Locale.US));
+        assertEquals("A then A", render(format("%s then %<s", "A"), Locale.US));
+    }
+
+    @Test public void testIntlFallsBackToLanguage() throws Exception {
+        assertEquals("chat", render(format("cat [fr:chat]"), new Locale("fr", "CA")));
+        assertEquals("cat", render(format("cat [fr:chat]"), Locale.US));
+    }
+}